@@ -0,0 +1,59 @@
+package org.graylog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a lookup list response to find the ID of a name, as done by {@code TopdeskLookupCache.getId()}, with the
+ * name at the start and at the end of the list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopdeskLookupParseBenchmark {
+	@Param({"10", "100", "1000", "10000"})
+	public int entries;
+
+	private byte[] response;
+
+	@Setup
+	public void setUp() {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < entries; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"id\":\"").append(String.format("%08x-0000-0000-0000-000000000000", i))
+					.append("\",\"name\":\"Name ").append(i)
+					.append("\",\"firstLine\":true,\"secondLine\":false,\"parent\":{\"id\":\"p\",\"name\":\"Parent\"}}");
+		}
+		response = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String first() throws IOException {
+		return TopdeskJson.findId(new ByteArrayInputStream(response), "name", "Name 0");
+	}
+
+	@Benchmark
+	public String last() throws IOException {
+		return TopdeskJson.findId(new ByteArrayInputStream(response), "name", "Name " + (entries - 1));
+	}
+}
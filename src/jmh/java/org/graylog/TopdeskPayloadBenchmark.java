@@ -0,0 +1,75 @@
+package org.graylog;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the JSON body of a new incident, as done for the POST to Topdesk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopdeskPayloadBenchmark {
+	@Param({"256", "4096", "65536"})
+	public int descriptionLength;
+
+	private TopdeskIncidentRequest request;
+
+	@Setup
+	public void setUp() throws Exception {
+		TopdeskConfig config = TopdeskConfig.of(ImmutableMap.<String, Object>builder()
+				.put("endpoint", "https://localhost")
+				.put("username", "user")
+				.put("password", "pass")
+				.put("login_mode", "operator")
+				.put("caller_email", "foo@bar.com")
+				.put("summary", "summary")
+				.put("object", "server")
+				.put("category", "Monitoring")
+				.put("subcategory", "Graylog")
+				.put("second_line", true)
+				.build());
+		request = new TopdeskIncidentRequest(config, Strings.repeat("<b>\"alert\"</b> ", descriptionLength / 16),
+				ImmutableMap.<String, Map<String, String>>of(
+						"optionalFields1", ImmutableMap.of("text1", "10.0.0.1", "text2", "root"),
+						"optionalFields2", ImmutableMap.of("text1", "Stream title")),
+				ImmutableMap.<String, String>builder()
+						.put("priority", "p1")
+						.put("impact", "i1")
+						.put("urgency", "u1")
+						.put("entryType", "e1")
+						.put("callType", "c1")
+						.put("operatorGroup", "g1")
+						.build());
+	}
+
+	@Benchmark
+	public long post() throws IOException {
+		RequestBody body = TopdeskJson.requestBody(request);
+		Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		long size = buffer.size();
+		buffer.clear();
+		return size;
+	}
+}
@@ -0,0 +1,72 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of the description and optional fields of an alert, for messages with a growing number of fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopdeskRenderBenchmark {
+	private static final String OPTIONAL_FIELDS = "optionalFields1:text1:%field1%,optionalFields1:text2:%field2|none%,"
+			+ "optionalFields2:text1:%stream%,optionalFields2:number1:%field3%";
+
+	@Param({"10", "100", "500"})
+	public int fields;
+
+	private TopdeskConfig config;
+	private Message message;
+
+	@Setup
+	public void setUp() throws Exception {
+		config = TopdeskConfig.of(ImmutableMap.<String, Object>builder()
+				.put("endpoint", "https://localhost")
+				.put("username", "user")
+				.put("password", "pass")
+				.put("login_mode", "operator")
+				.put("optional_fields", OPTIONAL_FIELDS)
+				.put("description", "Alert raised on stream <b>%stream%</b> at <b>%triggeredAt%</b>.<br/><br/>"
+						+ "Source ip: %field1%, user: %field5|unknown%, missing: %missing%.<br/>%message%")
+				.build());
+		message = new Message("Failed password for root from 10.0.0.1", "host1", new DateTime(2018, 1, 1, 12, 0, DateTimeZone.UTC));
+		for (int i = 0; i < fields; i++) {
+			message.addField("field" + i, "value of field " + i);
+		}
+	}
+
+	@Benchmark
+	public String description() {
+		return config.getDescriptionTemplate().render("Stream title", "2018-01-01 12:00:00+0000", message, true);
+	}
+
+	@Benchmark
+	public Map<String, Map<String, String>> optionalFields() {
+		return config.renderOptionalFields("Stream title", "2018-01-01 12:00:00+0000", message);
+	}
+
+	@Benchmark
+	public Map<String, Map<String, String>> parseOptionalFields() {
+		return TopdeskAlarmCallback.parseOptionalFields(OPTIONAL_FIELDS);
+	}
+}
@@ -2,15 +2,14 @@ package org.graylog;
 
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.*;
 
+import com.codahale.metrics.Timer;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import okhttp3.*;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.MessageSummary;
-import org.graylog2.plugin.Tools;
 import org.graylog2.plugin.alarms.AlertCondition;
 import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
 import org.graylog2.plugin.alarms.callbacks.AlarmCallback;
@@ -22,107 +21,174 @@ import org.graylog2.plugin.configuration.ConfigurationRequest;
 
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
 import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.streams.Stream;
-import org.joda.time.DateTime;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 
-import org.apache.commons.codec.binary.Base64;
-
-import javax.net.ssl.*;
-import javax.xml.ws.http.HTTPException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import javax.inject.Inject;
 
 
 public class TopdeskAlarmCallback implements AlarmCallback {
-	private static final String PRIORITIES_URI = "/tas/api/incidents/priorities";
-	private static final String ENTRY_TYPES_URI = "/tas/api/incidents/entry_types";
-	private static final String CALL_TYPES_URI = "/tas/api/incidents/call_types";
-	private static final String IMPACTS_URI = "/tas/api/incidents/impacts";
-	private static final String URGENCIES_URI = "/tas/api/incidents/urgencies";
-	private static final String OPERATOR_GROUPS_URI = "/tas/api/operatorgroups";
-	private static final String CATEGORIES_URI = "/tas/api/incidents/categories";
-	private static final String SUBCATEGORIES_URI = "tas/api/incidents/subcategories";
-
-	public static final MediaType JSON
-			= MediaType.parse("application/json; charset=utf-8");
-
-	private static final String ENDPOINT = "endpoint";
-	private static final String USERNAME = "username";
-	private static final String PASSWORD = "password";
-	private static final String LOGIN_MODE = "login_mode";
-	private static final String CALLER_EMAIL = "caller_email";
-	private static final String PRIORITY = "priority";
-	private static final String ENTRY_TYPE = "entry_type";
-	private static final String CALL_TYPE = "call_type";
-	private static final String OBJECT = "object";
-	private static final String IMPACT = "impact";
-	private static final String URGENCY = "urgency";
-	private static final String OPERATOR_GROUP = "operator_group";
-	private static final String CATEGORY = "category";
-	private static final String SUBCATEGORY = "subcategory";
-	private static final String SECOND_LINE = "second_line";
-	private static final String OPTIONAL_FIELDS = "optional_fields";
-
-	private static final String SUMMARY = "summary";
-	private static final String DESCRIPTION = "description";
+	static final String PRIORITIES_URI = "/tas/api/incidents/priorities";
+	static final String ENTRY_TYPES_URI = "/tas/api/incidents/entry_types";
+	static final String CALL_TYPES_URI = "/tas/api/incidents/call_types";
+	static final String IMPACTS_URI = "/tas/api/incidents/impacts";
+	static final String URGENCIES_URI = "/tas/api/incidents/urgencies";
+	static final String OPERATOR_GROUPS_URI = "/tas/api/operatorgroups";
+	static final String CATEGORIES_URI = "/tas/api/incidents/categories";
+	static final String SUBCATEGORIES_URI = "/tas/api/incidents/subcategories";
+
+	static final String ENDPOINT = "endpoint";
+	static final String USERNAME = "username";
+	static final String PASSWORD = "password";
+	static final String LOGIN_MODE = "login_mode";
+	static final String CALLER_EMAIL = "caller_email";
+	static final String PRIORITY = "priority";
+	static final String ENTRY_TYPE = "entry_type";
+	static final String CALL_TYPE = "call_type";
+	static final String OBJECT = "object";
+	static final String IMPACT = "impact";
+	static final String URGENCY = "urgency";
+	static final String OPERATOR_GROUP = "operator_group";
+	static final String CATEGORY = "category";
+	static final String SUBCATEGORY = "subcategory";
+	static final String SECOND_LINE = "second_line";
+	static final String OPTIONAL_FIELDS = "optional_fields";
+	static final String VERIFY = "verify";
+	static final String ASYNC = "async";
+	static final String DEDUPLICATE = "deduplicate";
+	static final String DEDUPLICATION_FIELDS = "deduplication_fields";
+	static final String COALESCE_WINDOW = "coalesce_window";
+	static final String COALESCE_MAX_ALERTS = "coalesce_max_alerts";
+	static final String COALESCE_FIELDS = "coalesce_fields";
+	static final String ESCAPE_HTML = "escape_html";
+	static final String ATTACHMENT = "attachment";
+	static final String ATTACHMENT_MAX_SIZE = "attachment_max_size";
+	static final String ATTACHMENT_GZIP = "attachment_gzip";
+	static final String ROUTING_RULES = "routing_rules";
+
+	static final String SUMMARY = "summary";
+	static final String DESCRIPTION = "description";
 
 	private static final Logger LOG = LoggerFactory.getLogger(TopdeskAlarmCallback.class);
 	
-	private Configuration configuration;
+	private final TopdeskIncidentSender incidentSender;
+	private final TopdeskIncidentDispatcher incidentDispatcher;
+	private final TopdeskOutbox outbox;
+	private final TopdeskIncidentCoalescer incidentCoalescer;
+	private final TopdeskMetrics metrics;
+	private final TopdeskWarmUp warmUp;
+	private final TopdeskConfigRegistry configRegistry;
 
+	private Configuration configuration;
+	private TopdeskConfig config;
+	private ConfigurationException configurationError;
+
+	@Inject
+	public TopdeskAlarmCallback(TopdeskIncidentSender incidentSender, TopdeskIncidentDispatcher incidentDispatcher,
+								TopdeskOutbox outbox, TopdeskIncidentCoalescer incidentCoalescer, TopdeskMetrics metrics,
+								TopdeskWarmUp warmUp, TopdeskConfigRegistry configRegistry) {
+		this.incidentSender = incidentSender;
+		this.incidentDispatcher = incidentDispatcher;
+		this.outbox = outbox;
+		this.incidentCoalescer = incidentCoalescer;
+		this.metrics = metrics;
+		this.warmUp = warmUp;
+		this.configRegistry = configRegistry;
+	}
 
 	@Override
 	public void call(Stream stream, CheckResult result) throws AlarmCallbackException {
-		String description = configuration.getString(DESCRIPTION);
-		String optionalFields = configuration.getString(OPTIONAL_FIELDS);
-
-		description = description.replace("%stream%", stream.getTitle());
-
-		SimpleDateFormat sdf =  new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
-		TimeZone tz = TimeZone.getDefault();
-		sdf.setTimeZone(tz);
-		String dateTime = sdf.format(new Date());
-
-		description = description.replace("%triggeredAt%", dateTime);
-
-		if (result.getMatchingMessages().size() > 0) {
-			List<Message> messages = getAlarmBacklog(result);
-			Message message = messages.get(0);
-			description.replace("%message%", messages.get(0).getMessage());
+		if (config == null) {
+			throw new AlarmCallbackException("Invalid Topdesk configuration: " + configurationError.getMessage());
+		}
+		Timer.Context timer = metrics.timer(config.getEndpoint(), "call").time();
+		try {
+			call(config, stream, result);
+		} finally {
+			timer.stop();
+		}
+	}
 
-			if (message != null) {
-				Map<String, Object> fields = message.getFields();
+	private void call(TopdeskConfig config, Stream stream, CheckResult result) throws AlarmCallbackException {
+		String dateTime = config.getTriggeredAtFormatter().format(Instant.now());
+
+		TopdeskBacklog backlog = config.newBacklog(getAlarmBacklog(result));
+
+		Timer.Context renderTimer = metrics.timer(config.getEndpoint(), "render").time();
+		String description = config.getDescriptionTemplate().render(stream.getTitle(), dateTime, backlog,
+				config.isEscapeHtml());
+		Map<String, Map<String, String>> optionalFields = config.renderOptionalFields(stream.getTitle(), dateTime, backlog);
+		renderTimer.stop();
+		LOG.debug("Description: {}", description);
+		LOG.debug("Optional fields: {}", optionalFields);
+
+		String fingerprint = null;
+		String action = null;
+		if (config.isDeduplicate()) {
+			fingerprint = TopdeskIncidentIndex.fingerprint(stream.getId(), result.getTriggeredCondition().getId(),
+					backlog.first(), config.getDeduplicationFields());
+			action = "Alert triggered again on stream " + stream.getTitle() + " at " + dateTime + ": "
+					+ result.getResultDescription();
+		}
+		TopdeskConfig routed;
+		try {
+			routed = config.route(backlog.first());
+		} catch (ConfigurationException e) {
+			throw new AlarmCallbackException("Invalid Topdesk routing rule: " + e.getMessage());
+		}
+		TopdeskIncident incident = new TopdeskIncident(routed, description, optionalFields,
+				fingerprint, action);
+		if (config.getAttachmentFormat() != null) {
+			incident = incident.withBacklog(backlog.getMessages());
+		}
 
-				Iterator it = fields.entrySet().iterator();
-				while (it.hasNext()) {
-					Map.Entry pair = (Map.Entry) it.next();
-					description = description.replace("%" + pair.getKey() + "%", pair.getValue().toString());
-					optionalFields = optionalFields.replace("%" + pair.getKey() + "%", pair.getValue().toString());
+		if (config.getCoalesceWindowMillis() > 0) {
+			Message message = backlog.first();
+			Map<String, Object> keyFields = new LinkedHashMap<>();
+			for (String field : config.getCoalesceFields()) {
+				if (message != null && message.hasField(field)) {
+					keyFields.put(field, message.getField(field));
 				}
 			}
+			incident = incidentCoalescer.add(routed,
+					new TopdeskIncidentCoalescer.Alert(stream.getTitle(), dateTime, keyFields, incident),
+					config.getCoalesceWindowMillis(), config.getCoalesceMaxAlerts());
+			if (incident == null) {
+				return;
+			}
 		}
-		System.out.println("Description: " + description);
-		System.out.println("Optional fields: " + optionalFields);
+
 		try {
-			OkHttpClient client = getUnsafeOkHttpClient();
-			postIncident(client, description, optionalFields);
-		} catch (ParseException|IOException e) {
-			throw new AlarmCallbackException(e.toString());
+			incident = outbox.append(incident);
+		} catch (IOException e) {
+			LOG.error("Couldn't store incident in the Topdesk outbox, it won't be retried if delivery fails", e);
 		}
 
+		if (config.isAsync()) {
+			incidentDispatcher.submit(incident);
+			return;
+		}
+
+		try {
+			incidentSender.send(incident);
+		} catch (IOException e) {
+			if (incident.getOutboxId() != TopdeskIncident.NOT_STORED) {
+				throw new AlarmCallbackException(e.toString() + ", the incident will be retried from the outbox");
+			}
+			throw new AlarmCallbackException(e.toString());
+		}
 	}
 
+	/**
+	 * Returns a view on the backlog messages, messages are only resolved when they are used.
+	 */
 	protected List<Message> getAlarmBacklog(AlertCondition.CheckResult result) {
 		final AlertCondition alertCondition = result.getTriggeredCondition();
 		final List<MessageSummary> matchingMessages = result.getMatchingMessages();
@@ -133,50 +199,31 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 			return Collections.emptyList();
 		}
 
-		final List<MessageSummary> backlogSummaries = matchingMessages.subList(0, effectiveBacklogSize);
-
-		final List<Message> backlog = Lists.newArrayListWithCapacity(effectiveBacklogSize);
-
-		for (MessageSummary messageSummary : backlogSummaries) {
-			backlog.add(messageSummary.getRawMessage());
-		}
-
-		return backlog;
+		return Lists.transform(matchingMessages.subList(0, effectiveBacklogSize), MessageSummary::getRawMessage);
 	}
 
-	public void postIncident(OkHttpClient client, String description, String optionalFields) throws IOException, ParseException {
-		String token = login(client);
-
-		post(client, token, description, optionalFields);
-
-		logout(client, token);
-	}
-
-	String login(OkHttpClient client) throws IOException{
-
-		String encodedAuth = new String(Base64.encodeBase64((configuration.getString(USERNAME)+":"+configuration.getString(PASSWORD)).getBytes()));
-
-
-		Request request = new Request.Builder()
-				.url(configuration.getString(ENDPOINT)+"/tas/api/login/" + configuration.getString(LOGIN_MODE))
-				.addHeader("Authorization", "Basic " + encodedAuth)
-				.get()
-				.build();
-		LOG.info("request: " + request.header("Authorization"));
-		Response response = client.newCall(request).execute();
-		return response.body().string();
+	static List<String> splitFields(String fields) {
+		if (fields == null) {
+			return Collections.emptyList();
+		}
+		List<String> fieldList = new ArrayList<>();
+		for (String field : fields.split(",")) {
+			if (!field.trim().isEmpty()) {
+				fieldList.add(field.trim());
+			}
+		}
+		return fieldList;
 	}
 
 	@VisibleForTesting
-	Map<String, JSONObject> parseOptionalFields(String optionalFields){
-		Map<String, JSONObject> optionalFieldMap = new HashMap<String, JSONObject>();
+	static Map<String, Map<String, String>> parseOptionalFields(String optionalFields){
+		Map<String, Map<String, String>> optionalFieldMap = new LinkedHashMap<>();
 
-		JSONObject optionalFields1 = new JSONObject();
-		JSONObject optionalFields2 = new JSONObject();
+		Map<String, String> optionalFields1 = new LinkedHashMap<>();
+		Map<String, String> optionalFields2 = new LinkedHashMap<>();
 
 		if (!optionalFields.equals("")){
 			String[] optionalFieldList = optionalFields.split(",");
-			int i=0;
 
 			for (String optionalField: optionalFieldList) {
 				String[] keyValues = optionalField.split(":");
@@ -201,275 +248,14 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 	}
 
 
-	void post(OkHttpClient client, String token, String description, String optionalFields) throws HTTPException, ParseException, IOException {
-		JSONObject jsonRequest= new JSONObject();
-
-		JSONObject callerLookup = new JSONObject();
-		callerLookup.put("email", configuration.getString(CALLER_EMAIL));
-		jsonRequest.put("callerLookup", callerLookup);
-
-		jsonRequest.put("briefDescription", configuration.getString(SUMMARY));
-		jsonRequest.put("request", description);
-
-		Map<String, JSONObject> optionalFieldsMap = parseOptionalFields(optionalFields);
-
-		if (!optionalFieldsMap.get("optionalFields1").isEmpty()) {
-			jsonRequest.put("optionalFields1", optionalFieldsMap.get("optionalFields1"));
-		}
-
-		if (!optionalFieldsMap.get("optionalFields2").isEmpty()) {
-			jsonRequest.put("optionalFields2", optionalFieldsMap.get("optionalFields2"));
-		}
-
-		if (configuration.stringIsSet(PRIORITY)) {
-			String priorityId = getId(client, token, PRIORITIES_URI, configuration.getString(PRIORITY), "name");
-			if (priorityId == null) {
-				LOG.error("No priority ID found for name [{}], not creating incident", configuration.getString(PRIORITY));
-				return;
-			}
-			JSONObject priority = new JSONObject();
-			priority.put("id", priorityId);
-			jsonRequest.put("priority", priority);
-		}
-
-		if (configuration.stringIsSet(ENTRY_TYPE)) {
-			String entryTypeId = getId(client, token, ENTRY_TYPES_URI, configuration.getString(ENTRY_TYPE), "name");
-			if (entryTypeId == null) {
-				LOG.error("No entry_type ID found for name [{}], not creating incident", configuration.getString(ENTRY_TYPE));
-				return;
-			}
-			JSONObject entryType = new JSONObject();
-			entryType.put("id", entryTypeId);
-			jsonRequest.put("entryType", entryType);
-		}
-
-		if (configuration.stringIsSet(CALL_TYPE)) {
-			String callTypeId = getId(client, token, CALL_TYPES_URI, configuration.getString(CALL_TYPE), "name");
-			if (callTypeId == null) {
-				LOG.error("No call_type ID found for name [{}], not creating incident", configuration.getString(CALL_TYPE));
-				return;
-			}
-			JSONObject callType = new JSONObject();
-			callType.put("id", callTypeId);
-			jsonRequest.put("callType", callType);
-		}
-
-		if (configuration.stringIsSet(IMPACT)) {
-			String impactId = getId(client, token, IMPACTS_URI, configuration.getString(IMPACT), "name");
-			if (impactId == null) {
-				LOG.error("No impact ID found for name [{}], not creating incident", configuration.getString(IMPACT));
-				return;
-			}
-			JSONObject impact = new JSONObject();
-			impact.put("id", impactId);
-			jsonRequest.put("impact", impact);
-		}
-
-		if (configuration.stringIsSet(URGENCY)) {
-			String urgencyId = getId(client, token, URGENCIES_URI, configuration.getString(URGENCY), "name");
-			if (urgencyId == null) {
-				LOG.error("No urgency ID found for name [{}], not creating incident", configuration.getString(URGENCY));
-				return;
-			}
-			JSONObject urgency = new JSONObject();
-			urgency.put("id", urgencyId);
-			jsonRequest.put("urgency", urgency);
-		}
-
-		if (configuration.stringIsSet(OPERATOR_GROUP)) {
-			String operatorGroupId = getId(client, token, OPERATOR_GROUPS_URI+"?name="+configuration.getString(OPERATOR_GROUP), configuration.getString(OPERATOR_GROUP), "groupName");
-			if (operatorGroupId == null) {
-				LOG.error("No operatorGroup ID found for name [{}], not creating incident", configuration.getString(OPERATOR_GROUP));
-				return;
-			}
-			JSONObject operatorGroup = new JSONObject();
-			operatorGroup.put("id", operatorGroupId);
-			jsonRequest.put("operatorGroup", operatorGroup);
-		}
-		if (configuration.stringIsSet(CATEGORY)) {
-			JSONObject category = new JSONObject();
-			category.put("name", configuration.getString(CATEGORY));
-			jsonRequest.put("category", category);
-		}
-		if (configuration.stringIsSet(SUBCATEGORY)) {
-			JSONObject subcategory = new JSONObject();
-			subcategory.put("name", configuration.getString(SUBCATEGORY));
-			jsonRequest.put("subcategory", subcategory);
-		}
-
-		if (configuration.getBoolean(SECOND_LINE)) {
-			jsonRequest.put("status", "secondLine");
-		}
-
-		JSONObject object = new JSONObject();
-		object.put("name", configuration.getString(OBJECT));
-		jsonRequest.put("object", object);
-
-
-		RequestBody body = RequestBody.create(JSON, jsonRequest.toString());
-
-		Request request = new Request.Builder()
-				.url(configuration.getString(ENDPOINT)+"/tas/api/incidents/")
-				.addHeader("Authorization", "TOKEN id=\"" + token +"\"")
-				.post(body)
-				.build();
-
-		Response response = client.newCall(request).execute();
-		String responseString = response.body().string();
-		if (response.code() != 201) {
-			LOG.error("Error during POST: " + responseString);
-			throw new HTTPException(response.code());
-		}
-
-		LOG.info(responseString);
-
-	}
-
-	String getId(OkHttpClient client, String token, String URI, String name, String keyName) throws IOException, ParseException {
-
-		byte[] encodedBytes = Base64.encodeBase64((configuration.getString(USERNAME) + ":" + configuration.getString(PASSWORD)).getBytes());
-
-		Request request = new Request.Builder()
-				.url(configuration.getString(ENDPOINT) + URI)
-				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
-				.get()
-				.build();
-		Response response = client.newCall(request).execute();
-		JSONParser parser = new JSONParser();
-		String jsonString = response.body().string();
-
-		Object object = parser.parse(jsonString);
-
-		JSONArray jsonArray = (JSONArray) object;
-		Iterator<JSONObject> iterator = jsonArray.iterator();
-
-		while (iterator.hasNext()) {
-			JSONObject current = iterator.next();
-			if (name.equals(current.get(keyName))){
-				return (String) current.get("id");
-			}
-
-		}
-		return null;
-	}
-
-
-	String logout(OkHttpClient client, String token) throws IOException{
-		byte[] encodedBytes = Base64.encodeBase64((configuration.getString(USERNAME)+":"+configuration.getString(PASSWORD)).getBytes());
-
-		Request request = new Request.Builder()
-				.url(configuration.getString(ENDPOINT)+"/tas/api/logout")
-				.addHeader("Authorization", "TOKEN id=\"" + token +"\"")
-				.get()
-				.build();
-		Response response = client.newCall(request).execute();
-		return response.body().string();
-	}
-
-
 	@Override
 	public void checkConfiguration() throws ConfigurationException {
-
-		if (!configuration.stringIsSet(ENDPOINT)) {
-			throw new ConfigurationException(ENDPOINT + " is mandatory and must be not be null or empty.");
-		}
-		if (!configuration.stringIsSet(PASSWORD)) {
-			throw new ConfigurationException(PASSWORD + " is mandatory and must be not be null or empty.");
+		if (configurationError != null) {
+			throw configurationError;
 		}
-
-		if (!configuration.stringIsSet(LOGIN_MODE)) {
-			throw new ConfigurationException(LOGIN_MODE + " is mandatory and must be not be null or empty.");
-		}
-
-		if (configuration.stringIsSet(OPTIONAL_FIELDS)) {
-			String[] optionalFields = configuration.getString(OPTIONAL_FIELDS).split(",");
-			if (optionalFields.length > 5){
-				throw new ConfigurationException("You can't supply more than 5 optional field values.");
-			}
-			for (String optionalField: optionalFields){
-				String[] keyValues = optionalField.split(":");
-				if (keyValues.length != 3) {
-					throw new ConfigurationException("Optional Fields are of format optionalFields1:key:value or optionalFields2:key:value.");
-				}
-			}
-
-
-		}
-/*
-		OkHttpClient client;
-		String token;
-
-		if (!configuration.stringIsSet(USERNAME)) {
-			throw new ConfigurationException(USERNAME + " is mandatory and must be not be null or empty.");
-		} else {
-			client = getUnsafeOkHttpClient();
-			try {
-				token = login(client);
-			} catch (IOException e) {
-				throw new ConfigurationException("Failed to connect to Topdesk. Please check your credentials.");
-			}
-		}
-
-		try {
-			if (configuration.stringIsSet(PRIORITY)) {
-				String priorityId = getId(client, token, PRIORITIES_URI, configuration.getString(PRIORITY), "name");
-				if (priorityId == null) {
-					throw new ConfigurationException( configuration.getString(PRIORITY) + " is not a valid " + PRIORITY);
-				}
-			}
-
-			if (configuration.stringIsSet(ENTRY_TYPE)) {
-				String priorityId = getId(client, token, ENTRY_TYPES_URI, configuration.getString(ENTRY_TYPE), "name");
-				if (priorityId == null) {
-					throw new ConfigurationException( configuration.getString(ENTRY_TYPE) + " is not a valid " + ENTRY_TYPE);
-				}
-			}
-
-			if (configuration.stringIsSet(CALL_TYPE)) {
-				String priorityId = getId(client, token, CALL_TYPES_URI, configuration.getString(CALL_TYPE), "name");
-				if (priorityId == null) {
-					throw new ConfigurationException( configuration.getString(CALL_TYPE) + " is not a valid " + CALL_TYPE);
-				}
-			}
-
-			if (configuration.stringIsSet(IMPACT)) {
-				String priorityId = getId(client, token, IMPACTS_URI, configuration.getString(IMPACT), "name");
-				if (priorityId == null) {
-					throw new ConfigurationException( configuration.getString(IMPACT) + " is not a valid " + IMPACT);
-				}
-			}
-
-			if (configuration.stringIsSet(URGENCY)) {
-				String priorityId = getId(client, token, URGENCIES_URI, configuration.getString(URGENCY), "name");
-				if (priorityId == null) {
-					throw new ConfigurationException( configuration.getString(URGENCY) + " is not a valid " + URGENCY);
-				}
-			}
-
-			if (configuration.stringIsSet(OPERATOR_GROUP)) {
-				String operatorGroupId = getId(client, token, OPERATOR_GROUPS_URI+"?name="+configuration.getString(OPERATOR_GROUP), configuration.getString(OPERATOR_GROUP), "groupName");
-				if (operatorGroupId == null) {
-					throw new ConfigurationException( configuration.getString(OPERATOR_GROUP) + " is not a valid " + OPERATOR_GROUP);
-				}
-			}
-			if (configuration.stringIsSet(CATEGORY)) {
-				String categoryId = getId(client, token, CATEGORIES_URI, configuration.getString(CATEGORY), "name");
-				if (categoryId == null) {
-					throw new ConfigurationException( configuration.getString(CATEGORY) + " is not a valid " + CATEGORY);
-				}
-			}
-			if (configuration.stringIsSet(SUBCATEGORY)) {
-				String subcategoryId = getId(client, token, SUBCATEGORIES_URI, configuration.getString(SUBCATEGORY), "name");
-				if (subcategoryId == null) {
-					throw new ConfigurationException( configuration.getString(SUBCATEGORY) + " is not a valid " + SUBCATEGORY);
-				}
-			}
-
-
-		} catch (ParseException|IOException e) {
-			throw new ConfigurationException( "Failed to verify configuration: " + e.getMessage());
+		if (config.isVerify()) {
+			warmUp.verify(config);
 		}
-		*/
 	}
 
 	@Override
@@ -497,6 +283,11 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 				"person", "person",
 				"operator", "operator");
 
+		final ImmutableMap<String, String> attachment_formats = ImmutableMap.of(
+				"none", "None",
+				"ndjson", "NDJSON",
+				"csv", "CSV");
+
 		final ConfigurationRequest configurationRequest = new ConfigurationRequest();
 		
 		configurationRequest.addField(new TextField(ENDPOINT, "Endpoint", "https://topdesk/",
@@ -545,8 +336,15 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 		configurationRequest.addField(new TextField(SUBCATEGORY, "Subcategory", "",
 				"", ConfigurationField.Optional.OPTIONAL));
 
+		configurationRequest.addField(new TextField(ROUTING_RULES, "Routing rules", "",
+				"One rule per line that sets the operator group, category, subcategory, priority, impact, urgency, entry type or call type from the fields of the first message, e.g. source=db-* and level<=3 -> operator_group=DBA, priority=P1. Conditions are field=value with * wildcards, field~regex, or numeric comparisons with <, <=, > and >=. The first matching rule wins.",
+				ConfigurationField.Optional.OPTIONAL, TextField.Attribute.TEXTAREA));
+
 		configurationRequest.addField(new TextField(DESCRIPTION, "Description", "",
-				"Full description for the incident. Use %fieldname% placeholders to replace with fields from the first message. Use %stream% for stream name and %triggeredAt% for triggered timestamp.", ConfigurationField.Optional.OPTIONAL));
+				"Full description for the incident. Use %fieldname% placeholders to replace with fields from the first message, or %fieldname|default% to use a default when the field is missing. Use %message% for the message, %stream% for stream name and %triggeredAt% for triggered timestamp. Use %backlog.count%, %backlog.first_timestamp%, %backlog.last_timestamp%, %backlog.distinct.fieldname% and %backlog.distinct_count.fieldname% for the backlog.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new BooleanField(ESCAPE_HTML, "Escape HTML", false,
+				"Escape HTML in the values that replace placeholders in the description."));
 
 		configurationRequest.addField(new BooleanField(SECOND_LINE, "Second Line", false,
 				""));
@@ -554,6 +352,36 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 		configurationRequest.addField(new TextField(OPTIONAL_FIELDS, "Optional fields", "",
 				"Comma separated list of optional fields (format is key:value) to add to the incident. Use %fieldname% placeholders to replace with fields from the first message.", ConfigurationField.Optional.OPTIONAL));
 
+		configurationRequest.addField(new DropdownField(ATTACHMENT, "Backlog attachment", "none",
+				attachment_formats, "Attach the messages of the alert backlog to the incident as a file.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new NumberField(ATTACHMENT_MAX_SIZE, "Backlog attachment maximum size", 1024,
+				"Maximum size of the backlog attachment in kilobytes before compression, messages that don't fit are left out.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new BooleanField(ATTACHMENT_GZIP, "Compress backlog attachment", false,
+				"Compress the backlog attachment with gzip."));
+
+		configurationRequest.addField(new BooleanField(VERIFY, "Verify configuration", false,
+				"Log in and look up all names in Topdesk when the callback is saved."));
+
+		configurationRequest.addField(new BooleanField(ASYNC, "Asynchronous", false,
+				"Queue the incident and return immediately, instead of waiting for Topdesk while the alert is evaluated."));
+
+		configurationRequest.addField(new BooleanField(DEDUPLICATE, "Deduplicate", false,
+				"Add repeated alerts to the progress trail of the open incident, instead of creating a new incident."));
+
+		configurationRequest.addField(new TextField(DEDUPLICATION_FIELDS, "Deduplication fields", "",
+				"Comma separated list of message fields that, together with the stream and alert condition, identify repeated alerts.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new NumberField(COALESCE_WINDOW, "Coalescing window", 0,
+				"Seconds during which alerts are collected and merged into one incident. 0 creates an incident per alert.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new NumberField(COALESCE_MAX_ALERTS, "Coalescing maximum alerts", 50,
+				"Maximum number of alerts merged into one incident, the incident is sent before the window closes when it is reached.", ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new TextField(COALESCE_FIELDS, "Coalescing fields", "",
+				"Comma separated list of message fields listed for every alert of a merged incident.", ConfigurationField.Optional.OPTIONAL));
+
 
 		return configurationRequest;
 	}
@@ -561,48 +389,13 @@ public class TopdeskAlarmCallback implements AlarmCallback {
 	@Override
 	public void initialize(Configuration config) {
 		this.configuration = config;
-	}
-
-
-	private static OkHttpClient getUnsafeOkHttpClient() {
 		try {
-			// Create a trust manager that does not validate certificate chains
-			final TrustManager[] trustAllCerts = new TrustManager[]{
-					new X509TrustManager() {
-						@Override
-						public void checkClientTrusted(java.security.cert.X509Certificate[] chain,
-													   String authType) throws CertificateException {
-						}
-
-						@Override
-						public void checkServerTrusted(java.security.cert.X509Certificate[] chain,
-													   String authType) throws CertificateException {
-						}
-
-						@Override
-						public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-							return new X509Certificate[0];
-						}
-					}
-			};
-
-			// Install the all-trusting trust manager
-			final SSLContext sslContext = SSLContext.getInstance("SSL");
-			sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-			// Create an ssl socket factory with our all-trusting manager
-			final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-
-			return new OkHttpClient.Builder()
-					.sslSocketFactory(sslSocketFactory, (X509TrustManager) trustAllCerts[0])
-					.hostnameVerifier(new HostnameVerifier() {
-						@Override
-						public boolean verify(String hostname, SSLSession session) {
-							return true;
-						}
-					}).build();
-
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			this.config = configRegistry.get(config);
+			this.configurationError = null;
+			warmUp.warmUp(this.config);
+		} catch (ConfigurationException e) {
+			this.config = null;
+			this.configurationError = e;
 		}
 	}
 	
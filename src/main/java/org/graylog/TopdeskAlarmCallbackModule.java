@@ -11,11 +11,31 @@ public class TopdeskAlarmCallbackModule extends PluginModule {
 
 	@Override
     public Set<? extends PluginConfigBean> getConfigBeans() {
-        return Collections.emptySet();
+        return Collections.singleton(new TopdeskPluginConfiguration());
     }
 
     @Override
-    protected void configure() {       
+    protected void configure() {
+    	bind(TopdeskMetrics.class).asEagerSingleton();
+    	bind(TopdeskConfigRegistry.class).asEagerSingleton();
+    	bind(TopdeskRetryPolicy.class).asEagerSingleton();
+    	bind(TopdeskRateLimitPolicy.class).asEagerSingleton();
+    	bind(TopdeskConcurrencyPolicy.class).asEagerSingleton();
+    	bind(TopdeskTimeoutPolicy.class).asEagerSingleton();
+    	bind(TopdeskClientRegistry.class).asEagerSingleton();
+    	bind(TopdeskSessionManager.class).asEagerSingleton();
+    	bind(TopdeskLookupTables.class).asEagerSingleton();
+    	bind(TopdeskLookupCache.class).asEagerSingleton();
+    	bind(TopdeskLookupResolver.class).asEagerSingleton();
+    	bind(TopdeskWarmUp.class).asEagerSingleton();
+    	bind(TopdeskOutbox.class).asEagerSingleton();
+    	bind(TopdeskIncidentIndex.class).asEagerSingleton();
+    	bind(TopdeskIncidentSender.class).asEagerSingleton();
+    	bind(TopdeskIncidentDispatcher.class).asEagerSingleton();
+    	bind(TopdeskOutboxReplayer.class).asEagerSingleton();
+    	bind(TopdeskIncidentCoalescer.class).asEagerSingleton();
+    	serviceBinder().addBinding().to(TopdeskLifecycleService.class);
+
     	addAlarmCallback(TopdeskAlarmCallback.class);
     }
 }
@@ -0,0 +1,147 @@
+package org.graylog;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The backlog of one alert, as a view on its messages. Messages are only looked at when a template or feature asks
+ * for them, and the aggregations templates refer to are computed in one pass over the backlog when first needed.
+ * <p>
+ * Templates can use {@code %backlog.count%}, {@code %backlog.first_timestamp%}, {@code %backlog.last_timestamp%},
+ * {@code %backlog.distinct.<field>%} (the distinct values of a field, comma separated) and
+ * {@code %backlog.distinct_count.<field>%}.
+ */
+public final class TopdeskBacklog {
+	static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ssZ")
+			.withZone(ZoneId.systemDefault());
+
+	static final String PREFIX = "backlog.";
+	static final String DISTINCT = "distinct.";
+	static final String DISTINCT_COUNT = "distinct_count.";
+
+	private static final Joiner JOINER = Joiner.on(", ");
+
+	private final List<Message> messages;
+	private final Set<String> distinctFields;
+	private boolean aggregated;
+	private DateTime firstTimestamp;
+	private DateTime lastTimestamp;
+	private Map<String, Set<String>> distinctValues;
+
+	/**
+	 * @param messages       the messages, usually a lazy view on the matching messages of the alert
+	 * @param distinctFields the fields whose distinct values are computed in the single pass over the backlog
+	 */
+	public TopdeskBacklog(List<Message> messages, Set<String> distinctFields) {
+		this.messages = messages;
+		this.distinctFields = distinctFields;
+	}
+
+	public static TopdeskBacklog of(Message message) {
+		return new TopdeskBacklog(message == null ? Collections.<Message>emptyList() : Collections.singletonList(message),
+				ImmutableSet.<String>of());
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Returns the first message, or {@code null} if the backlog is empty.
+	 */
+	public Message first() {
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	public List<Message> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Returns the value of the aggregation with the given name, without the {@code backlog.} prefix, or {@code null}
+	 * if it has no value.
+	 */
+	String value(String name) {
+		if ("count".equals(name)) {
+			return String.valueOf(messages.size());
+		}
+		if ("first_timestamp".equals(name)) {
+			aggregate();
+			return format(firstTimestamp);
+		}
+		if ("last_timestamp".equals(name)) {
+			aggregate();
+			return format(lastTimestamp);
+		}
+		if (name.startsWith(DISTINCT)) {
+			Set<String> values = distinctValues(name.substring(DISTINCT.length()));
+			return values.isEmpty() ? null : JOINER.join(values);
+		}
+		if (name.startsWith(DISTINCT_COUNT)) {
+			return String.valueOf(distinctValues(name.substring(DISTINCT_COUNT.length())).size());
+		}
+		return null;
+	}
+
+	private Set<String> distinctValues(String field) {
+		aggregate();
+		Set<String> values = distinctValues.get(field);
+		if (values == null) {
+			// Not known when the backlog was created, needs a pass of its own
+			values = new LinkedHashSet<>();
+			for (Message message : messages) {
+				addValue(values, message, field);
+			}
+			distinctValues.put(field, values);
+		}
+		return values;
+	}
+
+	private void aggregate() {
+		if (aggregated) {
+			return;
+		}
+		aggregated = true;
+		distinctValues = new HashMap<>();
+		for (String field : distinctFields) {
+			distinctValues.put(field, new LinkedHashSet<String>());
+		}
+		for (Message message : messages) {
+			DateTime timestamp = message.getTimestamp();
+			if (timestamp != null) {
+				if (firstTimestamp == null || timestamp.isBefore(firstTimestamp)) {
+					firstTimestamp = timestamp;
+				}
+				if (lastTimestamp == null || timestamp.isAfter(lastTimestamp)) {
+					lastTimestamp = timestamp;
+				}
+			}
+			for (Map.Entry<String, Set<String>> values : distinctValues.entrySet()) {
+				addValue(values.getValue(), message, values.getKey());
+			}
+		}
+	}
+
+	private static void addValue(Set<String> values, Message message, String field) {
+		Object value = message.getField(field);
+		if (value != null) {
+			values.add(value.toString());
+		}
+	}
+
+	private static String format(DateTime timestamp) {
+		return timestamp == null ? null : TIMESTAMP_FORMATTER.format(Instant.ofEpochMilli(timestamp.getMillis()));
+	}
+}
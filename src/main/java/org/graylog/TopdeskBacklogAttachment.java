@@ -0,0 +1,189 @@
+package org.graylog;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+import org.graylog2.plugin.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The messages of an alert backlog as an NDJSON or CSV file. The file is written record by record straight into the
+ * request, without building it in memory, and optionally gzipped. Writing stops before the uncompressed file exceeds
+ * the maximum size.
+ */
+public final class TopdeskBacklogAttachment extends RequestBody {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskBacklogAttachment.class);
+
+	private static final MediaType GZIP = MediaType.parse("application/gzip");
+	private static final List<String> FIRST_COLUMNS = Arrays.asList("timestamp", "source", "message");
+
+	public enum Format {
+		NDJSON("ndjson", MediaType.parse("application/x-ndjson; charset=utf-8")),
+		CSV("csv", MediaType.parse("text/csv; charset=utf-8"));
+
+		private final String extension;
+		private final MediaType mediaType;
+
+		Format(String extension, MediaType mediaType) {
+			this.extension = extension;
+			this.mediaType = mediaType;
+		}
+
+		/**
+		 * Returns the format with the given name, or {@code null} for no attachment.
+		 */
+		public static Format of(String name) {
+			if (name == null || name.isEmpty() || "none".equals(name)) {
+				return null;
+			}
+			return valueOf(name.toUpperCase(Locale.ENGLISH));
+		}
+	}
+
+	private final List<Message> messages;
+	private final Format format;
+	private final long maxBytes;
+	private final boolean gzip;
+
+	public TopdeskBacklogAttachment(List<Message> messages, Format format, long maxBytes, boolean gzip) {
+		this.messages = messages;
+		this.format = format;
+		this.maxBytes = maxBytes;
+		this.gzip = gzip;
+	}
+
+	public String getFileName() {
+		return "backlog." + format.extension + (gzip ? ".gz" : "");
+	}
+
+	@Override
+	public MediaType contentType() {
+		return gzip ? GZIP : format.mediaType;
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		BufferedSink out = gzip ? Okio.buffer(new GzipSink(notClosing(sink))) : sink;
+		Buffer record = new Buffer();
+		long written = 0;
+		int count = 0;
+
+		List<String> columns = null;
+		if (format == Format.CSV) {
+			columns = columns(messages);
+			writeCsv(record, columns, null);
+		}
+		for (Message message : messages) {
+			if (format == Format.CSV) {
+				writeCsv(record, columns, message.getFields());
+			} else {
+				writeJson(record, message.getFields());
+			}
+			if (written + record.size() > maxBytes) {
+				break;
+			}
+			written += record.size();
+			out.write(record, record.size());
+			count++;
+		}
+		record.clear();
+		if (count < messages.size()) {
+			LOG.debug("Attached {} of {} backlog messages, the others would exceed {} bytes", count, messages.size(), maxBytes);
+		}
+		if (gzip) {
+			// Writes the gzip trailer without closing the request
+			out.close();
+		} else {
+			out.emit();
+		}
+	}
+
+	private static Sink notClosing(BufferedSink sink) {
+		return new ForwardingSink(sink) {
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+
+	private static void writeJson(Buffer record, Map<String, Object> fields) throws IOException {
+		try (JsonGenerator generator = TopdeskJson.FACTORY.createGenerator(record.outputStream())) {
+			generator.writeStartObject();
+			for (Map.Entry<String, Object> field : fields.entrySet()) {
+				Object value = field.getValue();
+				generator.writeFieldName(field.getKey());
+				if (value == null) {
+					generator.writeNull();
+				} else if (value instanceof Number) {
+					generator.writeNumber(value.toString());
+				} else if (value instanceof Boolean) {
+					generator.writeBoolean((Boolean) value);
+				} else {
+					generator.writeString(value.toString());
+				}
+			}
+			generator.writeEndObject();
+		}
+		record.writeByte('\n');
+	}
+
+	/**
+	 * Writes a row with the values of the fields, or the header if {@code fields} is {@code null}.
+	 */
+	private static void writeCsv(Buffer record, List<String> columns, Map<String, Object> fields) {
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				record.writeByte(',');
+			}
+			Object value = fields == null ? columns.get(i) : fields.get(columns.get(i));
+			if (value != null) {
+				writeCsvValue(record, value.toString());
+			}
+		}
+		record.writeUtf8("\r\n");
+	}
+
+	private static void writeCsvValue(Buffer record, String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote) {
+			record.writeUtf8(value);
+			return;
+		}
+		record.writeByte('"').writeUtf8(value.replace("\"", "\"\"")).writeByte('"');
+	}
+
+	private static List<String> columns(List<Message> messages) {
+		TreeSet<String> fields = new TreeSet<>();
+		for (Message message : messages) {
+			fields.addAll(message.getFields().keySet());
+		}
+		List<String> columns = new ArrayList<>(fields.size());
+		for (String column : FIRST_COLUMNS) {
+			if (fields.remove(column)) {
+				columns.add(column);
+			}
+		}
+		columns.addAll(fields);
+		return columns;
+	}
+}
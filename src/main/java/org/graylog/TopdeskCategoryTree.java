@@ -0,0 +1,79 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The categories of a Topdesk endpoint with their subcategories, to resolve a category and subcategory by name to
+ * their IDs, and to check that the subcategory belongs to the category, without asking Topdesk.
+ */
+public final class TopdeskCategoryTree {
+	private final TopdeskLookupTable categories;
+	private final Map<String, TopdeskLookupTable> subcategories;
+
+	private TopdeskCategoryTree(TopdeskLookupTable categories, Map<String, TopdeskLookupTable> subcategories) {
+		this.categories = categories;
+		this.subcategories = subcategories;
+	}
+
+	/**
+	 * Returns the tree of the lists, or {@code null} if the categories aren't known. Without subcategories, only
+	 * categories are resolved.
+	 */
+	static TopdeskCategoryTree of(TopdeskLookupTable categories, TopdeskLookupTable subcategories) {
+		if (categories == null) {
+			return null;
+		}
+		if (subcategories == null) {
+			return new TopdeskCategoryTree(categories, null);
+		}
+		Map<String, List<TopdeskLookupTable.Entry>> children = new HashMap<>();
+		for (TopdeskLookupTable.Entry subcategory : subcategories.getEntries()) {
+			if (subcategory.getParentId() != null) {
+				children.computeIfAbsent(subcategory.getParentId(), id -> new ArrayList<>()).add(subcategory);
+			}
+		}
+		ImmutableMap.Builder<String, TopdeskLookupTable> byCategory = ImmutableMap.builder();
+		for (Map.Entry<String, List<TopdeskLookupTable.Entry>> category : children.entrySet()) {
+			byCategory.put(category.getKey(), new TopdeskLookupTable(category.getValue()));
+		}
+		return new TopdeskCategoryTree(categories, byCategory.build());
+	}
+
+	/**
+	 * Returns the IDs of the category and subcategory, by the name of the incident property. The subcategory is
+	 * left out when it is {@code null}, or when the subcategories aren't known.
+	 *
+	 * @throws UnknownCategoryException if the category doesn't exist, or the subcategory doesn't belong to it
+	 */
+	public Map<String, String> resolve(String category, String subcategory) throws UnknownCategoryException {
+		String categoryId = categories.getId(category);
+		if (categoryId == null) {
+			throw new UnknownCategoryException(category + " is not a valid category");
+		}
+		if (subcategory == null || subcategories == null) {
+			return ImmutableMap.of("category", categoryId);
+		}
+		TopdeskLookupTable children = subcategories.get(categoryId);
+		String subcategoryId = children == null ? null : children.getId(subcategory);
+		if (subcategoryId == null) {
+			throw new UnknownCategoryException(subcategory + " is not a valid subcategory of " + category);
+		}
+		return ImmutableMap.of("category", categoryId, "subcategory", subcategoryId);
+	}
+
+	/**
+	 * Thrown for a category or subcategory that doesn't exist in Topdesk.
+	 */
+	public static class UnknownCategoryException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UnknownCategoryException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.graylog;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to an endpoint after a number of consecutive failures. While open, requests fail
+ * immediately. After the open duration a limited number of probe requests are let through, and the breaker closes
+ * again when they all succeed.
+ */
+public class TopdeskCircuitBreaker {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskCircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String endpoint;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final int halfOpenProbes;
+	private final Ticker ticker;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private int probesInFlight;
+	private int probeSuccesses;
+
+	public TopdeskCircuitBreaker(String endpoint, int failureThreshold, long openNanos, int halfOpenProbes, Ticker ticker) {
+		this.endpoint = endpoint;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openNanos;
+		this.halfOpenProbes = halfOpenProbes;
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Returns whether a request may be sent now. Every permitted request has to be followed by
+	 * {@link #onSuccess()}, {@link #onFailure()} or {@link #release()}.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.OPEN) {
+			if (ticker.read() - openedAt < openNanos) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+			probeSuccesses = 0;
+			LOG.info("Probing Topdesk endpoint {} again", endpoint);
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesInFlight >= halfOpenProbes) {
+				return false;
+			}
+			probesInFlight++;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back a permitted request that ended without telling whether the endpoint works, so its probe can be
+	 * sent again.
+	 */
+	public synchronized void release() {
+		if (state == State.HALF_OPEN) {
+			probesInFlight = Math.max(0, probesInFlight - 1);
+		}
+	}
+
+	public synchronized void onSuccess() {
+		if (state == State.HALF_OPEN) {
+			probesInFlight = Math.max(0, probesInFlight - 1);
+			if (++probeSuccesses >= halfOpenProbes) {
+				state = State.CLOSED;
+				LOG.info("Topdesk endpoint {} is available again", endpoint);
+			}
+		}
+		failures = 0;
+	}
+
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+			state = State.OPEN;
+			openedAt = ticker.read();
+			failures = 0;
+			LOG.warn("Topdesk endpoint {} is failing, not sending requests for {} ms", endpoint, openNanos / 1000000);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
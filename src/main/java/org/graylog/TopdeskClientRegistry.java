@@ -0,0 +1,141 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.annotations.VisibleForTesting;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds one long-lived {@link OkHttpClient} per Topdesk endpoint, so connections are kept alive and
+ * reused across alerts instead of doing a new TCP and TLS handshake for every request.
+ */
+@Singleton
+public class TopdeskClientRegistry {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskClientRegistry.class);
+
+	private static final X509TrustManager TRUST_ALL = new X509TrustManager() {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	};
+
+	private static final HostnameVerifier TRUST_ALL_HOSTNAMES = new HostnameVerifier() {
+		@Override
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
+	private final ConcurrentMap<String, OkHttpClient> clients = new ConcurrentHashMap<>();
+	private final int maxIdleConnections;
+	private final Duration keepAlive;
+	private final TopdeskRetryPolicy retryPolicy;
+	private final TopdeskRateLimitPolicy rateLimitPolicy;
+	private final TopdeskConcurrencyPolicy concurrencyPolicy;
+	private final TopdeskTimeoutPolicy timeoutPolicy;
+	private final TopdeskMetrics metrics;
+	private final SSLSocketFactory sslSocketFactory;
+
+	@Inject
+	public TopdeskClientRegistry(@Named("topdesk_connection_pool_max_idle") int maxIdleConnections,
+								 @Named("topdesk_connection_keep_alive") Duration keepAlive,
+								 TopdeskRetryPolicy retryPolicy,
+								 TopdeskRateLimitPolicy rateLimitPolicy,
+								 TopdeskConcurrencyPolicy concurrencyPolicy,
+								 TopdeskTimeoutPolicy timeoutPolicy,
+								 TopdeskMetrics metrics) {
+		this.maxIdleConnections = maxIdleConnections;
+		this.keepAlive = keepAlive;
+		this.retryPolicy = retryPolicy;
+		this.rateLimitPolicy = rateLimitPolicy;
+		this.concurrencyPolicy = concurrencyPolicy;
+		this.timeoutPolicy = timeoutPolicy;
+		this.metrics = metrics;
+		this.sslSocketFactory = createUnsafeSslSocketFactory();
+	}
+
+	@VisibleForTesting
+	TopdeskClientRegistry(int maxIdleConnections, Duration keepAlive) {
+		this(maxIdleConnections, keepAlive, TopdeskRetryPolicy.NONE, TopdeskRateLimitPolicy.NONE, TopdeskConcurrencyPolicy.NONE,
+				TopdeskTimeoutPolicy.NONE, new TopdeskMetrics(new MetricRegistry()));
+	}
+
+	/**
+	 * Returns the shared client for the given endpoint, creating it on first use.
+	 */
+	public OkHttpClient get(String endpoint) {
+		return clients.computeIfAbsent(key(endpoint), this::createClient);
+	}
+
+	public void shutdown() {
+		for (OkHttpClient client : clients.values()) {
+			client.dispatcher().executorService().shutdown();
+			client.connectionPool().evictAll();
+		}
+		clients.clear();
+	}
+
+	static String key(String endpoint) {
+		HttpUrl url = HttpUrl.parse(endpoint);
+		if (url == null) {
+			return endpoint;
+		}
+		return url.scheme() + "://" + url.host() + ":" + url.port();
+	}
+
+	private OkHttpClient createClient(String endpoint) {
+		LOG.debug("Creating Topdesk client for {} with a pool of {} idle connections kept alive for {}", endpoint, maxIdleConnections, keepAlive);
+		return new OkHttpClient.Builder()
+				.addInterceptor(metrics.newInterceptor(endpoint))
+				// Every retry takes a token and a permit, the retry interceptor ignores the failures of the limits
+				.addInterceptor(retryPolicy.newInterceptor(endpoint))
+				.addInterceptor(rateLimitPolicy.newRateLimiter(endpoint))
+				.addInterceptor(concurrencyPolicy.newConcurrencyLimiter(endpoint))
+				.addInterceptor(new TopdeskDeadlineInterceptor())
+				.connectTimeout(timeoutPolicy.getConnectTimeout().getQuantity(), timeoutPolicy.getConnectTimeout().getUnit())
+				.readTimeout(timeoutPolicy.getReadTimeout().getQuantity(), timeoutPolicy.getReadTimeout().getUnit())
+				.writeTimeout(timeoutPolicy.getWriteTimeout().getQuantity(), timeoutPolicy.getWriteTimeout().getUnit())
+				.connectionPool(new ConnectionPool(maxIdleConnections, keepAlive.getQuantity(), keepAlive.getUnit()))
+				.sslSocketFactory(sslSocketFactory, TRUST_ALL)
+				.hostnameVerifier(TRUST_ALL_HOSTNAMES)
+				.build();
+	}
+
+	private static SSLSocketFactory createUnsafeSslSocketFactory() {
+		try {
+			// Install an all-trusting trust manager, certificates are not verified
+			final SSLContext sslContext = SSLContext.getInstance("SSL");
+			sslContext.init(null, new TrustManager[]{TRUST_ALL}, new java.security.SecureRandom());
+			return sslContext.getSocketFactory();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
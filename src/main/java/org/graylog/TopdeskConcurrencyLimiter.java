@@ -0,0 +1,248 @@
+package org.graylog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to one endpoint, adapting the limit to what Topdesk can handle.
+ * <p>
+ * The limit grows by one per limit's worth of successful requests while it is in use (additive increase), and is
+ * halved when a request fails with a connection error, 429 or 5xx, or takes more than twice the usual latency
+ * (multiplicative decrease). Requests over the limit wait for a request to finish, up to a maximum time. A request
+ * is finished when its response body is read or closed, so the latency includes the transfer of the body. Requests
+ * stopped before they were sent, by the delivery deadline or an unexpected exception, don't change the limit.
+ */
+public class TopdeskConcurrencyLimiter implements Interceptor {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskConcurrencyLimiter.class);
+
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double BASELINE_SMOOTHING = 0.05;
+
+	private final String endpoint;
+	private final int maxLimit;
+	private final long maxWaitNanos;
+	private final Ticker ticker;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	private double limit;
+	private int inFlight;
+	private double baselineNanos;
+	private long lastDecrease = Long.MIN_VALUE;
+
+	public TopdeskConcurrencyLimiter(String endpoint, int initialLimit, int maxLimit, long maxWaitNanos, Ticker ticker) {
+		this.endpoint = endpoint;
+		this.limit = Math.min(initialLimit, maxLimit);
+		this.maxLimit = maxLimit;
+		this.maxWaitNanos = maxWaitNanos;
+		this.ticker = ticker;
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		final Permit permit = acquire();
+		Response response = null;
+		boolean sendFailed = false;
+		try {
+			response = chain.proceed(chain.request());
+		} catch (IOException e) {
+			sendFailed = !TopdeskRetryInterceptor.isLocal(e);
+			throw e;
+		} finally {
+			if (response == null) {
+				if (sendFailed) {
+					release(permit, true);
+				} else {
+					// The request wasn't sent, so it tells nothing about the endpoint
+					cancel();
+				}
+			}
+		}
+		final boolean failed = response.code() == 429 || response.code() >= 500;
+		ResponseBody body = response.body();
+		if (body == null) {
+			release(permit, failed);
+			return response;
+		}
+		// The request is in flight until its body is read and closed
+		return response.newBuilder()
+				.body(new ReleasingResponseBody(body, () -> release(permit, failed)))
+				.build();
+	}
+
+	@VisibleForTesting
+	static final class Permit {
+		private final long startedAt;
+		private final boolean busy;
+
+		private Permit(long startedAt, boolean busy) {
+			this.startedAt = startedAt;
+			this.busy = busy;
+		}
+	}
+
+	@VisibleForTesting
+	Permit acquire() throws IOException {
+		lock.lock();
+		try {
+			long remaining = Math.min(maxWaitNanos, TopdeskDeadline.remainingNanos());
+			while (inFlight >= (int) limit) {
+				if (remaining <= 0) {
+					TopdeskDeadline.check(0, "waiting for the concurrency limit");
+					throw new ConcurrencyLimitException(endpoint, (int) limit);
+				}
+				remaining = released.awaitNanos(remaining);
+			}
+			inFlight++;
+			return new Permit(ticker.read(), inFlight * 2 >= limit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the Topdesk concurrency limit");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@VisibleForTesting
+	void release(Permit permit, boolean failed) {
+		long now = ticker.read();
+		long latency = now - permit.startedAt;
+		lock.lock();
+		try {
+			inFlight--;
+			boolean slow = baselineNanos > 0 && latency > baselineNanos * LATENCY_TOLERANCE;
+			if (!failed) {
+				baselineNanos = baselineNanos == 0 ? latency : baselineNanos + (latency - baselineNanos) * BASELINE_SMOOTHING;
+			}
+			if (failed || slow) {
+				// Requests that were already running when the limit was lowered don't lower it again
+				if (permit.startedAt > lastDecrease) {
+					limit = Math.max(1, limit / 2);
+					lastDecrease = now;
+					LOG.debug("Lowered concurrency limit of Topdesk endpoint {} to {}", endpoint, (int) limit);
+				}
+			} else if (permit.busy) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives back the permit of a request that wasn't sent, without changing the limit or the usual latency.
+	 */
+	@VisibleForTesting
+	void cancel() {
+		lock.lock();
+		try {
+			inFlight--;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the release once, when the body is closed or fully read.
+	 */
+	private static final class ReleasingResponseBody extends ResponseBody {
+		private final ResponseBody delegate;
+		private final Runnable release;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private BufferedSource source;
+
+		private ReleasingResponseBody(ResponseBody delegate, Runnable release) {
+			this.delegate = delegate;
+			this.release = release;
+		}
+
+		@Override
+		public MediaType contentType() {
+			return delegate.contentType();
+		}
+
+		@Override
+		public long contentLength() {
+			return delegate.contentLength();
+		}
+
+		@Override
+		public synchronized BufferedSource source() {
+			if (source == null) {
+				source = Okio.buffer(new ForwardingSource(delegate.source()) {
+					@Override
+					public long read(Buffer sink, long byteCount) throws IOException {
+						long read = super.read(sink, byteCount);
+						if (read == -1) {
+							release();
+						}
+						return read;
+					}
+
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							release();
+						}
+					}
+				});
+			}
+			return source;
+		}
+
+		private void release() {
+			if (released.compareAndSet(false, true)) {
+				release.run();
+			}
+		}
+	}
+
+	/**
+	 * Thrown without sending the request when no request to the endpoint finished within the maximum wait.
+	 */
+	public static class ConcurrencyLimitException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ConcurrencyLimitException(String endpoint, int limit) {
+			super("Concurrency limit of " + limit + " requests to Topdesk endpoint " + endpoint + " reached, not sending request");
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.base.Ticker;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * The concurrency limit settings, creating the concurrency limiter of each endpoint's client.
+ */
+@Singleton
+public class TopdeskConcurrencyPolicy {
+	/** Never limits requests. */
+	static final TopdeskConcurrencyPolicy NONE = new TopdeskConcurrencyPolicy(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.seconds(0));
+
+	private final int initialLimit;
+	private final int maxLimit;
+	private final long maxWaitNanos;
+
+	@Inject
+	public TopdeskConcurrencyPolicy(@Named("topdesk_concurrency_initial_limit") int initialLimit,
+									@Named("topdesk_concurrency_max_limit") int maxLimit,
+									@Named("topdesk_concurrency_max_wait") Duration maxWait) {
+		this.initialLimit = initialLimit;
+		this.maxLimit = maxLimit;
+		this.maxWaitNanos = maxWait.toNanoseconds();
+	}
+
+	public TopdeskConcurrencyLimiter newConcurrencyLimiter(String endpoint) {
+		return new TopdeskConcurrencyLimiter(endpoint, initialLimit, maxLimit, maxWaitNanos, Ticker.systemTicker());
+	}
+}
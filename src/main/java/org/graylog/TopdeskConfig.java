@@ -0,0 +1,373 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import okhttp3.HttpUrl;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationException;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.graylog.TopdeskAlarmCallback.*;
+
+/**
+ * The validated configuration of a callback, parsed once and shared by all alerts and deliveries that use it.
+ * Configurations are immutable, the configurations set by routing rules are derived once per rule and kept with
+ * the configuration they were derived from.
+ */
+public final class TopdeskConfig {
+	private final Map<String, Object> source;
+	private final String endpoint;
+	private final HttpUrl incidentsUrl;
+	private final TopdeskCredentials credentials;
+	private final String callerEmail;
+	private final String summary;
+	private final String object;
+	private final String category;
+	private final String subcategory;
+	private final boolean secondLine;
+	private final List<TopdeskLookup> lookups;
+	private final List<TopdeskLookup> warmUpLookups;
+	private final TopdeskTemplate descriptionTemplate;
+	private final Map<String, Map<String, TopdeskTemplate>> optionalFieldTemplates;
+	private final Set<String> backlogFields;
+	private final boolean escapeHtml;
+	private final TopdeskBacklogAttachment.Format attachmentFormat;
+	private final long attachmentMaxBytes;
+	private final boolean attachmentGzip;
+	private final boolean verify;
+	private final boolean async;
+	private final boolean deduplicate;
+	private final List<String> deduplicationFields;
+	private final long coalesceWindowMillis;
+	private final int coalesceMaxAlerts;
+	private final List<String> coalesceFields;
+	private final DateTimeFormatter triggeredAtFormatter;
+	private final TopdeskRoutingRules routingRules;
+	private final ConcurrentMap<Map<String, String>, TopdeskConfig> routes = new ConcurrentHashMap<>();
+
+	private TopdeskConfig(Configuration configuration) throws ConfigurationException {
+		validate(configuration);
+
+		this.source = configuration.getSource();
+		this.endpoint = stripTrailingSlashes(configuration.getString(ENDPOINT).trim());
+		this.incidentsUrl = HttpUrl.parse(endpoint + "/tas/api/incidents/");
+		this.credentials = new TopdeskCredentials(endpoint, configuration.getString(USERNAME),
+				configuration.getString(PASSWORD), configuration.getString(LOGIN_MODE));
+		this.callerEmail = configuration.getString(CALLER_EMAIL);
+		this.summary = configuration.getString(SUMMARY);
+		this.object = configuration.getString(OBJECT);
+		this.category = configuration.stringIsSet(CATEGORY) ? configuration.getString(CATEGORY) : null;
+		this.subcategory = configuration.stringIsSet(SUBCATEGORY) ? configuration.getString(SUBCATEGORY) : null;
+		this.secondLine = configuration.getBoolean(SECOND_LINE);
+		this.lookups = lookups(configuration);
+		this.warmUpLookups = warmUpLookups(lookups, category, subcategory);
+		this.descriptionTemplate = TopdeskTemplate.compile(configuration.getString(DESCRIPTION));
+
+		ImmutableSet.Builder<String> backlogFields = ImmutableSet.<String>builder().addAll(descriptionTemplate.getBacklogFields());
+		ImmutableMap.Builder<String, Map<String, TopdeskTemplate>> optionalFields = ImmutableMap.builder();
+		for (Map.Entry<String, Map<String, String>> group : parseOptionalFields(configuration.getString(OPTIONAL_FIELDS, "")).entrySet()) {
+			ImmutableMap.Builder<String, TopdeskTemplate> templates = ImmutableMap.builder();
+			for (Map.Entry<String, String> field : group.getValue().entrySet()) {
+				TopdeskTemplate template = TopdeskTemplate.compile(field.getValue());
+				templates.put(field.getKey(), template);
+				backlogFields.addAll(template.getBacklogFields());
+			}
+			optionalFields.put(group.getKey(), templates.build());
+		}
+		this.optionalFieldTemplates = optionalFields.build();
+		this.backlogFields = backlogFields.build();
+
+		this.escapeHtml = configuration.getBoolean(ESCAPE_HTML);
+		this.attachmentFormat = TopdeskBacklogAttachment.Format.of(configuration.getString(ATTACHMENT));
+		this.attachmentMaxBytes = Math.max(1, configuration.getInt(ATTACHMENT_MAX_SIZE, 1024)) * 1024L;
+		this.attachmentGzip = configuration.getBoolean(ATTACHMENT_GZIP);
+		this.verify = configuration.getBoolean(VERIFY);
+		this.async = configuration.getBoolean(ASYNC);
+		this.deduplicate = configuration.getBoolean(DEDUPLICATE);
+		this.deduplicationFields = ImmutableList.copyOf(splitFields(configuration.getString(DEDUPLICATION_FIELDS)));
+		this.coalesceWindowMillis = Math.max(0, configuration.getInt(COALESCE_WINDOW, 0)) * 1000L;
+		this.coalesceMaxAlerts = Math.max(1, configuration.getInt(COALESCE_MAX_ALERTS, 50));
+		this.coalesceFields = ImmutableList.copyOf(splitFields(configuration.getString(COALESCE_FIELDS)));
+		this.triggeredAtFormatter = TopdeskBacklog.TIMESTAMP_FORMATTER;
+		this.routingRules = TopdeskRoutingRules.parse(configuration.getString(ROUTING_RULES));
+	}
+
+	/**
+	 * Validates and parses the configuration. Callbacks get their configuration from the
+	 * {@link TopdeskConfigRegistry}, which only parses each configuration once.
+	 */
+	public static TopdeskConfig of(Configuration configuration) throws ConfigurationException {
+		return new TopdeskConfig(configuration);
+	}
+
+	public static TopdeskConfig of(Map<String, Object> source) throws ConfigurationException {
+		return of(new Configuration(source));
+	}
+
+	static void validate(Configuration configuration) throws ConfigurationException {
+		if (!configuration.stringIsSet(ENDPOINT)) {
+			throw new ConfigurationException(ENDPOINT + " is mandatory and must be not be null or empty.");
+		}
+		if (HttpUrl.parse(configuration.getString(ENDPOINT).trim()) == null) {
+			throw new ConfigurationException(ENDPOINT + " must be a valid http or https URL.");
+		}
+		if (!configuration.stringIsSet(PASSWORD)) {
+			throw new ConfigurationException(PASSWORD + " is mandatory and must be not be null or empty.");
+		}
+
+		if (!configuration.stringIsSet(LOGIN_MODE)) {
+			throw new ConfigurationException(LOGIN_MODE + " is mandatory and must be not be null or empty.");
+		}
+
+		if (configuration.stringIsSet(ATTACHMENT)) {
+			try {
+				TopdeskBacklogAttachment.Format.of(configuration.getString(ATTACHMENT));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(ATTACHMENT + " must be none, ndjson or csv.");
+			}
+		}
+
+		if (configuration.stringIsSet(OPTIONAL_FIELDS)) {
+			String[] optionalFields = configuration.getString(OPTIONAL_FIELDS).split(",");
+			if (optionalFields.length > 5){
+				throw new ConfigurationException("You can't supply more than 5 optional field values.");
+			}
+			for (String optionalField: optionalFields){
+				String[] keyValues = optionalField.split(":");
+				if (keyValues.length != 3) {
+					throw new ConfigurationException("Optional Fields are of format optionalFields1:key:value or optionalFields2:key:value.");
+				}
+			}
+		}
+	}
+
+	private static String stripTrailingSlashes(String endpoint) {
+		int end = endpoint.length();
+		while (end > 0 && endpoint.charAt(end - 1) == '/') {
+			end--;
+		}
+		return endpoint.substring(0, end);
+	}
+
+	private static List<TopdeskLookup> lookups(Configuration configuration) {
+		List<TopdeskLookup> lookups = new ArrayList<>();
+		if (configuration.stringIsSet(PRIORITY)) {
+			lookups.add(new TopdeskLookup("priority", "priority", PRIORITIES_URI, configuration.getString(PRIORITY), "name"));
+		}
+		if (configuration.stringIsSet(ENTRY_TYPE)) {
+			lookups.add(new TopdeskLookup("entryType", "entry_type", ENTRY_TYPES_URI, configuration.getString(ENTRY_TYPE), "name"));
+		}
+		if (configuration.stringIsSet(CALL_TYPE)) {
+			lookups.add(new TopdeskLookup("callType", "call_type", CALL_TYPES_URI, configuration.getString(CALL_TYPE), "name"));
+		}
+		if (configuration.stringIsSet(IMPACT)) {
+			lookups.add(new TopdeskLookup("impact", "impact", IMPACTS_URI, configuration.getString(IMPACT), "name"));
+		}
+		if (configuration.stringIsSet(URGENCY)) {
+			lookups.add(new TopdeskLookup("urgency", "urgency", URGENCIES_URI, configuration.getString(URGENCY), "name"));
+		}
+		if (configuration.stringIsSet(OPERATOR_GROUP)) {
+			lookups.add(new TopdeskLookup("operatorGroup", "operatorGroup", OPERATOR_GROUPS_URI + "?name=" + configuration.getString(OPERATOR_GROUP),
+					configuration.getString(OPERATOR_GROUP), "groupName"));
+		}
+		return ImmutableList.copyOf(lookups);
+	}
+
+	private static List<TopdeskLookup> warmUpLookups(List<TopdeskLookup> lookups, String category, String subcategory) {
+		List<TopdeskLookup> warmUpLookups = new ArrayList<>(lookups);
+		if (category != null) {
+			warmUpLookups.add(new TopdeskLookup("category", "category", CATEGORIES_URI, category, "name"));
+		}
+		if (subcategory != null) {
+			warmUpLookups.add(new TopdeskLookup("subcategory", "subcategory", SUBCATEGORIES_URI, subcategory, "name"));
+		}
+		return ImmutableList.copyOf(warmUpLookups);
+	}
+
+	public Map<String, Object> getSource() {
+		return source;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public HttpUrl getIncidentsUrl() {
+		return incidentsUrl;
+	}
+
+	public HttpUrl getIncidentUrl(String id) {
+		return incidentsUrl.newBuilder().addPathSegment("id").addPathSegment(id).build();
+	}
+
+	public HttpUrl getAttachmentsUrl(String id) {
+		return incidentsUrl.newBuilder().addPathSegment("id").addPathSegment(id).addPathSegment("attachments").build();
+	}
+
+	public TopdeskCredentials getCredentials() {
+		return credentials;
+	}
+
+	public String getCallerEmail() {
+		return callerEmail;
+	}
+
+	public String getSummary() {
+		return summary;
+	}
+
+	public String getObject() {
+		return object;
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
+	public String getSubcategory() {
+		return subcategory;
+	}
+
+	public boolean isSecondLine() {
+		return secondLine;
+	}
+
+	public List<TopdeskLookup> getLookups() {
+		return lookups;
+	}
+
+	/**
+	 * Returns the lookups of the incident plus the category and subcategory, which are sent by name but are
+	 * checked by the warm-up and the verification of the configuration.
+	 */
+	public List<TopdeskLookup> getWarmUpLookups() {
+		return warmUpLookups;
+	}
+
+	public TopdeskTemplate getDescriptionTemplate() {
+		return descriptionTemplate;
+	}
+
+	/**
+	 * Returns a view on the backlog of an alert, that computes the aggregations the templates use in one pass.
+	 */
+	public TopdeskBacklog newBacklog(List<Message> messages) {
+		return new TopdeskBacklog(messages, backlogFields);
+	}
+
+	public Map<String, Map<String, String>> renderOptionalFields(String stream, String triggeredAt, Message message) {
+		return renderOptionalFields(stream, triggeredAt, TopdeskBacklog.of(message));
+	}
+
+	/**
+	 * Renders the optional fields, per optional fields group.
+	 */
+	public Map<String, Map<String, String>> renderOptionalFields(String stream, String triggeredAt, TopdeskBacklog backlog) {
+		Map<String, Map<String, String>> optionalFields = new LinkedHashMap<>();
+		for (Map.Entry<String, Map<String, TopdeskTemplate>> group : optionalFieldTemplates.entrySet()) {
+			Map<String, String> values = new LinkedHashMap<>();
+			for (Map.Entry<String, TopdeskTemplate> field : group.getValue().entrySet()) {
+				values.put(field.getKey(), field.getValue().render(stream, triggeredAt, backlog, false));
+			}
+			optionalFields.put(group.getKey(), values);
+		}
+		return optionalFields;
+	}
+
+	public boolean isEscapeHtml() {
+		return escapeHtml;
+	}
+
+	/**
+	 * Returns the format of the backlog attachment, or {@code null} if the backlog isn't attached.
+	 */
+	public TopdeskBacklogAttachment.Format getAttachmentFormat() {
+		return attachmentFormat;
+	}
+
+	public long getAttachmentMaxBytes() {
+		return attachmentMaxBytes;
+	}
+
+	public boolean isAttachmentGzip() {
+		return attachmentGzip;
+	}
+
+	public boolean isVerify() {
+		return verify;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	public boolean isDeduplicate() {
+		return deduplicate;
+	}
+
+	public List<String> getDeduplicationFields() {
+		return deduplicationFields;
+	}
+
+	public long getCoalesceWindowMillis() {
+		return coalesceWindowMillis;
+	}
+
+	public int getCoalesceMaxAlerts() {
+		return coalesceMaxAlerts;
+	}
+
+	public List<String> getCoalesceFields() {
+		return coalesceFields;
+	}
+
+	public DateTimeFormatter getTriggeredAtFormatter() {
+		return triggeredAtFormatter;
+	}
+
+	public TopdeskRoutingRules getRoutingRules() {
+		return routingRules;
+	}
+
+	/**
+	 * Returns the configuration of the incident for the message, with the settings of the first matching routing
+	 * rule. The names of the rule are resolved to IDs like the configured names when the incident is sent.
+	 */
+	public TopdeskConfig route(Message message) throws ConfigurationException {
+		Map<String, String> settings = routingRules.route(message);
+		if (settings.isEmpty()) {
+			return this;
+		}
+		TopdeskConfig routed = routes.get(settings);
+		if (routed == null) {
+			routed = of(routedSource(settings));
+			TopdeskConfig existing = routes.putIfAbsent(settings, routed);
+			if (existing != null) {
+				routed = existing;
+			}
+		}
+		return routed;
+	}
+
+	private Map<String, Object> routedSource(Map<String, String> settings) {
+		Map<String, Object> routed = new HashMap<>(source);
+		routed.putAll(settings);
+		if (settings.containsKey(CATEGORY) && !settings.containsKey(SUBCATEGORY)) {
+			// The configured subcategory belongs to the configured category
+			routed.remove(SUBCATEGORY);
+		}
+		return Collections.unmodifiableMap(routed);
+	}
+}
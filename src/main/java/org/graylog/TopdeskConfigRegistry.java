@@ -0,0 +1,91 @@
+package org.graylog;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.graylog.TopdeskAlarmCallback.*;
+
+/**
+ * Keeps the parsed configuration of every callback, so the callback instances Graylog creates for each alert share
+ * one {@link TopdeskConfig} instead of parsing the same settings again. The parsed configuration is passed on with
+ * the incidents of the callback.
+ * <p>
+ * The passwords of the callbacks are remembered in memory per endpoint, username and login mode, to restore the
+ * configuration of incidents read from the outbox, which is stored without password.
+ */
+@Singleton
+public class TopdeskConfigRegistry {
+	private final Cache<Map<String, Object>, TopdeskConfig> configs;
+	private final ConcurrentMap<List<Object>, String> passwords = new ConcurrentHashMap<>();
+
+	@Inject
+	public TopdeskConfigRegistry(TopdeskMetrics metrics) {
+		this.configs = CacheBuilder.newBuilder()
+				.maximumSize(1000)
+				.expireAfterAccess(1, TimeUnit.HOURS)
+				.recordStats()
+				.build();
+		metrics.registerCache("configurations", configs::stats);
+	}
+
+	/**
+	 * Returns the parsed configuration, validating and parsing it only the first time it is used.
+	 */
+	public TopdeskConfig get(final Configuration configuration) throws ConfigurationException {
+		TopdeskConfig config;
+		try {
+			config = configs.get(configuration.getSource(), () -> TopdeskConfig.of(configuration));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof ConfigurationException) {
+				throw (ConfigurationException) e.getCause();
+			}
+			throw new ConfigurationException("Invalid Topdesk configuration: " + e.getCause());
+		}
+		passwords.put(account(config.getSource()), configuration.getString(PASSWORD));
+		return config;
+	}
+
+	/**
+	 * Returns the configuration of an incident read from the outbox, with the password of the last callback that
+	 * used the same endpoint, username and login mode, or {@code null} if there was no such callback since Graylog
+	 * started.
+	 */
+	public TopdeskConfig restore(Map<String, Object> stored) throws ConfigurationException {
+		String password = passwords.get(account(stored));
+		if (password == null) {
+			return null;
+		}
+		Map<String, Object> source = new HashMap<>(stored);
+		source.put(PASSWORD, password);
+		return get(new Configuration(source));
+	}
+
+	/**
+	 * Returns whether a callback of the account, as returned by {@link #account(Map)}, was initialized since Graylog
+	 * started, so the configuration of its incidents can be restored.
+	 */
+	public boolean hasPassword(List<Object> account) {
+		return passwords.containsKey(account);
+	}
+
+	/**
+	 * Returns the endpoint, username and login mode of the configuration, which share one password.
+	 */
+	static List<Object> account(Map<String, Object> source) {
+		return Arrays.asList(source.get(ENDPOINT), source.get(USERNAME), source.get(LOGIN_MODE));
+	}
+}
@@ -0,0 +1,62 @@
+package org.graylog;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Login details for a Topdesk endpoint. Two instances are equal when they refer to the same endpoint, username
+ * and login mode, so they share a session even if the password changed in between.
+ */
+public final class TopdeskCredentials {
+	private final String endpoint;
+	private final String username;
+	private final String loginMode;
+	private final String authorization;
+
+	public TopdeskCredentials(String endpoint, String username, String password, String loginMode) {
+		this.endpoint = endpoint;
+		this.username = username;
+		this.loginMode = loginMode;
+		this.authorization = "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getLoginMode() {
+		return loginMode;
+	}
+
+	public String getAuthorization() {
+		return authorization;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		TopdeskCredentials that = (TopdeskCredentials) o;
+		return endpoint.equals(that.endpoint) && username.equals(that.username) && loginMode.equals(that.loginMode);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(endpoint, username, loginMode);
+	}
+
+	@Override
+	public String toString() {
+		return username + "@" + endpoint + " (" + loginMode + ")";
+	}
+}
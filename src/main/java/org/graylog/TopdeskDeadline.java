@@ -0,0 +1,108 @@
+package org.graylog;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time left to deliver one incident, shared by all requests made for it: login, lookups, the incident and its
+ * attachment. The deadline of the current thread is checked before every request, and limits the timeouts of the
+ * request and the time it waits for retries and the rate and concurrency limits.
+ */
+public final class TopdeskDeadline {
+	private static final ThreadLocal<TopdeskDeadline> CURRENT = new ThreadLocal<>();
+
+	private final long budgetNanos;
+	private final long deadlineNanos;
+
+	private TopdeskDeadline(long budgetNanos) {
+		this.budgetNanos = budgetNanos;
+		this.deadlineNanos = System.nanoTime() + budgetNanos;
+	}
+
+	public static TopdeskDeadline after(long duration, TimeUnit unit) {
+		return new TopdeskDeadline(unit.toNanos(duration));
+	}
+
+	/**
+	 * Returns the deadline of the current thread, or {@code null} if there is none.
+	 */
+	public static TopdeskDeadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Returns the time left until the deadline of the current thread, or {@link Long#MAX_VALUE} if there is none.
+	 */
+	public static long remainingNanos() {
+		TopdeskDeadline deadline = CURRENT.get();
+		return deadline == null ? Long.MAX_VALUE : deadline.remaining();
+	}
+
+	/**
+	 * Throws if the deadline of the current thread has passed, or will have passed after waiting {@code waitNanos}.
+	 */
+	public static void check(long waitNanos, String stage) throws DeadlineExceededException {
+		TopdeskDeadline deadline = CURRENT.get();
+		if (deadline != null && deadline.remaining() <= waitNanos) {
+			throw new DeadlineExceededException(deadline, stage);
+		}
+	}
+
+	public long remaining() {
+		return Math.max(0, deadlineNanos - System.nanoTime());
+	}
+
+	/**
+	 * Makes this the deadline of the current thread until the returned scope is closed.
+	 */
+	public Scope enter() {
+		final TopdeskDeadline previous = CURRENT.get();
+		CURRENT.set(this);
+		return new Scope() {
+			@Override
+			public void close() {
+				if (previous == null) {
+					CURRENT.remove();
+				} else {
+					CURRENT.set(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Wraps the task so it runs with this deadline on another thread.
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				Scope scope = enter();
+				try {
+					return task.call();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * Thrown instead of sending or waiting when the time to deliver the incident is used up. Like an interrupt, it
+	 * is not retried.
+	 */
+	public static class DeadlineExceededException extends InterruptedIOException {
+		private static final long serialVersionUID = 1L;
+
+		public DeadlineExceededException(TopdeskDeadline deadline, String stage) {
+			super("Topdesk delivery deadline of " + TimeUnit.NANOSECONDS.toMillis(deadline.budgetNanos)
+					+ " ms exceeded before " + stage);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.graylog;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails requests made after the delivery deadline of the current thread, and shortens the connect, read and write
+ * timeouts of the others to the time that is left.
+ */
+public class TopdeskDeadlineInterceptor implements Interceptor {
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		TopdeskDeadline deadline = TopdeskDeadline.current();
+		if (deadline == null) {
+			return chain.proceed(chain.request());
+		}
+		TopdeskDeadline.check(0, chain.request().method() + " " + chain.request().url().encodedPath());
+		int remainingMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(deadline.remaining())));
+		return chain
+				.withConnectTimeout(limit(chain.connectTimeoutMillis(), remainingMillis), TimeUnit.MILLISECONDS)
+				.withReadTimeout(limit(chain.readTimeoutMillis(), remainingMillis), TimeUnit.MILLISECONDS)
+				.withWriteTimeout(limit(chain.writeTimeoutMillis(), remainingMillis), TimeUnit.MILLISECONDS)
+				.proceed(chain.request());
+	}
+
+	private static int limit(int timeoutMillis, int remainingMillis) {
+		// 0 means no timeout
+		return timeoutMillis == 0 ? remainingMillis : Math.min(timeoutMillis, remainingMillis);
+	}
+}
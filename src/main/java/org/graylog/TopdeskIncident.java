@@ -0,0 +1,132 @@
+package org.graylog;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Maps;
+import org.graylog2.plugin.Message;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A rendered incident, ready to be sent to Topdesk together with the callback configuration it was created with.
+ * Incidents of a callback carry its parsed configuration, incidents read from the outbox only its settings without
+ * the password.
+ */
+public final class TopdeskIncident {
+	/** Outbox ID of incidents that are not stored in the outbox. */
+	public static final long NOT_STORED = -1L;
+
+	private final Map<String, Object> configuration;
+	private final TopdeskConfig config;
+	private final String description;
+	private final Map<String, Map<String, String>> optionalFields;
+	private final String fingerprint;
+	private final String action;
+	private final long outboxId;
+	private final List<Message> backlog;
+
+	public TopdeskIncident(Map<String, Object> configuration, String description, Map<String, Map<String, String>> optionalFields) {
+		this(configuration, description, optionalFields, null, null);
+	}
+
+	public TopdeskIncident(TopdeskConfig config, String description, Map<String, Map<String, String>> optionalFields,
+						   String fingerprint, String action) {
+		this(config.getSource(), config, description, optionalFields, fingerprint, action, NOT_STORED, null);
+	}
+
+	/**
+	 * @param optionalFields the rendered optional fields, per optional fields group
+	 * @param fingerprint identifies duplicate alerts, or {@code null} if every alert creates a new incident
+	 * @param action      the entry added to the progress trail of the open incident for a duplicate alert
+	 */
+	@JsonCreator
+	public TopdeskIncident(@JsonProperty("configuration") Map<String, Object> configuration,
+						   @JsonProperty("description") String description,
+						   @JsonProperty("optional_fields") Map<String, Map<String, String>> optionalFields,
+						   @JsonProperty("fingerprint") String fingerprint,
+						   @JsonProperty("action") String action) {
+		this(configuration, null, description, optionalFields, fingerprint, action, NOT_STORED, null);
+	}
+
+	private TopdeskIncident(Map<String, Object> configuration, TopdeskConfig config, String description,
+							Map<String, Map<String, String>> optionalFields, String fingerprint, String action,
+							long outboxId, List<Message> backlog) {
+		this.configuration = configuration;
+		this.config = config;
+		this.description = description;
+		this.optionalFields = optionalFields;
+		this.fingerprint = fingerprint;
+		this.action = action;
+		this.outboxId = outboxId;
+		this.backlog = backlog;
+	}
+
+	@JsonProperty("configuration")
+	public Map<String, Object> getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * The parsed configuration, or {@code null} if the incident was read from the outbox.
+	 */
+	@JsonIgnore
+	public TopdeskConfig getConfig() {
+		return config;
+	}
+
+	@JsonProperty("description")
+	public String getDescription() {
+		return description;
+	}
+
+	@JsonProperty("optional_fields")
+	public Map<String, Map<String, String>> getOptionalFields() {
+		return optionalFields;
+	}
+
+	@JsonProperty("fingerprint")
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	@JsonProperty("action")
+	public String getAction() {
+		return action;
+	}
+
+	@JsonIgnore
+	public long getOutboxId() {
+		return outboxId;
+	}
+
+	/**
+	 * The backlog messages to attach to the incident, or {@code null}. The backlog is not stored in the outbox,
+	 * incidents sent again from the outbox are created without attachment.
+	 */
+	@JsonIgnore
+	public List<Message> getBacklog() {
+		return backlog;
+	}
+
+	public TopdeskIncident withOutboxId(long outboxId) {
+		return new TopdeskIncident(configuration, config, description, optionalFields, fingerprint, action, outboxId, backlog);
+	}
+
+	public TopdeskIncident withConfig(TopdeskConfig config) {
+		return new TopdeskIncident(config.getSource(), config, description, optionalFields, fingerprint, action, outboxId, backlog);
+	}
+
+	/**
+	 * Returns the incident as it is stored in the outbox, without the password in the configuration.
+	 */
+	public TopdeskIncident withoutPassword() {
+		return new TopdeskIncident(Maps.filterKeys(configuration, key -> !TopdeskAlarmCallback.PASSWORD.equals(key)), config,
+				description, optionalFields, fingerprint, action, outboxId, backlog);
+	}
+
+	public TopdeskIncident withBacklog(List<Message> backlog) {
+		return new TopdeskIncident(configuration, config, description, optionalFields, fingerprint, action, outboxId, backlog);
+	}
+}
@@ -0,0 +1,217 @@
+package org.graylog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.escape.Escaper;
+import com.google.common.html.HtmlEscapers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.alarms.callbacks.AlarmCallbackException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the alerts of callbacks with the same configuration during a time window and merges them into one
+ * incident, which is sent when the window closes or the maximum number of alerts is reached.
+ * <p>
+ * Collected alerts are only kept in memory, they are written to the outbox when the merged incident is sent. An
+ * incident whose batch is filled by an alert is sent by that alert like any other incident of the callback. When the
+ * window closes no alert is waiting for the incident, so it is always queued for asynchronous delivery.
+ */
+@Singleton
+public class TopdeskIncidentCoalescer {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskIncidentCoalescer.class);
+
+	/**
+	 * A single alert waiting to be merged.
+	 */
+	public static final class Alert {
+		private final String stream;
+		private final String triggeredAt;
+		private final Map<String, Object> keyFields;
+		private final TopdeskIncident incident;
+
+		public Alert(String stream, String triggeredAt, Map<String, Object> keyFields, TopdeskIncident incident) {
+			this.stream = stream;
+			this.triggeredAt = triggeredAt;
+			this.keyFields = keyFields;
+			this.incident = incident;
+		}
+	}
+
+	private final class Batch {
+		private final TopdeskConfig config;
+		private final List<Alert> alerts = new ArrayList<>();
+		private ScheduledFuture<?> timer;
+
+		private Batch(TopdeskConfig config) {
+			this.config = config;
+		}
+	}
+
+	private final TopdeskOutbox outbox;
+	private final TopdeskIncidentDispatcher incidentDispatcher;
+	private final Map<TopdeskConfig, Batch> batches = new HashMap<>();
+
+	private ScheduledExecutorService scheduler;
+
+	@Inject
+	public TopdeskIncidentCoalescer(TopdeskOutbox outbox, TopdeskIncidentDispatcher incidentDispatcher) {
+		this.outbox = outbox;
+		this.incidentDispatcher = incidentDispatcher;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-coalesce-%d")
+				.setDaemon(true)
+				.build());
+	}
+
+	/**
+	 * Sends all collected alerts without waiting for their window to close.
+	 */
+	public void stop() {
+		List<Batch> pending;
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+			pending = new ArrayList<>(batches.values());
+			batches.clear();
+		}
+		for (Batch batch : pending) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Adds the alert to the batch of its (routed) callback configuration, starting a new batch that is sent after
+	 * {@code windowMillis} if there is none.
+	 *
+	 * @return the merged incident if the alert filled the batch, which the caller has to send, or {@code null}
+	 */
+	public TopdeskIncident add(TopdeskConfig config, Alert alert, long windowMillis, int maxAlerts) throws AlarmCallbackException {
+		Batch full = null;
+		synchronized (this) {
+			if (scheduler == null) {
+				throw new AlarmCallbackException("Topdesk alert coalescing is not running");
+			}
+			Batch batch = batches.get(config);
+			if (batch == null) {
+				final Batch created = new Batch(config);
+				created.timer = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(created);
+					}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+				batches.put(config, created);
+				batch = created;
+			}
+			batch.alerts.add(alert);
+			if (batch.alerts.size() >= maxAlerts) {
+				batches.remove(config);
+				batch.timer.cancel(false);
+				full = batch;
+			}
+		}
+		return full == null ? null : merge(full.config, full.alerts);
+	}
+
+	@VisibleForTesting
+	synchronized int getPendingCount() {
+		int count = 0;
+		for (Batch batch : batches.values()) {
+			count += batch.alerts.size();
+		}
+		return count;
+	}
+
+	private void expire(Batch batch) {
+		synchronized (this) {
+			if (batches.get(batch.config) != batch) {
+				return;
+			}
+			batches.remove(batch.config);
+		}
+		try {
+			send(batch);
+		} catch (Exception e) {
+			LOG.error("Failed to send coalesced Topdesk incident", e);
+		}
+	}
+
+	private void send(Batch batch) {
+		TopdeskIncident incident = merge(batch.config, batch.alerts);
+		try {
+			incident = outbox.append(incident);
+		} catch (IOException e) {
+			LOG.error("Couldn't store incident in the Topdesk outbox, it won't be retried if delivery fails", e);
+		}
+		try {
+			incidentDispatcher.submit(incident);
+		} catch (AlarmCallbackException e) {
+			outbox.release(incident);
+			LOG.error("Couldn't queue coalesced Topdesk incident of {} alerts", batch.alerts.size(), e);
+		}
+	}
+
+	/**
+	 * Merges the alerts into one incident. The description lists the stream, trigger time and key fields of every
+	 * alert, followed by the description of the first alert. The backlogs of the alerts are attached together.
+	 */
+	static TopdeskIncident merge(TopdeskConfig config, List<Alert> alerts) {
+		TopdeskIncident first = alerts.get(0).incident;
+		if (alerts.size() == 1) {
+			return first;
+		}
+
+		Escaper escaper = HtmlEscapers.htmlEscaper();
+		StringBuilder description = new StringBuilder(256 + 128 * alerts.size() + first.getDescription().length());
+		description.append("<b>").append(alerts.size()).append(" alerts</b><br>");
+		String fingerprint = first.getFingerprint();
+		for (Alert alert : alerts) {
+			description.append(escaper.escape(alert.stream)).append(" at ").append(escaper.escape(alert.triggeredAt));
+			String separator = ": ";
+			for (Map.Entry<String, Object> field : alert.keyFields.entrySet()) {
+				description.append(separator).append(escaper.escape(field.getKey())).append('=')
+						.append(escaper.escape(String.valueOf(field.getValue())));
+				separator = ", ";
+			}
+			description.append("<br>");
+			if (fingerprint != null && !fingerprint.equals(alert.incident.getFingerprint())) {
+				fingerprint = null;
+			}
+		}
+		description.append("<br>").append(first.getDescription());
+
+		String action = fingerprint == null ? null : alerts.size() + " alerts triggered again, last on stream "
+				+ alerts.get(alerts.size() - 1).stream + " at " + alerts.get(alerts.size() - 1).triggeredAt;
+		TopdeskIncident merged = new TopdeskIncident(config, description.toString(), first.getOptionalFields(),
+				fingerprint, action);
+
+		List<Message> backlog = new ArrayList<>();
+		for (Alert alert : alerts) {
+			if (alert.incident.getBacklog() != null) {
+				backlog.addAll(alert.incident.getBacklog());
+			}
+		}
+		return first.getBacklog() == null ? merged : merged.withBacklog(backlog);
+	}
+}
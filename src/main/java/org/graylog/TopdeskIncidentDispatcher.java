@@ -0,0 +1,221 @@
+package org.graylog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.plugin.alarms.callbacks.AlarmCallbackException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends incidents of asynchronous callbacks from a bounded in-memory queue, so the alert scanner does not have to
+ * wait for Topdesk. The queue is shared by all endpoints, its metrics are kept per endpoint.
+ */
+@Singleton
+public class TopdeskIncidentDispatcher {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskIncidentDispatcher.class);
+
+	public enum OverflowPolicy {
+		/** Wait until there is room in the queue. */
+		BLOCK,
+		/** Discard the oldest queued incident to make room. */
+		DROP_OLDEST,
+		/** Discard the incident that did not fit. */
+		DROP_NEWEST
+	}
+
+	private final TopdeskIncidentSender incidentSender;
+	private final TopdeskOutbox outbox;
+	private final BlockingQueue<TopdeskIncident> queue;
+	private final int workerCount;
+	private final OverflowPolicy overflowPolicy;
+	private final TopdeskMetrics metrics;
+	private final ConcurrentMap<String, EndpointMetrics> endpointMetrics = new ConcurrentHashMap<>();
+
+	private ExecutorService workers;
+
+	@Inject
+	public TopdeskIncidentDispatcher(TopdeskIncidentSender incidentSender,
+									 TopdeskOutbox outbox,
+									 @Named("topdesk_dispatch_queue_size") int queueSize,
+									 @Named("topdesk_dispatch_workers") int workerCount,
+									 @Named("topdesk_dispatch_overflow_policy") String overflowPolicy,
+									 TopdeskMetrics metrics) {
+		this.incidentSender = incidentSender;
+		this.outbox = outbox;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.workerCount = workerCount;
+		this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase(Locale.ENGLISH));
+		this.metrics = metrics;
+	}
+
+	public synchronized void start() {
+		if (workers != null) {
+			return;
+		}
+		workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-dispatch-%d")
+				.setDaemon(true)
+				.build());
+		for (int i = 0; i < workerCount; i++) {
+			workers.submit(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		}
+	}
+
+	public synchronized void stop() {
+		if (workers == null) {
+			return;
+		}
+		workers.shutdownNow();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers = null;
+		if (!queue.isEmpty()) {
+			LOG.warn("Stopped with {} Topdesk incidents not delivered", queue.size());
+			for (TopdeskIncident incident : queue) {
+				outbox.release(incident);
+			}
+		}
+	}
+
+	public void submit(TopdeskIncident incident) throws AlarmCallbackException {
+		EndpointMetrics endpoint = metrics(incident);
+		// Counted before it is queued, so a worker taking it right away never makes the count negative
+		endpoint.queued.incrementAndGet();
+		switch (overflowPolicy) {
+			case BLOCK:
+				try {
+					queue.put(incident);
+				} catch (InterruptedException e) {
+					endpoint.queued.decrementAndGet();
+					Thread.currentThread().interrupt();
+					throw new AlarmCallbackException("Interrupted while queueing Topdesk incident");
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(incident)) {
+					TopdeskIncident oldest = queue.poll();
+					if (oldest != null) {
+						EndpointMetrics oldestEndpoint = metrics(oldest);
+						oldestEndpoint.queued.decrementAndGet();
+						oldestEndpoint.dropped.mark();
+						outbox.release(oldest);
+						LOG.warn("Topdesk incident queue is full, dropped the oldest incident");
+					}
+				}
+				break;
+			case DROP_NEWEST:
+				if (!queue.offer(incident)) {
+					endpoint.queued.decrementAndGet();
+					endpoint.dropped.mark();
+					outbox.release(incident);
+					LOG.warn("Topdesk incident queue is full, dropped the incident");
+				}
+				break;
+		}
+	}
+
+	public int getRemainingCapacity() {
+		return queue.remainingCapacity();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getDroppedCount() {
+		long count = 0;
+		for (EndpointMetrics endpoint : endpointMetrics.values()) {
+			count += endpoint.dropped.getCount();
+		}
+		return count;
+	}
+
+	public long getDeliveredCount() {
+		long count = 0;
+		for (EndpointMetrics endpoint : endpointMetrics.values()) {
+			count += endpoint.delivered.getCount();
+		}
+		return count;
+	}
+
+	public long getFailedCount() {
+		long count = 0;
+		for (EndpointMetrics endpoint : endpointMetrics.values()) {
+			count += endpoint.failed.getCount();
+		}
+		return count;
+	}
+
+	private void drain() {
+		while (!Thread.currentThread().isInterrupted()) {
+			TopdeskIncident incident;
+			try {
+				incident = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			EndpointMetrics endpoint = metrics(incident);
+			endpoint.queued.decrementAndGet();
+			try {
+				incidentSender.send(incident);
+				endpoint.delivered.mark();
+			} catch (Exception e) {
+				endpoint.failed.mark();
+				LOG.error("Failed to create Topdesk incident", e);
+			}
+		}
+	}
+
+	private EndpointMetrics metrics(TopdeskIncident incident) {
+		String endpoint = String.valueOf(incident.getConfiguration().get(TopdeskAlarmCallback.ENDPOINT));
+		EndpointMetrics endpointMetrics = this.endpointMetrics.get(endpoint);
+		if (endpointMetrics == null) {
+			endpointMetrics = this.endpointMetrics.computeIfAbsent(endpoint, e -> new EndpointMetrics(metrics, e));
+		}
+		return endpointMetrics;
+	}
+
+	/**
+	 * The meters of the incidents of one endpoint, and the number of its incidents in the queue.
+	 */
+	private static final class EndpointMetrics {
+		private final Meter dropped;
+		private final Meter delivered;
+		private final Meter failed;
+		private final AtomicInteger queued = new AtomicInteger();
+
+		private EndpointMetrics(TopdeskMetrics metrics, String endpoint) {
+			this.dropped = metrics.meter(endpoint, "dispatch.dropped");
+			this.delivered = metrics.meter(endpoint, "dispatch.delivered");
+			this.failed = metrics.meter(endpoint, "dispatch.failed");
+			metrics.registerGauge(endpoint, "dispatch.queue-depth", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return queued.get();
+				}
+			});
+		}
+	}
+}
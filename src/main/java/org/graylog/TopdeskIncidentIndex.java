@@ -0,0 +1,75 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import org.graylog2.plugin.Message;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Remembers the Topdesk incident that was created for an alert fingerprint, so repeated alerts can be added to
+ * the open incident instead of creating a new one.
+ * <p>
+ * Entries expire after the configured time, and the least recently used entries are evicted when the index is full.
+ */
+@Singleton
+public class TopdeskIncidentIndex {
+	private final Cache<String, String> incidents;
+	private final Striped<Lock> locks = Striped.lazyWeakLock(64);
+
+	@Inject
+	public TopdeskIncidentIndex(@Named("topdesk_dedup_ttl") Duration ttl,
+								@Named("topdesk_dedup_max_size") int maxSize,
+								TopdeskMetrics metrics) {
+		this.incidents = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl.getQuantity(), ttl.getUnit())
+				.recordStats()
+				.build();
+		metrics.registerCache("open-incidents", incidents::stats);
+	}
+
+	/**
+	 * Returns the fingerprint of an alert, made of the stream, the alert condition and the given fields of the message.
+	 */
+	public static String fingerprint(String streamId, String conditionId, Message message, List<String> fields) {
+		Hasher hasher = Hashing.sha256().newHasher()
+				.putString(String.valueOf(streamId), StandardCharsets.UTF_8).putByte((byte) 0)
+				.putString(String.valueOf(conditionId), StandardCharsets.UTF_8).putByte((byte) 0);
+		for (String field : fields) {
+			Object value = message == null ? null : message.getField(field);
+			hasher.putString(field, StandardCharsets.UTF_8).putByte((byte) '=')
+					.putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * Returns the lock that has to be held while looking up and creating the incident of a fingerprint, so
+	 * concurrent alerts with the same fingerprint don't both create an incident.
+	 */
+	public Lock lock(String fingerprint) {
+		return locks.get(fingerprint);
+	}
+
+	public String get(String fingerprint) {
+		return incidents.getIfPresent(fingerprint);
+	}
+
+	public void put(String fingerprint, String incidentId) {
+		incidents.put(fingerprint, incidentId);
+	}
+
+	public void invalidate(String fingerprint) {
+		incidents.invalidate(fingerprint);
+	}
+}
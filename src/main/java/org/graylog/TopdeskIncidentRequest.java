@@ -0,0 +1,83 @@
+package org.graylog;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The body of the request that creates an incident in Topdesk.
+ */
+public final class TopdeskIncidentRequest implements TopdeskJson.Writer {
+	private final String callerEmail;
+	private final String briefDescription;
+	private final String request;
+	private final Map<String, Map<String, String>> optionalFields;
+	private final Map<String, String> references;
+	private final String category;
+	private final String subcategory;
+	private final String status;
+	private final String object;
+
+	/**
+	 * @param references the IDs of the looked up fields, by the name of the incident property. The category and
+	 *                   subcategory are sent by name when their ID isn't given.
+	 */
+	public TopdeskIncidentRequest(TopdeskConfig config, String description,
+								  Map<String, Map<String, String>> optionalFields, Map<String, String> references) {
+		this.callerEmail = config.getCallerEmail();
+		this.briefDescription = config.getSummary();
+		this.request = description;
+		this.optionalFields = optionalFields;
+		this.references = references;
+		this.category = config.getCategory();
+		this.subcategory = config.getSubcategory();
+		this.status = config.isSecondLine() ? "secondLine" : null;
+		this.object = config.getObject();
+	}
+
+	@Override
+	public void writeTo(JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+
+		generator.writeObjectFieldStart("callerLookup");
+		generator.writeStringField("email", callerEmail);
+		generator.writeEndObject();
+
+		generator.writeStringField("briefDescription", briefDescription);
+		generator.writeStringField("request", request);
+
+		for (Map.Entry<String, Map<String, String>> group : optionalFields.entrySet()) {
+			if (group.getValue().isEmpty()) {
+				continue;
+			}
+			generator.writeObjectFieldStart(group.getKey());
+			for (Map.Entry<String, String> field : group.getValue().entrySet()) {
+				generator.writeStringField(field.getKey(), field.getValue());
+			}
+			generator.writeEndObject();
+		}
+
+		for (Map.Entry<String, String> reference : references.entrySet()) {
+			writeReference(generator, reference.getKey(), "id", reference.getValue());
+		}
+		if (category != null && !references.containsKey("category")) {
+			writeReference(generator, "category", "name", category);
+		}
+		if (subcategory != null && !references.containsKey("subcategory")) {
+			writeReference(generator, "subcategory", "name", subcategory);
+		}
+		if (status != null) {
+			generator.writeStringField("status", status);
+		}
+		writeReference(generator, "object", "name", object);
+
+		generator.writeEndObject();
+	}
+
+	private static void writeReference(JsonGenerator generator, String property, String key, String value) throws IOException {
+		generator.writeObjectFieldStart(property);
+		generator.writeStringField(key, value);
+		generator.writeEndObject();
+	}
+}
@@ -0,0 +1,270 @@
+package org.graylog;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.annotations.VisibleForTesting;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.xml.ws.http.HTTPException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Creates incidents in Topdesk, using the shared clients, sessions and lookup caches.
+ */
+@Singleton
+public class TopdeskIncidentSender {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskIncidentSender.class);
+
+	private final TopdeskClientRegistry clientRegistry;
+	private final TopdeskSessionManager sessionManager;
+	private final TopdeskLookupResolver lookupResolver;
+	private final TopdeskOutbox outbox;
+	private final TopdeskIncidentIndex incidentIndex;
+	private final TopdeskTimeoutPolicy timeoutPolicy;
+	private final TopdeskLookupTables lookupTables;
+
+	@Inject
+	public TopdeskIncidentSender(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager,
+								 TopdeskLookupResolver lookupResolver, TopdeskOutbox outbox,
+								 TopdeskIncidentIndex incidentIndex, TopdeskTimeoutPolicy timeoutPolicy,
+								 TopdeskLookupTables lookupTables) {
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = sessionManager;
+		this.lookupResolver = lookupResolver;
+		this.outbox = outbox;
+		this.incidentIndex = incidentIndex;
+		this.timeoutPolicy = timeoutPolicy;
+		this.lookupTables = lookupTables;
+	}
+
+	@VisibleForTesting
+	TopdeskIncidentSender(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager,
+						  TopdeskLookupResolver lookupResolver, TopdeskOutbox outbox, TopdeskIncidentIndex incidentIndex) {
+		this(clientRegistry, sessionManager, lookupResolver, outbox, incidentIndex, TopdeskTimeoutPolicy.NONE,
+				TopdeskLookupTables.NONE);
+	}
+
+	/**
+	 * Sends the incident and removes it from the outbox, unless it failed in a way that might succeed later. All
+	 * requests for the incident together have to finish before the delivery deadline, otherwise it stays in the
+	 * outbox.
+	 */
+	public void send(TopdeskIncident incident) throws IOException {
+		TopdeskDeadline deadline = timeoutPolicy.newDeadline();
+		TopdeskDeadline.Scope scope = deadline == null ? null : deadline.enter();
+		try {
+			deliver(incident);
+		} catch (HTTPException e) {
+			if (isPermanent(e.getStatusCode())) {
+				outbox.acknowledge(incident);
+			} else {
+				outbox.release(incident);
+			}
+			throw e;
+		} catch (InvalidIncidentException e) {
+			outbox.acknowledge(incident);
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			outbox.release(incident);
+			throw e;
+		} finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+		outbox.acknowledge(incident);
+	}
+
+	private static boolean isPermanent(int statusCode) {
+		return statusCode >= 400 && statusCode < 500 && statusCode != 401 && statusCode != 408 && statusCode != 429;
+	}
+
+	private void deliver(TopdeskIncident incident) throws IOException {
+		String fingerprint = incident.getFingerprint();
+		if (fingerprint == null) {
+			createOrUpdate(incident);
+			return;
+		}
+		Lock lock = incidentIndex.lock(fingerprint);
+		lock.lock();
+		try {
+			createOrUpdate(incident);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void createOrUpdate(TopdeskIncident incident) throws IOException {
+		TopdeskConfig config = incident.getConfig();
+		if (config == null) {
+			try {
+				config = TopdeskConfig.of(incident.getConfiguration());
+			} catch (ConfigurationException e) {
+				throw new InvalidIncidentException(e);
+			}
+		}
+		OkHttpClient client = clientRegistry.get(config.getEndpoint());
+		TopdeskCredentials credentials = config.getCredentials();
+		String token = sessionManager.token(credentials);
+
+		try {
+			createOrUpdate(client, config, token, incident);
+		} catch (HTTPException e) {
+			if (e.getStatusCode() != 401) {
+				throw e;
+			}
+			createOrUpdate(client, config, sessionManager.reauthenticate(credentials, token), incident);
+		}
+	}
+
+	private void createOrUpdate(OkHttpClient client, TopdeskConfig config, String token, TopdeskIncident incident) throws IOException {
+		String fingerprint = incident.getFingerprint();
+		if (fingerprint != null) {
+			String openIncident = incidentIndex.get(fingerprint);
+			if (openIncident != null) {
+				if (addAction(client, config, token, openIncident, incident.getAction())) {
+					incidentIndex.put(fingerprint, openIncident);
+					return;
+				}
+				incidentIndex.invalidate(fingerprint);
+			}
+		}
+
+		String id = post(client, config, token, incident.getDescription(), incident.getOptionalFields());
+		if (fingerprint != null && id != null) {
+			incidentIndex.put(fingerprint, id);
+		}
+		if (id != null && config.getAttachmentFormat() != null && incident.getBacklog() != null && !incident.getBacklog().isEmpty()) {
+			attach(client, config, token, id, incident.getBacklog());
+		}
+	}
+
+	/**
+	 * Adds an entry to the progress trail of an existing incident.
+	 *
+	 * @return {@code false} if the incident no longer exists or can't be changed anymore
+	 */
+	boolean addAction(OkHttpClient client, TopdeskConfig config, String token, String incidentId, final String action) throws IOException {
+		Request request = new Request.Builder()
+				.url(config.getIncidentUrl(incidentId))
+				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
+				.put(TopdeskJson.requestBody(generator -> {
+					generator.writeStartObject();
+					generator.writeStringField("action", action);
+					generator.writeEndObject();
+				}))
+				.build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (response.isSuccessful()) {
+				LOG.debug("Added alert to open Topdesk incident {}", incidentId);
+				return true;
+			}
+			String responseString = response.body().string();
+			if (response.code() == 400 || response.code() == 403 || response.code() == 404) {
+				LOG.info("Couldn't add alert to Topdesk incident {}, creating a new incident: {}", incidentId, responseString);
+				return false;
+			}
+			LOG.error("Error during PUT: " + responseString);
+			throw new HTTPException(response.code());
+		}
+	}
+
+	/**
+	 * Creates the incident.
+	 *
+	 * @return the ID of the new incident, or {@code null} if it wasn't created
+	 */
+	String post(OkHttpClient client, TopdeskConfig config, String token, String description, Map<String, Map<String, String>> optionalFields) throws HTTPException, IOException {
+		Map<String, String> ids = lookupResolver.resolve(config.getCredentials(), config.getLookups());
+		if (ids == null) {
+			return null;
+		}
+		if (config.getCategory() != null) {
+			TopdeskCategoryTree categoryTree = lookupTables.getCategoryTree(config.getCredentials());
+			if (categoryTree != null) {
+				try {
+					ids.putAll(categoryTree.resolve(config.getCategory(), config.getSubcategory()));
+				} catch (TopdeskCategoryTree.UnknownCategoryException e) {
+					// The category may have been added since the tree was loaded, Topdesk decides by name
+					LOG.warn("{} in the loaded category tree, sending category by name", e.getMessage());
+				}
+			}
+		}
+
+		RequestBody body = TopdeskJson.requestBody(new TopdeskIncidentRequest(config, description, optionalFields, ids));
+
+		Request request = new Request.Builder()
+				.url(config.getIncidentsUrl())
+				.addHeader("Authorization", "TOKEN id=\"" + token +"\"")
+				.post(body)
+				.build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (response.code() != 201) {
+				LOG.error("Error during POST: " + response.body().string());
+				throw new HTTPException(response.code());
+			}
+			String id;
+			try {
+				id = TopdeskJson.readId(response.body().byteStream());
+			} catch (JsonProcessingException e) {
+				LOG.warn("Couldn't read the ID of the new Topdesk incident", e);
+				return null;
+			}
+			LOG.info("Created Topdesk incident {}", id);
+			return id;
+		}
+	}
+
+	/**
+	 * Uploads the backlog as attachment of the new incident. The incident exists already, so a failed upload is
+	 * only logged.
+	 */
+	void attach(OkHttpClient client, TopdeskConfig config, String token, String incidentId, List<Message> backlog) {
+		TopdeskBacklogAttachment attachment = new TopdeskBacklogAttachment(backlog, config.getAttachmentFormat(),
+				config.getAttachmentMaxBytes(), config.isAttachmentGzip());
+		Request request = new Request.Builder()
+				.url(config.getAttachmentsUrl(incidentId))
+				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
+				.post(new MultipartBody.Builder()
+						.setType(MultipartBody.FORM)
+						.addFormDataPart("file", attachment.getFileName(), attachment)
+						.build())
+				.build();
+
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				LOG.warn("Couldn't attach the backlog to Topdesk incident {}, status {}: {}", incidentId, response.code(),
+						response.body().string());
+				return;
+			}
+			LOG.debug("Attached the backlog to Topdesk incident {}", incidentId);
+		} catch (IOException e) {
+			LOG.warn("Couldn't attach the backlog to Topdesk incident {}", incidentId, e);
+		}
+	}
+
+	/**
+	 * Thrown for incidents with a configuration that is no longer valid, which will never be delivered.
+	 */
+	static class InvalidIncidentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		InvalidIncidentException(ConfigurationException cause) {
+			super("Invalid Topdesk configuration: " + cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.graylog;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams JSON request bodies straight into the connection and reads responses as a token stream with Jackson,
+ * without building a tree or a String first.
+ */
+public final class TopdeskJson {
+	public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	static final JsonFactory FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	/**
+	 * Writes a JSON document to a generator.
+	 */
+	public interface Writer {
+		void writeTo(JsonGenerator generator) throws IOException;
+	}
+
+	private TopdeskJson() {
+	}
+
+	/**
+	 * Returns a request body that writes the document when the request is sent. The body can be written more than
+	 * once, for example when OkHttp retries the request.
+	 */
+	public static RequestBody requestBody(final Writer writer) {
+		return new RequestBody() {
+			@Override
+			public MediaType contentType() {
+				return JSON;
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				try (JsonGenerator generator = FACTORY.createGenerator(sink.outputStream(), JsonEncoding.UTF8)) {
+					writer.writeTo(generator);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads a lookup list, an array of objects, and returns the {@code id} of the first object whose
+	 * {@code keyName} field equals {@code name}. Only scalar fields are looked at, and nothing after the matching
+	 * field is read. The stream is closed when done.
+	 *
+	 * @return the ID, or {@code null} if no object matches
+	 */
+	public static String findId(InputStream in, String keyName, String name) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException(parser, "Expected an array of lookup values");
+			}
+			JsonToken token;
+			while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+				String id = null;
+				boolean matches = false;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					if (parser.nextToken().isStructStart()) {
+						parser.skipChildren();
+						continue;
+					}
+					if ("id".equals(field)) {
+						id = parser.getValueAsString();
+					} else if (keyName.equals(field)) {
+						matches = name.equals(parser.getValueAsString());
+					}
+					if (matches && id != null) {
+						return id;
+					}
+				}
+			}
+			if (token != JsonToken.END_ARRAY) {
+				throw new JsonParseException(parser, "Expected a lookup value object");
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a complete lookup list, an array of objects. The name of an entry is read from {@code keyName}, and the
+	 * ID of the entry it belongs to from the {@code id} of the object in {@code parentField}, if given. The stream is
+	 * closed when done.
+	 */
+	public static List<TopdeskLookupTable.Entry> readLookupTable(InputStream in, String keyName, String parentField) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException(parser, "Expected an array of lookup values");
+			}
+			List<TopdeskLookupTable.Entry> entries = new ArrayList<>();
+			JsonToken token;
+			while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+				String id = null;
+				String name = null;
+				String parentId = null;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					JsonToken value = parser.nextToken();
+					if (value == JsonToken.START_OBJECT && field.equals(parentField)) {
+						parentId = readId(parser);
+					} else if (value.isStructStart()) {
+						parser.skipChildren();
+					} else if ("id".equals(field)) {
+						id = parser.getValueAsString();
+					} else if (keyName.equals(field)) {
+						name = parser.getValueAsString();
+					}
+				}
+				if (id != null) {
+					entries.add(new TopdeskLookupTable.Entry(id, name, parentId));
+				}
+			}
+			if (token != JsonToken.END_ARRAY) {
+				throw new JsonParseException(parser, "Expected a lookup value object");
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Reads the {@code id} of a single object, like a created incident. The stream is closed when done.
+	 *
+	 * @return the ID, or {@code null} if the object has none
+	 */
+	public static String readId(InputStream in) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "Expected an object");
+			}
+			return readId(parser);
+		}
+	}
+
+	private static String readId(JsonParser parser) throws IOException {
+		String id = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			if (parser.nextToken().isStructStart()) {
+				parser.skipChildren();
+			} else if ("id".equals(field)) {
+				id = parser.getValueAsString();
+			}
+		}
+		return id;
+	}
+}
@@ -0,0 +1,62 @@
+package org.graylog;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Starts the shared Topdesk workers with Graylog and releases the shared resources when Graylog shuts down.
+ */
+@Singleton
+public class TopdeskLifecycleService extends AbstractIdleService {
+	private final TopdeskClientRegistry clientRegistry;
+	private final TopdeskSessionManager sessionManager;
+	private final TopdeskLookupCache lookupCache;
+	private final TopdeskLookupTables lookupTables;
+	private final TopdeskLookupResolver lookupResolver;
+	private final TopdeskWarmUp warmUp;
+	private final TopdeskIncidentDispatcher incidentDispatcher;
+	private final TopdeskOutbox outbox;
+	private final TopdeskOutboxReplayer outboxReplayer;
+	private final TopdeskIncidentCoalescer incidentCoalescer;
+
+	@Inject
+	public TopdeskLifecycleService(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager,
+								   TopdeskLookupCache lookupCache, TopdeskLookupTables lookupTables, TopdeskLookupResolver lookupResolver, TopdeskWarmUp warmUp,
+								   TopdeskIncidentDispatcher incidentDispatcher, TopdeskOutbox outbox,
+								   TopdeskOutboxReplayer outboxReplayer, TopdeskIncidentCoalescer incidentCoalescer) {
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = sessionManager;
+		this.lookupCache = lookupCache;
+		this.lookupTables = lookupTables;
+		this.lookupResolver = lookupResolver;
+		this.warmUp = warmUp;
+		this.incidentDispatcher = incidentDispatcher;
+		this.outbox = outbox;
+		this.outboxReplayer = outboxReplayer;
+		this.incidentCoalescer = incidentCoalescer;
+	}
+
+	@Override
+	protected void startUp() throws Exception {
+		outbox.open();
+		incidentDispatcher.start();
+		outboxReplayer.start();
+		incidentCoalescer.start();
+	}
+
+	@Override
+	protected void shutDown() throws Exception {
+		incidentCoalescer.stop();
+		outboxReplayer.stop();
+		incidentDispatcher.stop();
+		outbox.close();
+		warmUp.shutdown();
+		lookupResolver.shutdown();
+		lookupCache.shutdown();
+		lookupTables.shutdown();
+		sessionManager.shutdown();
+		clientRegistry.shutdown();
+	}
+}
@@ -0,0 +1,47 @@
+package org.graylog;
+
+/**
+ * A name that has to be resolved to the ID of an entry of one of the Topdesk lookup lists.
+ */
+public final class TopdeskLookup {
+	private final String property;
+	private final String label;
+	private final String uri;
+	private final String name;
+	private final String keyName;
+
+	/**
+	 * @param property the property of the incident the resolved ID is sent as
+	 * @param label    the name used for this lookup in log messages
+	 * @param uri      the URI of the lookup list
+	 * @param name     the name to look for
+	 * @param keyName  the field of the lookup entries that holds the name
+	 */
+	public TopdeskLookup(String property, String label, String uri, String name, String keyName) {
+		this.property = property;
+		this.label = label;
+		this.uri = uri;
+		this.name = name;
+		this.keyName = keyName;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getKeyName() {
+		return keyName;
+	}
+}
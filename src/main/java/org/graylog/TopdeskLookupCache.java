@@ -0,0 +1,199 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.ws.http.HTTPException;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches the IDs of Topdesk lookup values (priorities, impacts, operator groups, ...) by name.
+ * <p>
+ * Entries are reloaded in the background after the refresh interval, alerts keep using the last known ID while
+ * that happens. Names that could not be resolved are remembered for a shorter time, so a misconfigured name does
+ * not cause a request on every alert.
+ */
+@Singleton
+public class TopdeskLookupCache {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskLookupCache.class);
+
+	private final TopdeskClientRegistry clientRegistry;
+	private final TopdeskSessionManager sessionManager;
+	private final TopdeskLookupTables lookupTables;
+	private final ExecutorService refreshExecutor;
+	private final LoadingCache<LookupKey, String> ids;
+	private final Cache<LookupKey, Boolean> unknownNames;
+
+	@Inject
+	public TopdeskLookupCache(TopdeskClientRegistry clientRegistry,
+							  TopdeskSessionManager sessionManager,
+							  @Named("topdesk_lookup_cache_ttl") Duration ttl,
+							  @Named("topdesk_lookup_cache_refresh_interval") Duration refreshInterval,
+							  @Named("topdesk_lookup_cache_negative_ttl") Duration negativeTtl,
+							  @Named("topdesk_lookup_cache_max_size") int maxSize,
+							  TopdeskLookupTables lookupTables,
+							  TopdeskMetrics metrics) {
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = sessionManager;
+		this.lookupTables = lookupTables;
+		this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-lookup-refresh-%d")
+				.setDaemon(true)
+				.build());
+		this.ids = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl.getQuantity(), ttl.getUnit())
+				.refreshAfterWrite(refreshInterval.getQuantity(), refreshInterval.getUnit())
+				.recordStats()
+				.build(CacheLoader.asyncReloading(new CacheLoader<LookupKey, String>() {
+					@Override
+					public String load(LookupKey key) throws Exception {
+						String id = fetch(key);
+						if (id == null) {
+							throw new UnknownNameException();
+						}
+						return id;
+					}
+				}, refreshExecutor));
+		this.unknownNames = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(negativeTtl.getQuantity(), negativeTtl.getUnit())
+				.build();
+		metrics.registerCache("lookups", ids::stats);
+	}
+
+	@VisibleForTesting
+	TopdeskLookupCache(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager, Duration ttl,
+					   Duration refreshInterval, Duration negativeTtl, int maxSize, TopdeskMetrics metrics) {
+		this(clientRegistry, sessionManager, ttl, refreshInterval, negativeTtl, maxSize, TopdeskLookupTables.NONE, metrics);
+	}
+
+	/**
+	 * Returns the ID of the entry of the given lookup list whose {@code keyName} equals {@code name}, or
+	 * {@code null} if there is no such entry. Names are taken from the snapshot of the lookup lists first, and only
+	 * looked up one by one when they aren't in it.
+	 */
+	public String getId(TopdeskCredentials credentials, String uri, String name, String keyName) throws IOException {
+		String snapshotId = lookupTables.findId(credentials, uri, keyName, name);
+		if (snapshotId != null) {
+			return snapshotId;
+		}
+		LookupKey key = new LookupKey(credentials, uri, name, keyName);
+		if (unknownNames.getIfPresent(key) != null) {
+			return null;
+		}
+		try {
+			return ids.get(key);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UnknownNameException) {
+				unknownNames.put(key, Boolean.TRUE);
+				return null;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	public void invalidateAll() {
+		ids.invalidateAll();
+		unknownNames.invalidateAll();
+	}
+
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+
+	private String fetch(LookupKey key) throws IOException {
+		OkHttpClient client = clientRegistry.get(key.credentials.getEndpoint());
+		String token = sessionManager.token(key.credentials);
+		try {
+			return getId(client, key.credentials.getEndpoint(), token, key.uri, key.name, key.keyName);
+		} catch (HTTPException e) {
+			if (e.getStatusCode() != 401) {
+				throw e;
+			}
+			token = sessionManager.reauthenticate(key.credentials, token);
+			return getId(client, key.credentials.getEndpoint(), token, key.uri, key.name, key.keyName);
+		}
+	}
+
+	@VisibleForTesting
+	static String getId(OkHttpClient client, String endpoint, String token, String URI, String name, String keyName) throws IOException {
+		Request request = new Request.Builder()
+				.url(endpoint + URI)
+				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
+				.get()
+				.build();
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				LOG.debug("Lookup of [{}] in {} failed with status {}", name, URI, response.code());
+				throw new HTTPException(response.code());
+			}
+			return TopdeskJson.findId(response.body().byteStream(), keyName, name);
+		}
+	}
+
+	private static final class UnknownNameException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private UnknownNameException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final class LookupKey {
+		private final TopdeskCredentials credentials;
+		private final String uri;
+		private final String name;
+		private final String keyName;
+
+		private LookupKey(TopdeskCredentials credentials, String uri, String name, String keyName) {
+			this.credentials = credentials;
+			this.uri = uri;
+			this.name = name;
+			this.keyName = keyName;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			LookupKey that = (LookupKey) o;
+			return credentials.equals(that.credentials) && uri.equals(that.uri)
+					&& name.equals(that.name) && keyName.equals(that.keyName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(credentials, uri, name, keyName);
+		}
+	}
+}
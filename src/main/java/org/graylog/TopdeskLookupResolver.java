@@ -0,0 +1,141 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves all lookups of an incident in parallel, on a bounded pool shared by all callbacks.
+ * <p>
+ * The lookups are joined with a single deadline, which is shortened to the delivery deadline of the incident. As soon
+ * as one name can't be resolved the others are cancelled.
+ */
+@Singleton
+public class TopdeskLookupResolver {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskLookupResolver.class);
+
+	private final TopdeskLookupCache lookupCache;
+	private final ListeningExecutorService executor;
+	private final long timeoutMillis;
+
+	@Inject
+	public TopdeskLookupResolver(TopdeskLookupCache lookupCache,
+								 @Named("topdesk_lookup_threads") int threads,
+								 @Named("topdesk_lookup_timeout") Duration timeout) {
+		this.lookupCache = lookupCache;
+		this.timeoutMillis = timeout.toMilliseconds();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(threads * 64),
+				new ThreadFactoryBuilder().setNameFormat("topdesk-lookup-%d").setDaemon(true).build(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = MoreExecutors.listeningDecorator(pool);
+	}
+
+	/**
+	 * Returns the resolved IDs by incident property, in the order of the given lookups, or {@code null} when one
+	 * of the names could not be found.
+	 */
+	public Map<String, String> resolve(final TopdeskCredentials credentials, List<TopdeskLookup> lookups) throws IOException {
+		Map<String, String> ids = new LinkedHashMap<>();
+		if (lookups.isEmpty()) {
+			return ids;
+		}
+		if (lookups.size() == 1) {
+			TopdeskLookup lookup = lookups.get(0);
+			String id = lookupCache.getId(credentials, lookup.getUri(), lookup.getName(), lookup.getKeyName());
+			if (id == null) {
+				logUnknown(lookup);
+				return null;
+			}
+			ids.put(lookup.getProperty(), id);
+			return ids;
+		}
+
+		TopdeskDeadline deadline = TopdeskDeadline.current();
+		List<ListenableFuture<String>> futures = new ArrayList<>(lookups.size());
+		for (final TopdeskLookup lookup : lookups) {
+			Callable<String> task = new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					String id = lookupCache.getId(credentials, lookup.getUri(), lookup.getName(), lookup.getKeyName());
+					if (id == null) {
+						throw new UnknownNameException(lookup);
+					}
+					return id;
+				}
+			};
+			futures.add(executor.submit(deadline == null ? task : deadline.wrap(task)));
+		}
+
+		ListenableFuture<List<String>> all = Futures.allAsList(futures);
+		long waitMillis = deadline == null ? timeoutMillis : Math.min(timeoutMillis, TimeUnit.NANOSECONDS.toMillis(deadline.remaining()));
+		try {
+			List<String> resolved = all.get(waitMillis, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < lookups.size(); i++) {
+				ids.put(lookups.get(i).getProperty(), resolved.get(i));
+			}
+			return ids;
+		} catch (TimeoutException e) {
+			TopdeskDeadline.check(0, "resolving lookups");
+			throw new IOException("Timed out after " + timeoutMillis + "ms resolving Topdesk lookups");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while resolving Topdesk lookups", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UnknownNameException) {
+				logUnknown(((UnknownNameException) cause).lookup);
+				return null;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			all.cancel(true);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static void logUnknown(TopdeskLookup lookup) {
+		LOG.error("No {} ID found for name [{}], not creating incident", lookup.getLabel(), lookup.getName());
+	}
+
+	private static final class UnknownNameException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private final TopdeskLookup lookup;
+
+		private UnknownNameException(TopdeskLookup lookup) {
+			super(null, null, false, false);
+			this.lookup = lookup;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * An immutable copy of all lookup lists of one Topdesk endpoint. A refresh creates a new snapshot with a higher
+ * version, which replaces the old one at once, so an alert never sees lists of different refreshes.
+ */
+public final class TopdeskLookupSnapshot {
+	private final long version;
+	private final long loadedAtMillis;
+	private final Map<String, TopdeskLookupTable> tables;
+	private final TopdeskCategoryTree categoryTree;
+
+	public TopdeskLookupSnapshot(long version, long loadedAtMillis, Map<String, TopdeskLookupTable> tables) {
+		this.version = version;
+		this.loadedAtMillis = loadedAtMillis;
+		this.tables = ImmutableMap.copyOf(tables);
+		this.categoryTree = TopdeskCategoryTree.of(tables.get(TopdeskAlarmCallback.CATEGORIES_URI),
+				tables.get(TopdeskAlarmCallback.SUBCATEGORIES_URI));
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getLoadedAtMillis() {
+		return loadedAtMillis;
+	}
+
+	/**
+	 * Returns the lookup list of the URI, or {@code null} if it wasn't loaded.
+	 */
+	public TopdeskLookupTable table(String uri) {
+		return tables.get(uri);
+	}
+
+	/**
+	 * Returns the categories and their subcategories, or {@code null} if the categories weren't loaded.
+	 */
+	public TopdeskCategoryTree getCategoryTree() {
+		return categoryTree;
+	}
+
+	Map<String, TopdeskLookupTable> getTables() {
+		return tables;
+	}
+}
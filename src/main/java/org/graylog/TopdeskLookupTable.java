@@ -0,0 +1,87 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of one Topdesk lookup list, indexed by ID and by name. Names are matched exactly, like the
+ * lookup of a single name.
+ */
+public final class TopdeskLookupTable {
+	/**
+	 * An entry of a lookup list.
+	 */
+	public static final class Entry {
+		private final String id;
+		private final String name;
+		private final String parentId;
+
+		public Entry(String id, String name, String parentId) {
+			this.id = id;
+			this.name = name;
+			this.parentId = parentId;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the ID of the entry this one belongs to, like the category of a subcategory, or {@code null}.
+		 */
+		public String getParentId() {
+			return parentId;
+		}
+	}
+
+	private final List<Entry> entries;
+	private final Map<String, Entry> byId;
+	private final Map<String, Entry> byName;
+
+	public TopdeskLookupTable(List<Entry> entries) {
+		this.entries = ImmutableList.copyOf(entries);
+		Map<String, Entry> byId = new HashMap<>(entries.size() * 2);
+		Map<String, Entry> byName = new HashMap<>(entries.size() * 2);
+		for (Entry entry : entries) {
+			byId.putIfAbsent(entry.id, entry);
+			if (entry.name != null) {
+				// Like the lookup by name, the first entry with a name wins
+				byName.putIfAbsent(entry.name, entry);
+			}
+		}
+		this.byId = Collections.unmodifiableMap(byId);
+		this.byName = Collections.unmodifiableMap(byName);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public Entry byId(String id) {
+		return byId.get(id);
+	}
+
+	public Entry byName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Returns the ID of the entry with the name, or {@code null}.
+	 */
+	public String getId(String name) {
+		Entry entry = byName(name);
+		return entry == null ? null : entry.id;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,277 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.ws.http.HTTPException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.graylog.TopdeskAlarmCallback.*;
+
+/**
+ * Keeps a snapshot of all lookup lists per Topdesk endpoint and account, shared by all callbacks that use it.
+ * <p>
+ * The first alert that needs a snapshot starts loading it in the background, and alerts look names up one by one
+ * until it is there. The warm-up of a callback loads it after logging in. After that the snapshot is refreshed in the
+ * background at the refresh interval, randomized by 10% so the endpoints are not all refreshed at once. A list that
+ * fails to load keeps the entries of the previous snapshot.
+ */
+@Singleton
+public class TopdeskLookupTables {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskLookupTables.class);
+
+	/**
+	 * A lookup list that is copied into the snapshots.
+	 */
+	static final class Definition {
+		private final String uri;
+		private final String keyName;
+		private final String parentField;
+
+		private Definition(String uri, String keyName, String parentField) {
+			this.uri = uri;
+			this.keyName = keyName;
+			this.parentField = parentField;
+		}
+	}
+
+	static final List<Definition> DEFINITIONS = ImmutableList.of(
+			new Definition(PRIORITIES_URI, "name", null),
+			new Definition(IMPACTS_URI, "name", null),
+			new Definition(URGENCIES_URI, "name", null),
+			new Definition(ENTRY_TYPES_URI, "name", null),
+			new Definition(CALL_TYPES_URI, "name", null),
+			new Definition(OPERATOR_GROUPS_URI, "groupName", null),
+			new Definition(CATEGORIES_URI, "name", null),
+			new Definition(SUBCATEGORIES_URI, "name", "category"));
+
+	/** Without snapshots, every name is looked up on its own. */
+	static final TopdeskLookupTables NONE = new TopdeskLookupTables(null, null, false, Duration.minutes(10));
+
+	private static final class Holder {
+		private volatile TopdeskCredentials credentials;
+		private volatile TopdeskLookupSnapshot snapshot;
+		private final AtomicBoolean loading = new AtomicBoolean();
+
+		private Holder(TopdeskCredentials credentials) {
+			this.credentials = credentials;
+		}
+	}
+
+	private final TopdeskClientRegistry clientRegistry;
+	private final TopdeskSessionManager sessionManager;
+	private final boolean enabled;
+	private final long refreshIntervalMillis;
+	private final ConcurrentMap<TopdeskCredentials, Holder> holders = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+
+	@Inject
+	public TopdeskLookupTables(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager,
+							   @Named("topdesk_lookup_tables_enabled") boolean enabled,
+							   @Named("topdesk_lookup_tables_refresh_interval") Duration refreshInterval) {
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = sessionManager;
+		this.enabled = enabled;
+		this.refreshIntervalMillis = refreshInterval.toMilliseconds();
+		this.scheduler = enabled ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-lookup-tables-%d")
+				.setDaemon(true)
+				.build()) : null;
+	}
+
+	/**
+	 * Returns the snapshot of the lookup lists, or {@code null} if snapshots are disabled or it isn't loaded yet. The
+	 * first time the endpoint and account are used, the snapshot is loaded in the background.
+	 */
+	public TopdeskLookupSnapshot get(TopdeskCredentials credentials) {
+		if (!enabled) {
+			return null;
+		}
+		final Holder holder = holder(credentials);
+		TopdeskLookupSnapshot snapshot = holder.snapshot;
+		if (snapshot == null && holder.loading.compareAndSet(false, true)) {
+			try {
+				scheduler.execute(() -> load(holder));
+			} catch (RejectedExecutionException e) {
+				LOG.debug("Not loading Topdesk lookup lists, shutting down");
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the snapshot of the lookup lists, loading it and waiting for it if this is the first time the endpoint
+	 * and account are used, or {@code null} if snapshots are disabled. Only meant for background threads.
+	 */
+	public TopdeskLookupSnapshot load(TopdeskCredentials credentials) {
+		if (!enabled) {
+			return null;
+		}
+		return load(holder(credentials));
+	}
+
+	/**
+	 * Returns the ID of the named entry of the lookup list, or {@code null} if the list isn't in the snapshot or
+	 * doesn't contain the name.
+	 *
+	 * @param uri the URI of the lookup, a query is ignored
+	 */
+	public String findId(TopdeskCredentials credentials, String uri, String keyName, String name) {
+		TopdeskLookupSnapshot snapshot = get(credentials);
+		if (snapshot == null) {
+			return null;
+		}
+		int query = uri.indexOf('?');
+		String path = query < 0 ? uri : uri.substring(0, query);
+		for (Definition definition : DEFINITIONS) {
+			if (definition.uri.equals(path) && definition.keyName.equals(keyName)) {
+				TopdeskLookupTable table = snapshot.table(path);
+				return table == null ? null : table.getId(name);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the categories and their subcategories, or {@code null} if they aren't known and have to be sent by
+	 * name.
+	 */
+	public TopdeskCategoryTree getCategoryTree(TopdeskCredentials credentials) {
+		TopdeskLookupSnapshot snapshot = get(credentials);
+		return snapshot == null ? null : snapshot.getCategoryTree();
+	}
+
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@VisibleForTesting
+	TopdeskLookupSnapshot refresh(TopdeskCredentials credentials) {
+		Holder holder = holders.computeIfAbsent(credentials, Holder::new);
+		synchronized (holder) {
+			refresh(holder);
+			return holder.snapshot;
+		}
+	}
+
+	private Holder holder(TopdeskCredentials credentials) {
+		Holder holder = holders.computeIfAbsent(credentials, Holder::new);
+		// The password might have changed, later refreshes use the latest one
+		holder.credentials = credentials;
+		return holder;
+	}
+
+	private TopdeskLookupSnapshot load(Holder holder) {
+		synchronized (holder) {
+			if (holder.snapshot == null) {
+				refresh(holder);
+				scheduleRefresh(holder);
+			}
+			return holder.snapshot;
+		}
+	}
+
+	private void refresh(Holder holder) {
+		TopdeskCredentials credentials = holder.credentials;
+		TopdeskLookupSnapshot previous = holder.snapshot;
+		Map<String, TopdeskLookupTable> tables = new HashMap<>();
+		try {
+			sessionManager.token(credentials);
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Couldn't load the Topdesk lookup lists of {}: {}", credentials, describe(e));
+			if (previous == null) {
+				// Names are looked up one by one until the next refresh
+				holder.snapshot = new TopdeskLookupSnapshot(0, System.currentTimeMillis(), tables);
+			}
+			return;
+		}
+		for (Definition definition : DEFINITIONS) {
+			try {
+				tables.put(definition.uri, load(credentials, definition));
+			} catch (IOException | RuntimeException e) {
+				TopdeskLookupTable last = previous == null ? null : previous.table(definition.uri);
+				if (last != null) {
+					tables.put(definition.uri, last);
+				}
+				LOG.warn("Couldn't load Topdesk lookup list {} of {}: {}", definition.uri, credentials, describe(e));
+			}
+		}
+		holder.snapshot = new TopdeskLookupSnapshot(previous == null ? 1 : previous.getVersion() + 1,
+				System.currentTimeMillis(), tables);
+		LOG.debug("Loaded version {} of the Topdesk lookup lists of {}", holder.snapshot.getVersion(), credentials);
+	}
+
+	private static String describe(Exception e) {
+		return e instanceof HTTPException ? "status " + ((HTTPException) e).getStatusCode() : e.toString();
+	}
+
+	private TopdeskLookupTable load(TopdeskCredentials credentials, Definition definition) throws IOException {
+		OkHttpClient client = clientRegistry.get(credentials.getEndpoint());
+		String token = sessionManager.token(credentials);
+		try {
+			return load(client, credentials, token, definition);
+		} catch (HTTPException e) {
+			if (e.getStatusCode() != 401) {
+				throw e;
+			}
+			return load(client, credentials, sessionManager.reauthenticate(credentials, token), definition);
+		}
+	}
+
+	private static TopdeskLookupTable load(OkHttpClient client, TopdeskCredentials credentials, String token, Definition definition) throws IOException {
+		Request request = new Request.Builder()
+				.url(credentials.getEndpoint() + definition.uri)
+				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
+				.get()
+				.build();
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new HTTPException(response.code());
+			}
+			return new TopdeskLookupTable(TopdeskJson.readLookupTable(response.body().byteStream(),
+					definition.keyName, definition.parentField));
+		}
+	}
+
+	private void scheduleRefresh(final Holder holder) {
+		long delay = (long) (refreshIntervalMillis * ThreadLocalRandom.current().nextDouble(0.9, 1.1));
+		try {
+			scheduler.schedule(() -> {
+				try {
+					synchronized (holder) {
+						refresh(holder);
+					}
+				} catch (Exception e) {
+					LOG.error("Failed to refresh Topdesk lookup lists", e);
+				} finally {
+					scheduleRefresh(holder);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOG.debug("Not refreshing Topdesk lookup lists, shutting down");
+		}
+	}
+}
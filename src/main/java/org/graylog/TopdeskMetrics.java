@@ -0,0 +1,114 @@
+package org.graylog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
+import okhttp3.HttpUrl;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Registers the metrics of the plugin in Graylog's metric registry, named per Topdesk endpoint:
+ * {@code org.graylog.TopdeskAlarmCallback.<host>_<port>.<metric>}.
+ */
+@Singleton
+public class TopdeskMetrics {
+	private static final Pattern INVALID_NAME_CHARACTERS = Pattern.compile("[^A-Za-z0-9_-]");
+
+	private final MetricRegistry metricRegistry;
+	private final ConcurrentMap<String, String> prefixes = new ConcurrentHashMap<>();
+
+	@Inject
+	public TopdeskMetrics(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+		registerCache("templates", TopdeskTemplate::stats);
+	}
+
+	public Timer timer(String endpoint, String metric) {
+		return metricRegistry.timer(prefix(endpoint) + "." + metric);
+	}
+
+	public Meter meter(String endpoint, String metric) {
+		return metricRegistry.meter(prefix(endpoint) + "." + metric);
+	}
+
+	public Histogram histogram(String endpoint, String metric) {
+		return metricRegistry.histogram(prefix(endpoint) + "." + metric);
+	}
+
+	/**
+	 * Registers a gauge of the endpoint, replacing a previous gauge with the same name.
+	 */
+	public void registerGauge(String endpoint, String metric, Gauge<?> gauge) {
+		register(prefix(endpoint) + "." + metric, gauge);
+	}
+
+	public TopdeskMetricsInterceptor newInterceptor(String endpoint) {
+		return new TopdeskMetricsInterceptor(this, endpoint);
+	}
+
+	/**
+	 * Registers gauges with the hit rate and the number of hits, misses and evictions of a cache shared by all
+	 * endpoints, replacing those of a previous cache with the same name.
+	 */
+	public void registerCache(String cache, final Supplier<CacheStats> stats) {
+		register(MetricRegistry.name(TopdeskAlarmCallback.class, "cache", cache, "hit-rate"), new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return stats.get().hitRate();
+			}
+		});
+		register(MetricRegistry.name(TopdeskAlarmCallback.class, "cache", cache, "hits"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return stats.get().hitCount();
+			}
+		});
+		register(MetricRegistry.name(TopdeskAlarmCallback.class, "cache", cache, "misses"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return stats.get().missCount();
+			}
+		});
+		register(MetricRegistry.name(TopdeskAlarmCallback.class, "cache", cache, "evictions"), new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return stats.get().evictionCount();
+			}
+		});
+	}
+
+	private void register(String name, Gauge<?> gauge) {
+		metricRegistry.remove(name);
+		metricRegistry.register(name, gauge);
+	}
+
+	/**
+	 * Returns the prefix of the metric names of the endpoint, sanitized once per endpoint.
+	 */
+	private String prefix(String endpoint) {
+		String key = String.valueOf(endpoint);
+		String prefix = prefixes.get(key);
+		if (prefix == null) {
+			prefix = prefixes.computeIfAbsent(key, e -> MetricRegistry.name(TopdeskAlarmCallback.class, endpointName(endpoint)));
+		}
+		return prefix;
+	}
+
+	/**
+	 * Returns the endpoint as {@code host_port}, without the dots that separate the parts of metric names.
+	 */
+	static String endpointName(String endpoint) {
+		HttpUrl url = endpoint == null ? null : HttpUrl.parse(endpoint);
+		String name = url == null ? String.valueOf(endpoint) : url.host() + "_" + url.port();
+		return INVALID_NAME_CHARACTERS.matcher(name).replaceAll("_");
+	}
+}
@@ -0,0 +1,120 @@
+package org.graylog;
+
+import com.codahale.metrics.Timer;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Buffer;
+import okio.ForwardingSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures the requests to one endpoint per stage: {@code login}, {@code logout}, {@code incident-create},
+ * {@code incident-update}, {@code attachment} and {@code lookup.<list>}. Records the latency including retries and waits for the
+ * limits, the size of the request body and the number of responses per status code.
+ */
+public class TopdeskMetricsInterceptor implements Interceptor {
+	private final TopdeskMetrics metrics;
+	private final String endpoint;
+
+	public TopdeskMetricsInterceptor(TopdeskMetrics metrics, String endpoint) {
+		this.metrics = metrics;
+		this.endpoint = endpoint;
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		Request request = chain.request();
+		String stage = stage(request);
+		CountingRequestBody body = null;
+		if (request.body() != null) {
+			body = new CountingRequestBody(request.body());
+			request = request.newBuilder().method(request.method(), body).build();
+		}
+
+		Timer.Context timer = metrics.timer(endpoint, "requests." + stage).time();
+		Response response;
+		try {
+			response = chain.proceed(request);
+		} catch (IOException e) {
+			metrics.meter(endpoint, "responses.failed").mark();
+			throw e;
+		} finally {
+			timer.stop();
+			if (body != null && body.written >= 0) {
+				metrics.histogram(endpoint, "payload-size." + stage).update(body.written);
+			}
+		}
+		metrics.meter(endpoint, "responses." + response.code()).mark();
+		return response;
+	}
+
+	static String stage(Request request) {
+		String path = request.url().encodedPath();
+		if (path.contains("/tas/api/login")) {
+			return "login";
+		}
+		if (path.contains("/tas/api/logout")) {
+			return "logout";
+		}
+		if (path.endsWith("/attachments")) {
+			return "attachment";
+		}
+		if ("POST".equals(request.method())) {
+			return "incident-create";
+		}
+		if ("PUT".equals(request.method())) {
+			return "incident-update";
+		}
+		List<String> segments = request.url().pathSegments();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			if (!segments.get(i).isEmpty()) {
+				return "lookup." + segments.get(i);
+			}
+		}
+		return "other";
+	}
+
+	/**
+	 * Counts the bytes of the last time the body was written, retries write it again.
+	 */
+	private static final class CountingRequestBody extends RequestBody {
+		private final RequestBody delegate;
+		private volatile long written = -1;
+
+		private CountingRequestBody(RequestBody delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public MediaType contentType() {
+			return delegate.contentType();
+		}
+
+		@Override
+		public long contentLength() throws IOException {
+			return delegate.contentLength();
+		}
+
+		@Override
+		public void writeTo(BufferedSink sink) throws IOException {
+			final long[] count = new long[1];
+			BufferedSink counting = Okio.buffer(new ForwardingSink(sink) {
+				@Override
+				public void write(Buffer source, long byteCount) throws IOException {
+					super.write(source, byteCount);
+					count[0] += byteCount;
+				}
+			});
+			delegate.writeTo(counting);
+			counting.emit();
+			written = count[0];
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package org.graylog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of incidents that have not been delivered to Topdesk yet.
+ * <p>
+ * Incidents are written to segment files before they are sent, and acknowledged once Topdesk accepted them.
+ * Acknowledgements are appended to a separate file. Only a small index entry per pending incident is kept in
+ * memory, with the account the incident is sent with, so incidents that can't be sent yet are skipped without
+ * reading them. The incidents themselves are read back from disk when they are replayed. A segment is deleted as soon
+ * as all of its incidents are acknowledged. Writes are forced to disk in batches, once per flush interval.
+ * <p>
+ * Each record in a segment consists of the payload length, the CRC32 of the payload, the incident ID and the
+ * JSON serialized incident. A partially written record at the end of a segment is discarded on recovery.
+ * <p>
+ * The Topdesk password is not stored, incidents read back from the outbox get it from the configuration of a
+ * running callback when they are replayed. Unless configured otherwise, the outbox is kept next to the message
+ * journal in Graylog's data directory.
+ */
+@Singleton
+public class TopdeskOutbox {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskOutbox.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String ACK_FILE = "acks.log";
+	private static final int HEADER_SIZE = 16;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final boolean enabled;
+	private final Path directory;
+	private final long segmentSize;
+	private final long flushIntervalMillis;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final ConcurrentNavigableMap<Long, Entry> pending = new ConcurrentSkipListMap<>();
+	private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<List<Object>, List<Object>> accounts = new ConcurrentHashMap<>();
+	private final AtomicBoolean failed = new AtomicBoolean();
+	private final AtomicBoolean recovered = new AtomicBoolean();
+	private final Object lock = new Object();
+
+	private Segment active;
+	private FileChannel ackChannel;
+	private long ackCount;
+	private long nextId;
+	private boolean dirty;
+	private volatile boolean open;
+	private ScheduledExecutorService flusher;
+
+	@Inject
+	public TopdeskOutbox(@Named("topdesk_outbox_enabled") boolean enabled,
+						 @Named("topdesk_outbox_dir") String directory,
+						 @Named("message_journal_dir") File journalDirectory,
+						 @Named("topdesk_outbox_segment_size") Size segmentSize,
+						 @Named("topdesk_outbox_flush_interval") Duration flushInterval) {
+		this.enabled = enabled;
+		this.directory = directory(directory, journalDirectory);
+		this.segmentSize = segmentSize.toBytes();
+		this.flushIntervalMillis = flushInterval.toMilliseconds();
+	}
+
+	@VisibleForTesting
+	TopdeskOutbox(boolean enabled, String directory, Size segmentSize, Duration flushInterval) {
+		this(enabled, directory, new File("data/journal"), segmentSize, flushInterval);
+	}
+
+	/**
+	 * Returns the configured directory, or {@code topdesk-outbox} in the directory of the message journal.
+	 */
+	@VisibleForTesting
+	static Path directory(String directory, File journalDirectory) {
+		if (directory != null && !directory.trim().isEmpty()) {
+			return Paths.get(directory.trim());
+		}
+		return journalDirectory.getAbsoluteFile().toPath().resolveSibling("topdesk-outbox");
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Opens the outbox and recovers the incidents that were not acknowledged before the last shutdown.
+	 */
+	public void open() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		synchronized (lock) {
+			if (open) {
+				return;
+			}
+			Files.createDirectories(directory);
+			ackChannel = FileChannel.open(directory.resolve(ACK_FILE), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			restrictPermissions(directory.resolve(ACK_FILE));
+			Set<Long> acknowledged = readAcknowledgements();
+
+			for (Path path : segmentPaths()) {
+				Segment segment = new Segment(baseId(path), path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+				recover(segment, acknowledged);
+				if (segment.live == 0) {
+					segment.delete();
+				} else {
+					segments.put(segment.baseId, segment);
+				}
+				nextId = Math.max(nextId, segment.lastId + 1);
+			}
+			if (!pending.isEmpty()) {
+				LOG.info("Recovered {} undelivered Topdesk incidents from {}", pending.size(), directory);
+				failed.set(true);
+			}
+			compactAcknowledgements();
+
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					.setNameFormat("topdesk-outbox-flush-%d")
+					.setDaemon(true)
+					.build());
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e) {
+						LOG.error("Couldn't flush Topdesk outbox", e);
+					}
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+			open = true;
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (!open) {
+				return;
+			}
+			flusher.shutdownNow();
+			flush();
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			segments.clear();
+			pending.clear();
+			ackChannel.close();
+			active = null;
+			open = false;
+		}
+	}
+
+	/**
+	 * Stores the incident and returns it with its outbox ID. The incident is returned unchanged when the outbox
+	 * is disabled.
+	 */
+	public TopdeskIncident append(TopdeskIncident incident) throws IOException {
+		if (!enabled) {
+			return incident;
+		}
+		open();
+		byte[] payload = objectMapper.writeValueAsBytes(incident.withoutPassword());
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		synchronized (lock) {
+			if (active == null || active.size >= segmentSize) {
+				roll();
+			}
+			long id = nextId++;
+			ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+			record.putInt(payload.length).putInt((int) crc.getValue()).putLong(id).put(payload);
+			record.flip();
+			long position = active.size;
+			while (record.hasRemaining()) {
+				active.channel.write(record, position + record.position());
+			}
+			active.size += HEADER_SIZE + payload.length;
+			active.live++;
+			active.lastId = id;
+			dirty = true;
+
+			Entry entry = new Entry(id, active, position, payload.length, account(incident.getConfiguration()));
+			entry.inFlight = true;
+			pending.put(id, entry);
+			return incident.withOutboxId(id);
+		}
+	}
+
+	/**
+	 * Marks the incident as delivered, it won't be replayed anymore.
+	 */
+	public void acknowledge(TopdeskIncident incident) throws IOException {
+		long id = incident.getOutboxId();
+		if (id == TopdeskIncident.NOT_STORED || !open) {
+			return;
+		}
+		if (failed.compareAndSet(true, false)) {
+			recovered.set(true);
+		}
+		synchronized (lock) {
+			Entry entry = pending.remove(id);
+			if (entry == null) {
+				return;
+			}
+			ByteBuffer ack = ByteBuffer.allocate(8).putLong(0, id);
+			ackChannel.write(ack, ackChannel.size());
+			ackCount++;
+			dirty = true;
+
+			Segment segment = entry.segment;
+			segment.live--;
+			if (segment.live == 0 && segment != active) {
+				segments.remove(segment.baseId);
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 * Called when delivery of the incident failed, it will be replayed later.
+	 */
+	public void release(TopdeskIncident incident) {
+		Entry entry = pending.get(incident.getOutboxId());
+		if (entry != null) {
+			entry.inFlight = false;
+			failed.set(true);
+		}
+	}
+
+	/**
+	 * Returns true once after an incident was delivered following a failed delivery.
+	 */
+	public boolean hasRecovered() {
+		return recovered.getAndSet(false);
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Reads up to {@code max} pending incidents that are not being delivered at the moment, oldest first, and
+	 * marks them as being delivered.
+	 */
+	public List<TopdeskIncident> claim(int max) throws IOException {
+		return claim(max, Predicates.<List<Object>>alwaysTrue());
+	}
+
+	/**
+	 * Like {@link #claim(int)}, but skips the incidents of accounts that are not {@code ready}, without reading them.
+	 *
+	 * @param ready tests the account of an incident, as returned by {@link TopdeskConfigRegistry#account(Map)}
+	 */
+	public List<TopdeskIncident> claim(int max, Predicate<List<Object>> ready) throws IOException {
+		List<TopdeskIncident> incidents = new ArrayList<>();
+		Iterator<Entry> entries = pending.values().iterator();
+		while (incidents.size() < max && entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry.account != null && !ready.apply(entry.account)) {
+				continue;
+			}
+			synchronized (entry) {
+				if (entry.inFlight) {
+					continue;
+				}
+				entry.inFlight = true;
+			}
+			try {
+				incidents.add(read(entry));
+			} catch (IOException e) {
+				if (pending.containsKey(entry.id)) {
+					entry.inFlight = false;
+					throw e;
+				}
+				// acknowledged in the meantime, its segment may be gone already
+			}
+		}
+		return incidents;
+	}
+
+	@VisibleForTesting
+	void flush() throws IOException {
+		synchronized (lock) {
+			if (!dirty) {
+				return;
+			}
+			if (active != null) {
+				active.channel.force(false);
+			}
+			ackChannel.force(false);
+			dirty = false;
+			if (ackCount > 1024 && ackCount > 2L * pending.size()) {
+				compactAcknowledgements();
+			}
+		}
+	}
+
+	private TopdeskIncident read(Entry entry) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(entry.length);
+		readFully(entry.segment.channel, payload, entry.position + HEADER_SIZE);
+		return objectMapper.readValue(payload.array(), TopdeskIncident.class).withOutboxId(entry.id);
+	}
+
+	/**
+	 * Returns the account of the configuration, the same instance for every incident of the account.
+	 */
+	private List<Object> account(Map<String, Object> configuration) {
+		List<Object> account = TopdeskConfigRegistry.account(configuration);
+		List<Object> existing = accounts.putIfAbsent(account, account);
+		return existing == null ? account : existing;
+	}
+
+	private void roll() throws IOException {
+		if (active != null) {
+			active.channel.force(false);
+			if (active.live == 0) {
+				segments.remove(active.baseId);
+				active.delete();
+			}
+		}
+		Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextId, SEGMENT_SUFFIX));
+		active = new Segment(nextId, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE));
+		restrictPermissions(path);
+		segments.put(active.baseId, active);
+	}
+
+	private void recover(Segment segment, Set<Long> acknowledged) throws IOException {
+		FileChannel channel = segment.channel;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long position = 0;
+		long size = channel.size();
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			long id = header.getLong();
+			if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(channel, payload, position + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array());
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			if (!acknowledged.contains(id)) {
+				pending.put(id, new Entry(id, segment, position, length, readAccount(payload.array())));
+				segment.live++;
+			}
+			segment.lastId = id;
+			position += HEADER_SIZE + length;
+		}
+		if (position < size) {
+			LOG.warn("Discarding {} bytes of incomplete records at the end of {}", size - position, segment.path);
+			channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * Returns the account of a recovered incident, or {@code null} if it can't be read, so the replay reads it and
+	 * finds out.
+	 */
+	private List<Object> readAccount(byte[] payload) {
+		try {
+			Map<String, Object> configuration = objectMapper.readValue(payload, TopdeskIncident.class).getConfiguration();
+			return configuration == null ? null : account(configuration);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private Set<Long> readAcknowledgements() throws IOException {
+		Set<Long> acknowledged = new HashSet<>();
+		long size = ackChannel.size() / 8 * 8;
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+		long position = 0;
+		while (position < size) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size - position));
+			readFully(ackChannel, buffer, position);
+			buffer.flip();
+			while (buffer.remaining() >= 8) {
+				acknowledged.add(buffer.getLong());
+			}
+			position += buffer.limit();
+		}
+		return acknowledged;
+	}
+
+	/**
+	 * Rewrites the acknowledgements, keeping only those of incidents in segments that still exist.
+	 */
+	private void compactAcknowledgements() throws IOException {
+		Path target = directory.resolve(ACK_FILE);
+		Path temp = directory.resolve(ACK_FILE + ".tmp");
+		long count = 0;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+			for (Segment segment : segments.values()) {
+				for (long id = segment.baseId; id <= segment.lastId; id++) {
+					if (pending.containsKey(id)) {
+						continue;
+					}
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+						buffer.clear();
+					}
+					buffer.putLong(id);
+					count++;
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		ackChannel.close();
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		ackChannel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		restrictPermissions(target);
+		ackCount = count;
+	}
+
+	private List<Path> segmentPaths() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				paths.add(path);
+			}
+		}
+		paths.sort(null);
+		return paths;
+	}
+
+	private static long baseId(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of Topdesk outbox file");
+			}
+		}
+	}
+
+	private static void restrictPermissions(Path path) {
+		// the incidents contain the alert details and the callback configuration
+		try {
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException | IOException e) {
+			LOG.debug("Couldn't restrict permissions of {}", path);
+		}
+	}
+
+	private static final class Segment {
+		private final long baseId;
+		private final Path path;
+		private final FileChannel channel;
+		private long size;
+		private long lastId;
+		private int live;
+
+		private Segment(long baseId, Path path, FileChannel channel) throws IOException {
+			this.baseId = baseId;
+			this.path = path;
+			this.channel = channel;
+			this.size = channel.size();
+			this.lastId = baseId - 1;
+		}
+
+		private void delete() throws IOException {
+			channel.close();
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private static final class Entry {
+		private final long id;
+		private final Segment segment;
+		private final long position;
+		private final int length;
+		private final List<Object> account;
+		private volatile boolean inFlight;
+
+		private Entry(long id, Segment segment, long position, int length, List<Object> account) {
+			this.id = id;
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+			this.account = account;
+		}
+	}
+}
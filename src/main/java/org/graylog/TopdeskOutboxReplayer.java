@@ -0,0 +1,139 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands undelivered incidents from the outbox to the dispatcher: periodically, and as soon as an incident was
+ * delivered after a failure, which means Topdesk is reachable again.
+ * <p>
+ * Never more incidents are read from the outbox than fit in the dispatch queue.
+ * <p>
+ * The outbox doesn't store the Topdesk password. Incidents get it from the configuration of a callback with the
+ * same endpoint, username and login mode, and wait in the outbox until such a callback was initialized, when it is
+ * triggered or its configuration is tested. So after a restart, undelivered incidents are not sent when Graylog
+ * starts but with the first replay after their callback was initialized. Waiting incidents are skipped without
+ * reading them.
+ */
+@Singleton
+public class TopdeskOutboxReplayer {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskOutboxReplayer.class);
+
+	private final TopdeskOutbox outbox;
+	private final TopdeskIncidentDispatcher incidentDispatcher;
+	private final TopdeskConfigRegistry configRegistry;
+	private final long intervalNanos;
+
+	private ScheduledExecutorService scheduler;
+	private long lastReplay;
+
+	@Inject
+	public TopdeskOutboxReplayer(TopdeskOutbox outbox, TopdeskIncidentDispatcher incidentDispatcher,
+								 TopdeskConfigRegistry configRegistry,
+								 @Named("topdesk_outbox_replay_interval") Duration interval) {
+		this.outbox = outbox;
+		this.incidentDispatcher = incidentDispatcher;
+		this.configRegistry = configRegistry;
+		this.intervalNanos = interval.toNanoseconds();
+	}
+
+	public synchronized void start() {
+		if (!outbox.isEnabled() || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-outbox-replay-%d")
+				.setDaemon(true)
+				.build());
+		lastReplay = System.nanoTime() - intervalNanos;
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, 0, 1, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	private void tick() {
+		long now = System.nanoTime();
+		if (now - lastReplay < intervalNanos && !outbox.hasRecovered()) {
+			return;
+		}
+		lastReplay = now;
+		try {
+			replay();
+		} catch (Exception e) {
+			LOG.error("Couldn't replay undelivered Topdesk incidents", e);
+		}
+	}
+
+	void replay() throws Exception {
+		int room = incidentDispatcher.getRemainingCapacity();
+		final Set<List<Object>> waiting = new HashSet<>();
+		Predicate<List<Object>> ready = account -> {
+			if (configRegistry.hasPassword(account)) {
+				return true;
+			}
+			waiting.add(account);
+			return false;
+		};
+
+		// Incidents without a callback are skipped unread, and every incident claimed counts against the room
+		List<TopdeskIncident> replayed = new ArrayList<>();
+		int claimed = 0;
+		while (claimed < room) {
+			List<TopdeskIncident> incidents = outbox.claim(room - claimed, ready);
+			if (incidents.isEmpty()) {
+				break;
+			}
+			claimed += incidents.size();
+			for (TopdeskIncident incident : incidents) {
+				TopdeskConfig config;
+				try {
+					config = configRegistry.restore(incident.getConfiguration());
+				} catch (ConfigurationException e) {
+					LOG.error("Dropping undelivered Topdesk incident with invalid configuration: {}", e.getMessage());
+					outbox.acknowledge(incident);
+					continue;
+				}
+				if (config == null) {
+					outbox.release(incident);
+				} else {
+					replayed.add(incident.withConfig(config));
+				}
+			}
+		}
+		if (!replayed.isEmpty()) {
+			LOG.info("Replaying {} of {} undelivered Topdesk incidents", replayed.size(), outbox.getPendingCount());
+		}
+		if (!waiting.isEmpty()) {
+			LOG.warn("Undelivered Topdesk incidents of {} accounts wait until a callback of the account is triggered, "
+					+ "the password isn't stored in the outbox", waiting.size());
+		}
+		for (TopdeskIncident incident : replayed) {
+			incidentDispatcher.submit(incident);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.Parameter;
+import com.github.joschi.jadconfig.ValidationException;
+import com.github.joschi.jadconfig.ValidatorMethod;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.github.joschi.jadconfig.validators.PositiveDurationValidator;
+import com.github.joschi.jadconfig.validators.PositiveIntegerValidator;
+import com.github.joschi.jadconfig.validators.PositiveSizeValidator;
+import org.graylog2.plugin.PluginConfigBean;
+
+import java.util.Locale;
+
+/**
+ * Server wide settings of the Topdesk plugin, read from graylog.conf.
+ */
+public class TopdeskPluginConfiguration implements PluginConfigBean {
+
+	@Parameter(value = "topdesk_connection_pool_max_idle", validator = PositiveIntegerValidator.class)
+	private int connectionPoolMaxIdle = 5;
+
+	@Parameter(value = "topdesk_connection_keep_alive", validator = PositiveDurationValidator.class)
+	private Duration connectionKeepAlive = Duration.minutes(5);
+
+	@Parameter(value = "topdesk_session_max_age", validator = PositiveDurationValidator.class)
+	private Duration sessionMaxAge = Duration.minutes(15);
+
+	@Parameter(value = "topdesk_lookup_cache_ttl", validator = PositiveDurationValidator.class)
+	private Duration lookupCacheTtl = Duration.hours(1);
+
+	@Parameter(value = "topdesk_lookup_cache_refresh_interval", validator = PositiveDurationValidator.class)
+	private Duration lookupCacheRefreshInterval = Duration.minutes(10);
+
+	@Parameter(value = "topdesk_lookup_cache_negative_ttl", validator = PositiveDurationValidator.class)
+	private Duration lookupCacheNegativeTtl = Duration.minutes(1);
+
+	@Parameter(value = "topdesk_lookup_cache_max_size", validator = PositiveIntegerValidator.class)
+	private int lookupCacheMaxSize = 1000;
+
+	@Parameter(value = "topdesk_lookup_tables_enabled")
+	private boolean lookupTablesEnabled = true;
+
+	@Parameter(value = "topdesk_lookup_tables_refresh_interval", validator = PositiveDurationValidator.class)
+	private Duration lookupTablesRefreshInterval = Duration.minutes(10);
+
+	@Parameter(value = "topdesk_lookup_threads", validator = PositiveIntegerValidator.class)
+	private int lookupThreads = 8;
+
+	@Parameter(value = "topdesk_lookup_timeout", validator = PositiveDurationValidator.class)
+	private Duration lookupTimeout = Duration.seconds(10);
+
+	@Parameter(value = "topdesk_warm_up_enabled")
+	private boolean warmUpEnabled = true;
+
+	@Parameter(value = "topdesk_dispatch_queue_size", validator = PositiveIntegerValidator.class)
+	private int dispatchQueueSize = 1000;
+
+	@Parameter(value = "topdesk_dispatch_workers", validator = PositiveIntegerValidator.class)
+	private int dispatchWorkers = 2;
+
+	@Parameter(value = "topdesk_dispatch_overflow_policy")
+	private String dispatchOverflowPolicy = "block";
+
+	@Parameter(value = "topdesk_outbox_enabled")
+	private boolean outboxEnabled = true;
+
+	@Parameter(value = "topdesk_outbox_dir")
+	private String outboxDir = "";
+
+	@Parameter(value = "topdesk_outbox_segment_size", validator = PositiveSizeValidator.class)
+	private Size outboxSegmentSize = Size.megabytes(16);
+
+	@Parameter(value = "topdesk_outbox_flush_interval", validator = PositiveDurationValidator.class)
+	private Duration outboxFlushInterval = Duration.seconds(1);
+
+	@Parameter(value = "topdesk_outbox_replay_interval", validator = PositiveDurationValidator.class)
+	private Duration outboxReplayInterval = Duration.minutes(1);
+
+	@Parameter(value = "topdesk_retry_max_attempts", validator = PositiveIntegerValidator.class)
+	private int retryMaxAttempts = 3;
+
+	@Parameter(value = "topdesk_retry_initial_backoff", validator = PositiveDurationValidator.class)
+	private Duration retryInitialBackoff = Duration.milliseconds(200);
+
+	@Parameter(value = "topdesk_retry_max_backoff", validator = PositiveDurationValidator.class)
+	private Duration retryMaxBackoff = Duration.seconds(5);
+
+	@Parameter(value = "topdesk_circuit_breaker_failure_threshold", validator = PositiveIntegerValidator.class)
+	private int circuitBreakerFailureThreshold = 5;
+
+	@Parameter(value = "topdesk_circuit_breaker_open_duration", validator = PositiveDurationValidator.class)
+	private Duration circuitBreakerOpenDuration = Duration.seconds(30);
+
+	@Parameter(value = "topdesk_circuit_breaker_half_open_probes", validator = PositiveIntegerValidator.class)
+	private int circuitBreakerHalfOpenProbes = 1;
+
+	@Parameter(value = "topdesk_rate_limit", validator = PositiveIntegerValidator.class)
+	private int rateLimit = 10;
+
+	@Parameter(value = "topdesk_rate_limit_burst", validator = PositiveIntegerValidator.class)
+	private int rateLimitBurst = 20;
+
+	@Parameter(value = "topdesk_rate_limit_max_wait", validator = PositiveDurationValidator.class)
+	private Duration rateLimitMaxWait = Duration.seconds(30);
+
+	@Parameter(value = "topdesk_concurrency_initial_limit", validator = PositiveIntegerValidator.class)
+	private int concurrencyInitialLimit = 4;
+
+	@Parameter(value = "topdesk_concurrency_max_limit", validator = PositiveIntegerValidator.class)
+	private int concurrencyMaxLimit = 32;
+
+	@Parameter(value = "topdesk_concurrency_max_wait", validator = PositiveDurationValidator.class)
+	private Duration concurrencyMaxWait = Duration.seconds(30);
+
+	@Parameter(value = "topdesk_connect_timeout", validator = PositiveDurationValidator.class)
+	private Duration connectTimeout = Duration.seconds(10);
+
+	@Parameter(value = "topdesk_read_timeout", validator = PositiveDurationValidator.class)
+	private Duration readTimeout = Duration.seconds(30);
+
+	@Parameter(value = "topdesk_write_timeout", validator = PositiveDurationValidator.class)
+	private Duration writeTimeout = Duration.seconds(30);
+
+	@Parameter(value = "topdesk_delivery_deadline", validator = PositiveDurationValidator.class)
+	private Duration deliveryDeadline = Duration.seconds(60);
+
+	@Parameter(value = "topdesk_dedup_ttl", validator = PositiveDurationValidator.class)
+	private Duration dedupTtl = Duration.hours(4);
+
+	@Parameter(value = "topdesk_dedup_max_size", validator = PositiveIntegerValidator.class)
+	private int dedupMaxSize = 10000;
+
+	public int getConnectionPoolMaxIdle() {
+		return connectionPoolMaxIdle;
+	}
+
+	public Duration getConnectionKeepAlive() {
+		return connectionKeepAlive;
+	}
+
+	public Duration getSessionMaxAge() {
+		return sessionMaxAge;
+	}
+
+	public Duration getLookupCacheTtl() {
+		return lookupCacheTtl;
+	}
+
+	public Duration getLookupCacheRefreshInterval() {
+		return lookupCacheRefreshInterval;
+	}
+
+	public Duration getLookupCacheNegativeTtl() {
+		return lookupCacheNegativeTtl;
+	}
+
+	public int getLookupCacheMaxSize() {
+		return lookupCacheMaxSize;
+	}
+
+	public boolean isLookupTablesEnabled() {
+		return lookupTablesEnabled;
+	}
+
+	public Duration getLookupTablesRefreshInterval() {
+		return lookupTablesRefreshInterval;
+	}
+
+	public int getLookupThreads() {
+		return lookupThreads;
+	}
+
+	public Duration getLookupTimeout() {
+		return lookupTimeout;
+	}
+
+	public boolean isWarmUpEnabled() {
+		return warmUpEnabled;
+	}
+
+	public int getDispatchQueueSize() {
+		return dispatchQueueSize;
+	}
+
+	public int getDispatchWorkers() {
+		return dispatchWorkers;
+	}
+
+	public String getDispatchOverflowPolicy() {
+		return dispatchOverflowPolicy;
+	}
+
+	public boolean isOutboxEnabled() {
+		return outboxEnabled;
+	}
+
+	public String getOutboxDir() {
+		return outboxDir;
+	}
+
+	public Size getOutboxSegmentSize() {
+		return outboxSegmentSize;
+	}
+
+	public Duration getOutboxFlushInterval() {
+		return outboxFlushInterval;
+	}
+
+	public Duration getOutboxReplayInterval() {
+		return outboxReplayInterval;
+	}
+
+	public int getRetryMaxAttempts() {
+		return retryMaxAttempts;
+	}
+
+	public Duration getRetryInitialBackoff() {
+		return retryInitialBackoff;
+	}
+
+	public Duration getRetryMaxBackoff() {
+		return retryMaxBackoff;
+	}
+
+	public int getCircuitBreakerFailureThreshold() {
+		return circuitBreakerFailureThreshold;
+	}
+
+	public Duration getCircuitBreakerOpenDuration() {
+		return circuitBreakerOpenDuration;
+	}
+
+	public int getCircuitBreakerHalfOpenProbes() {
+		return circuitBreakerHalfOpenProbes;
+	}
+
+	public int getRateLimit() {
+		return rateLimit;
+	}
+
+	public int getRateLimitBurst() {
+		return rateLimitBurst;
+	}
+
+	public Duration getRateLimitMaxWait() {
+		return rateLimitMaxWait;
+	}
+
+	public int getConcurrencyInitialLimit() {
+		return concurrencyInitialLimit;
+	}
+
+	public int getConcurrencyMaxLimit() {
+		return concurrencyMaxLimit;
+	}
+
+	public Duration getConcurrencyMaxWait() {
+		return concurrencyMaxWait;
+	}
+
+	public Duration getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public Duration getReadTimeout() {
+		return readTimeout;
+	}
+
+	public Duration getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	public Duration getDeliveryDeadline() {
+		return deliveryDeadline;
+	}
+
+	public Duration getDedupTtl() {
+		return dedupTtl;
+	}
+
+	public int getDedupMaxSize() {
+		return dedupMaxSize;
+	}
+
+	@ValidatorMethod
+	public void validateDispatchOverflowPolicy() throws ValidationException {
+		try {
+			TopdeskIncidentDispatcher.OverflowPolicy.valueOf(dispatchOverflowPolicy.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new ValidationException("topdesk_dispatch_overflow_policy must be one of block, drop_oldest or drop_newest");
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.base.Ticker;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * The rate limit settings, creating the rate limiter of each endpoint's client.
+ */
+@Singleton
+public class TopdeskRateLimitPolicy {
+	/** Never limits requests. */
+	static final TopdeskRateLimitPolicy NONE = new TopdeskRateLimitPolicy(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.seconds(0));
+
+	private final int requestsPerSecond;
+	private final int burst;
+	private final long maxWaitNanos;
+
+	@Inject
+	public TopdeskRateLimitPolicy(@Named("topdesk_rate_limit") int requestsPerSecond,
+								  @Named("topdesk_rate_limit_burst") int burst,
+								  @Named("topdesk_rate_limit_max_wait") Duration maxWait) {
+		this.requestsPerSecond = requestsPerSecond;
+		this.burst = burst;
+		this.maxWaitNanos = maxWait.toNanoseconds();
+	}
+
+	public TopdeskRateLimiter newRateLimiter(String endpoint) {
+		return new TopdeskRateLimiter(endpoint, requestsPerSecond, burst, maxWaitNanos, Ticker.systemTicker());
+	}
+}
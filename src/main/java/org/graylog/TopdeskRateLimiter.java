@@ -0,0 +1,162 @@
+package org.graylog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests to one endpoint to a rate with a burst, shared by all callbacks.
+ * <p>
+ * The token bucket is kept as the theoretical arrival time of the next request, which is reserved with a single
+ * compare-and-set, so requests never wait on a lock. A request that has to wait for a token sleeps outside of the
+ * bucket. When Topdesk answers with 429 the rate is halved and no requests are sent until the time given with
+ * {@code Retry-After}; every other response raises the rate again in small steps up to the configured rate.
+ * <p>
+ * A rate so high that the interval between requests is below a nanosecond does not limit requests at all, they are
+ * sent without taking a token.
+ */
+public class TopdeskRateLimiter implements Interceptor {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskRateLimiter.class);
+
+	private static final long MAX_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final String endpoint;
+	private final long baseIntervalNanos;
+	private final int burst;
+	private final long maxWaitNanos;
+	private final Ticker ticker;
+	private final AtomicLong nextFree;
+	private final AtomicLong intervalNanos;
+
+	public TopdeskRateLimiter(String endpoint, double requestsPerSecond, int burst, long maxWaitNanos, Ticker ticker) {
+		this.endpoint = endpoint;
+		this.baseIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		this.burst = burst;
+		this.maxWaitNanos = maxWaitNanos;
+		this.ticker = ticker;
+		this.nextFree = new AtomicLong(Long.MIN_VALUE / 2);
+		this.intervalNanos = new AtomicLong(baseIntervalNanos);
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		if (isUnlimited()) {
+			return chain.proceed(chain.request());
+		}
+		long wait = reserve();
+		if (wait < 0) {
+			TopdeskDeadline.check(maxWaitNanos, "waiting for the rate limit");
+			throw new RateLimitedException(endpoint);
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the Topdesk rate limit");
+			}
+		}
+
+		Response response = chain.proceed(chain.request());
+		if (response.code() == 429) {
+			onThrottled(TimeUnit.MILLISECONDS.toNanos(Math.max(0, TopdeskRetryInterceptor.retryAfterMillis(response))));
+		} else {
+			onAccepted();
+		}
+		return response;
+	}
+
+	/**
+	 * Takes a token, returning how long the caller has to wait before it may send its request, or -1 if that is
+	 * longer than the maximum wait or the time left until the delivery deadline, in which case no token is taken.
+	 */
+	@VisibleForTesting
+	long reserve() {
+		if (isUnlimited()) {
+			return 0;
+		}
+		long maxWait = Math.min(maxWaitNanos, TopdeskDeadline.remainingNanos());
+		long interval = intervalNanos.get();
+		long tolerance = interval * (burst - 1);
+		while (true) {
+			long now = ticker.read();
+			long current = nextFree.get();
+			long start = Math.max(current, now - tolerance);
+			long wait = Math.max(0, start - now);
+			if (wait > maxWait) {
+				return -1;
+			}
+			if (nextFree.compareAndSet(current, start + interval)) {
+				return wait;
+			}
+		}
+	}
+
+	/**
+	 * Halves the rate and keeps requests back until the time the server asked for.
+	 */
+	@VisibleForTesting
+	void onThrottled(long retryAfterNanos) {
+		long interval;
+		long slower;
+		do {
+			interval = intervalNanos.get();
+			slower = Math.min(MAX_INTERVAL_NANOS, Math.max(interval * 2, 1));
+		} while (!intervalNanos.compareAndSet(interval, slower));
+
+		long until = ticker.read() + retryAfterNanos;
+		long current;
+		do {
+			current = nextFree.get();
+		} while (current < until && !nextFree.compareAndSet(current, until));
+
+		LOG.warn("Topdesk endpoint {} is rate limiting requests, lowering rate to {} requests per second",
+				endpoint, String.format("%.2f", getRate()));
+	}
+
+	/**
+	 * Raises a lowered rate by a twentieth of the configured rate.
+	 */
+	@VisibleForTesting
+	void onAccepted() {
+		long interval;
+		long faster;
+		do {
+			interval = intervalNanos.get();
+			if (interval <= baseIntervalNanos) {
+				return;
+			}
+			double rate = TimeUnit.SECONDS.toNanos(1) / (double) interval;
+			double baseRate = TimeUnit.SECONDS.toNanos(1) / (double) baseIntervalNanos;
+			faster = Math.max(baseIntervalNanos, (long) (TimeUnit.SECONDS.toNanos(1) / (rate + baseRate / 20)));
+		} while (!intervalNanos.compareAndSet(interval, faster));
+	}
+
+	private boolean isUnlimited() {
+		return baseIntervalNanos == 0;
+	}
+
+	public double getRate() {
+		long interval = intervalNanos.get();
+		return interval == 0 ? Double.POSITIVE_INFINITY : TimeUnit.SECONDS.toNanos(1) / (double) interval;
+	}
+
+	/**
+	 * Thrown without sending the request when it would have to wait longer than the maximum wait for the rate limit.
+	 */
+	public static class RateLimitedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public RateLimitedException(String endpoint) {
+			super("Rate limit of Topdesk endpoint " + endpoint + " reached, not sending request");
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package org.graylog;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries failed requests to one endpoint with capped exponential backoff and full jitter, behind the circuit
+ * breaker of that endpoint.
+ * <p>
+ * Requests are retried after connection failures and on 408, 429, 500, 502, 503 and 504 responses. Requests that
+ * create or change something (anything but GET and HEAD) are only retried when Topdesk can't have processed them:
+ * when the connection could not be established, or on 429 and 503. Requests stopped by the rate limit, the
+ * concurrency limit or the delivery deadline are neither retried nor counted by the circuit breaker.
+ */
+public class TopdeskRetryInterceptor implements Interceptor {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskRetryInterceptor.class);
+
+	private final TopdeskCircuitBreaker circuitBreaker;
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	public TopdeskRetryInterceptor(TopdeskCircuitBreaker circuitBreaker, int maxAttempts,
+								   long initialBackoffMillis, long maxBackoffMillis) {
+		this.circuitBreaker = circuitBreaker;
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		Request request = chain.request();
+		boolean idempotent = "GET".equals(request.method()) || "HEAD".equals(request.method());
+		for (int attempt = 1; ; attempt++) {
+			if (!circuitBreaker.tryAcquire()) {
+				throw new CircuitOpenException(request.url().host());
+			}
+
+			Response response;
+			try {
+				response = chain.proceed(request);
+			} catch (IOException e) {
+				if (isLocal(e)) {
+					// The request wasn't sent, so it tells nothing about the endpoint
+					circuitBreaker.release();
+					throw e;
+				}
+				circuitBreaker.onFailure();
+				boolean retryable = !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+				boolean notSent = e instanceof ConnectException || e instanceof NoRouteToHostException;
+				if (attempt >= maxAttempts || !retryable || !(idempotent || notSent)) {
+					throw e;
+				}
+				LOG.debug("Retrying {} {} after {}", request.method(), request.url().encodedPath(), e.toString());
+				backoff(attempt, -1);
+				continue;
+			} catch (RuntimeException | Error e) {
+				// Doesn't tell whether the endpoint works, but the probe slot must not stay taken
+				circuitBreaker.release();
+				throw e;
+			}
+
+			int code = response.code();
+			if (code >= 500) {
+				circuitBreaker.onFailure();
+			} else {
+				circuitBreaker.onSuccess();
+			}
+			if (attempt >= maxAttempts || !isRetryable(code, idempotent)) {
+				return response;
+			}
+			long retryAfterMillis = retryAfterMillis(response);
+			response.close();
+			LOG.debug("Retrying {} {} after status {}", request.method(), request.url().encodedPath(), code);
+			backoff(attempt, retryAfterMillis);
+		}
+	}
+
+	/**
+	 * Returns whether the request was stopped by a limit of the plugin itself, the rate limit, the concurrency limit
+	 * or the delivery deadline, before it was sent.
+	 */
+	static boolean isLocal(IOException e) {
+		return e instanceof TopdeskRateLimiter.RateLimitedException
+				|| e instanceof TopdeskConcurrencyLimiter.ConcurrencyLimitException
+				|| e instanceof TopdeskDeadline.DeadlineExceededException;
+	}
+
+	static boolean isRetryable(int code, boolean idempotent) {
+		switch (code) {
+			case 429:
+			case 503:
+				return true;
+			case 408:
+			case 500:
+			case 502:
+			case 504:
+				return idempotent;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns the delay the server asked for in seconds with a {@code Retry-After} header, or -1.
+	 */
+	static long retryAfterMillis(Response response) {
+		String retryAfter = response.header("Retry-After");
+		if (retryAfter == null) {
+			return -1;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void backoff(int attempt, long retryAfterMillis) throws IOException {
+		long delay;
+		if (retryAfterMillis >= 0) {
+			delay = Math.min(retryAfterMillis, maxBackoffMillis);
+		} else {
+			long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+			delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+		}
+		TopdeskDeadline.check(TimeUnit.MILLISECONDS.toNanos(delay), "retry " + attempt);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry Topdesk request");
+		}
+	}
+
+	/**
+	 * Thrown without sending the request while the circuit breaker of the endpoint is open.
+	 */
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String host) {
+			super("Topdesk endpoint " + host + " is unavailable, not sending request");
+		}
+	}
+}
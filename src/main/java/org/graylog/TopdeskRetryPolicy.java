@@ -0,0 +1,50 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.base.Ticker;
+import okhttp3.Interceptor;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * The retry and circuit breaker settings, creating the interceptor for each endpoint's client.
+ */
+@Singleton
+public class TopdeskRetryPolicy {
+	/** Sends every request once and never opens the circuit. */
+	static final TopdeskRetryPolicy NONE = new TopdeskRetryPolicy(1, Duration.milliseconds(0), Duration.milliseconds(0),
+			Integer.MAX_VALUE, Duration.seconds(1), 1);
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final int halfOpenProbes;
+
+	@Inject
+	public TopdeskRetryPolicy(@Named("topdesk_retry_max_attempts") int maxAttempts,
+							  @Named("topdesk_retry_initial_backoff") Duration initialBackoff,
+							  @Named("topdesk_retry_max_backoff") Duration maxBackoff,
+							  @Named("topdesk_circuit_breaker_failure_threshold") int failureThreshold,
+							  @Named("topdesk_circuit_breaker_open_duration") Duration openDuration,
+							  @Named("topdesk_circuit_breaker_half_open_probes") int halfOpenProbes) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoff.toMilliseconds();
+		this.maxBackoffMillis = maxBackoff.toMilliseconds();
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openDuration.toNanoseconds();
+		this.halfOpenProbes = halfOpenProbes;
+	}
+
+	public Interceptor newInterceptor(String endpoint) {
+		return new TopdeskRetryInterceptor(newCircuitBreaker(endpoint, Ticker.systemTicker()), maxAttempts,
+				initialBackoffMillis, maxBackoffMillis);
+	}
+
+	TopdeskCircuitBreaker newCircuitBreaker(String endpoint, Ticker ticker) {
+		return new TopdeskCircuitBreaker(endpoint, failureThreshold, openNanos, halfOpenProbes, ticker);
+	}
+}
@@ -0,0 +1,299 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.graylog.TopdeskAlarmCallback.*;
+
+/**
+ * An ordered list of routing rules, that set the operator group, category, priority and other lookups of an incident
+ * from the fields of the first message. The first rule whose conditions all match wins.
+ * <p>
+ * One rule is written per line as {@code conditions -> settings}, for example
+ * {@code source=db-* and level<=3 -> operator_group=DBA, priority=P1}. Conditions are joined with {@code and}, and
+ * are written as {@code field=value}, where the value may contain {@code *} wildcards, {@code field~regex}, or
+ * compare the field as a number with {@code <}, {@code <=}, {@code >} or {@code >=}. Empty lines and lines starting
+ * with {@code #} are ignored.
+ * <p>
+ * The rules are compiled once into a decision table. Each rule is indexed by its first exact condition in a hash
+ * map, or else by its first wildcard condition that only ends with {@code *} in a prefix trie. A message is only
+ * checked against the rules found for its field values in these indexes and the rules without such a condition.
+ */
+public final class TopdeskRoutingRules {
+	static final TopdeskRoutingRules EMPTY = new TopdeskRoutingRules(ImmutableList.<Rule>of(),
+			ImmutableMap.<String, Map<String, BitSet>>of(), ImmutableMap.<String, PrefixTrie>of(), new BitSet());
+
+	/** The settings a rule may change. */
+	static final Set<String> SETTINGS = ImmutableSet.of(OPERATOR_GROUP, CATEGORY, SUBCATEGORY, PRIORITY, IMPACT, URGENCY,
+			ENTRY_TYPE, CALL_TYPE);
+
+	private static final Pattern CONDITION = Pattern.compile("([\\w.@-]+)\\s*(<=|>=|=|~|<|>)\\s*(.*)");
+	private static final Pattern AND = Pattern.compile("\\s+and\\s+");
+
+	private interface Condition {
+		boolean matches(Object value);
+	}
+
+	private static final class Rule {
+		private final String text;
+		private final List<String> fields;
+		private final List<Condition> conditions;
+		private final Map<String, String> settings;
+
+		private Rule(String text, List<String> fields, List<Condition> conditions, Map<String, String> settings) {
+			this.text = text;
+			this.fields = fields;
+			this.conditions = conditions;
+			this.settings = settings;
+		}
+
+		private boolean matches(Message message) {
+			for (int i = 0; i < conditions.size(); i++) {
+				Object value = message.getField(fields.get(i));
+				if (value == null || !conditions.get(i).matches(value)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class PrefixTrie {
+		private final Map<Character, PrefixTrie> children = new HashMap<>();
+		private final BitSet rules = new BitSet();
+
+		private void add(String prefix, int rule) {
+			PrefixTrie node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixTrie());
+			}
+			node.rules.set(rule);
+		}
+
+		/**
+		 * Adds the rules of all prefixes of the value.
+		 */
+		private void collect(String value, BitSet candidates) {
+			PrefixTrie node = this;
+			candidates.or(node.rules);
+			for (int i = 0; i < value.length() && node != null; i++) {
+				node = node.children.get(value.charAt(i));
+				if (node != null) {
+					candidates.or(node.rules);
+				}
+			}
+		}
+	}
+
+	private final List<Rule> rules;
+	private final Map<String, Map<String, BitSet>> exact;
+	private final Map<String, PrefixTrie> prefixes;
+	private final BitSet unindexed;
+
+	private TopdeskRoutingRules(List<Rule> rules, Map<String, Map<String, BitSet>> exact, Map<String, PrefixTrie> prefixes,
+								BitSet unindexed) {
+		this.rules = rules;
+		this.exact = exact;
+		this.prefixes = prefixes;
+		this.unindexed = unindexed;
+	}
+
+	/**
+	 * Compiles the rules, one per line.
+	 */
+	public static TopdeskRoutingRules parse(String text) throws ConfigurationException {
+		if (text == null || text.trim().isEmpty()) {
+			return EMPTY;
+		}
+		List<Rule> rules = new ArrayList<>();
+		Map<String, Map<String, BitSet>> exact = new HashMap<>();
+		Map<String, PrefixTrie> prefixes = new HashMap<>();
+		BitSet unindexed = new BitSet();
+		for (String line : text.split("\r?\n")) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int arrow = line.lastIndexOf("->");
+			if (arrow < 0) {
+				throw invalid(line, "expected conditions -> settings");
+			}
+			int index = rules.size();
+			List<String> fields = new ArrayList<>();
+			List<Condition> conditions = new ArrayList<>();
+			boolean indexed = false;
+			for (String condition : AND.split(line.substring(0, arrow).trim())) {
+				Matcher matcher = CONDITION.matcher(condition.trim());
+				if (!matcher.matches() || matcher.group(3).isEmpty()) {
+					throw invalid(line, "invalid condition " + condition.trim());
+				}
+				String field = matcher.group(1);
+				String operator = matcher.group(2);
+				final String value = matcher.group(3).trim();
+				fields.add(field);
+				if ("=".equals(operator) && value.indexOf('*') < 0) {
+					if (!indexed) {
+						exact.computeIfAbsent(field, f -> new HashMap<>()).computeIfAbsent(value, v -> new BitSet()).set(index);
+						indexed = true;
+					}
+					conditions.add(fieldValue -> value.equals(fieldValue.toString()));
+				} else if ("=".equals(operator) && value.indexOf('*') == value.length() - 1) {
+					final String prefix = value.substring(0, value.length() - 1);
+					if (!indexed) {
+						prefixes.computeIfAbsent(field, f -> new PrefixTrie()).add(prefix, index);
+						indexed = true;
+					}
+					conditions.add(fieldValue -> fieldValue.toString().startsWith(prefix));
+				} else if ("=".equals(operator) || "~".equals(operator)) {
+					final Pattern pattern = compile(line, "=".equals(operator) ? glob(value) : regex(value));
+					conditions.add(fieldValue -> pattern.matcher(fieldValue.toString()).find());
+				} else {
+					conditions.add(comparison(line, operator, value));
+				}
+			}
+			if (!indexed) {
+				unindexed.set(index);
+			}
+			rules.add(new Rule(line, ImmutableList.copyOf(fields), ImmutableList.copyOf(conditions),
+					settings(line, line.substring(arrow + 2).trim())));
+		}
+		return new TopdeskRoutingRules(ImmutableList.copyOf(rules), exact, prefixes, unindexed);
+	}
+
+	private static Map<String, String> settings(String line, String text) throws ConfigurationException {
+		Map<String, String> settings = new LinkedHashMap<>();
+		for (String setting : text.split(",")) {
+			int equals = setting.indexOf('=');
+			String key = equals < 0 ? "" : setting.substring(0, equals).trim();
+			String value = equals < 0 ? "" : setting.substring(equals + 1).trim();
+			if (!SETTINGS.contains(key) || value.isEmpty()) {
+				throw invalid(line, "invalid setting " + setting.trim() + ", rules can set " + String.join(", ", SETTINGS));
+			}
+			settings.put(key, value);
+		}
+		return ImmutableMap.copyOf(settings);
+	}
+
+	private static String glob(String value) {
+		StringBuilder regex = new StringBuilder("^");
+		int start = 0;
+		for (int star = value.indexOf('*'); star >= 0; star = value.indexOf('*', start)) {
+			if (star > start) {
+				regex.append(Pattern.quote(value.substring(start, star)));
+			}
+			regex.append(".*");
+			start = star + 1;
+		}
+		if (start < value.length()) {
+			regex.append(Pattern.quote(value.substring(start)));
+		}
+		return regex.append('$').toString();
+	}
+
+	private static String regex(String value) {
+		if (value.length() >= 2 && value.startsWith("/") && value.endsWith("/")) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	private static Pattern compile(String line, String regex) throws ConfigurationException {
+		try {
+			return Pattern.compile(regex);
+		} catch (PatternSyntaxException e) {
+			throw invalid(line, "invalid regular expression " + e.getPattern());
+		}
+	}
+
+	private static Condition comparison(String line, final String operator, String value) throws ConfigurationException {
+		final double limit;
+		try {
+			limit = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw invalid(line, value + " is not a number");
+		}
+		return fieldValue -> {
+			double number;
+			if (fieldValue instanceof Number) {
+				number = ((Number) fieldValue).doubleValue();
+			} else {
+				try {
+					number = Double.parseDouble(fieldValue.toString().trim());
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+			switch (operator) {
+				case "<":
+					return number < limit;
+				case "<=":
+					return number <= limit;
+				case ">":
+					return number > limit;
+				default:
+					return number >= limit;
+			}
+		};
+	}
+
+	private static ConfigurationException invalid(String line, String problem) {
+		return new ConfigurationException("Invalid routing rule [" + line + "]: " + problem + ".");
+	}
+
+	/**
+	 * Returns the settings of the first rule that matches the message, or an empty map.
+	 */
+	public Map<String, String> route(Message message) {
+		if (rules.isEmpty() || message == null) {
+			return ImmutableMap.of();
+		}
+		BitSet candidates = (BitSet) unindexed.clone();
+		for (Map.Entry<String, Map<String, BitSet>> field : exact.entrySet()) {
+			Object value = message.getField(field.getKey());
+			BitSet matching = value == null ? null : field.getValue().get(value.toString());
+			if (matching != null) {
+				candidates.or(matching);
+			}
+		}
+		for (Map.Entry<String, PrefixTrie> field : prefixes.entrySet()) {
+			Object value = message.getField(field.getKey());
+			if (value != null) {
+				field.getValue().collect(value.toString(), candidates);
+			}
+		}
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			Rule rule = rules.get(i);
+			if (rule.matches(message)) {
+				return rule.settings;
+			}
+		}
+		return ImmutableMap.of();
+	}
+
+	public int size() {
+		return rules.size();
+	}
+
+	@Override
+	public String toString() {
+		List<String> lines = new ArrayList<>(rules.size());
+		for (Rule rule : rules) {
+			lines.add(rule.text);
+		}
+		return String.join("\n", lines);
+	}
+}
@@ -0,0 +1,220 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.ws.http.HTTPException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one Topdesk session token per endpoint, username and login mode, and shares it between alerts.
+ * <p>
+ * Tokens are renewed before they reach their maximum age, or once when Topdesk rejects them. Renewal happens
+ * under a lock per session, so when several alerts find an expired token only one of them logs in and the
+ * others wait for its result. Sessions are logged out when they are replaced, when Graylog shuts down, and when
+ * they were not used for as long as their maximum age, for example because the endpoint, username or login mode of a
+ * callback changed.
+ */
+@Singleton
+public class TopdeskSessionManager {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskSessionManager.class);
+
+	private final TopdeskClientRegistry clientRegistry;
+	private final long refreshAfterNanos;
+	private final Ticker ticker;
+	private final ConcurrentMap<TopdeskCredentials, SessionHolder> sessions = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+
+	@Inject
+	public TopdeskSessionManager(TopdeskClientRegistry clientRegistry,
+								 @Named("topdesk_session_max_age") Duration maxAge) {
+		this(clientRegistry, maxAge, Ticker.systemTicker());
+	}
+
+	@VisibleForTesting
+	TopdeskSessionManager(TopdeskClientRegistry clientRegistry, Duration maxAge, Ticker ticker) {
+		this.clientRegistry = clientRegistry;
+		// renew a bit ahead of the maximum age, so a token never expires while a request is in flight
+		this.refreshAfterNanos = maxAge.toNanoseconds() / 10 * 9;
+		this.ticker = ticker;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("topdesk-session-expiry-%d")
+				.setDaemon(true)
+				.build());
+		long period = Math.max(TimeUnit.SECONDS.toNanos(1), maxAge.toNanoseconds() / 10);
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				logoutExpired();
+			} catch (Exception e) {
+				LOG.error("Failed to log out unused Topdesk sessions", e);
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns a valid token for the given credentials, logging in if there is none yet or it is about to expire.
+	 */
+	public String token(TopdeskCredentials credentials) throws IOException {
+		SessionHolder holder = holder(credentials);
+		Session session = holder.session;
+		if (isUsable(session, credentials)) {
+			return session.use(ticker.read());
+		}
+		synchronized (holder) {
+			session = holder.session;
+			if (isUsable(session, credentials)) {
+				return session.use(ticker.read());
+			}
+			return renew(holder, credentials);
+		}
+	}
+
+	/**
+	 * Called when Topdesk rejected a token. Logs in again, unless another thread already replaced the rejected token.
+	 */
+	public String reauthenticate(TopdeskCredentials credentials, String rejectedToken) throws IOException {
+		SessionHolder holder = holder(credentials);
+		synchronized (holder) {
+			Session session = holder.session;
+			if (isUsable(session, credentials) && !session.token.equals(rejectedToken)) {
+				return session.use(ticker.read());
+			}
+			LOG.debug("Topdesk session of {} was rejected, logging in again", credentials);
+			return renew(holder, credentials);
+		}
+	}
+
+	public void logoutAll() {
+		for (SessionHolder holder : sessions.values()) {
+			synchronized (holder) {
+				if (holder.session != null) {
+					logoutQuietly(holder.session);
+					holder.session = null;
+				}
+			}
+		}
+		sessions.clear();
+	}
+
+	/**
+	 * Stops logging out unused sessions and logs out all sessions.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		logoutAll();
+	}
+
+	/**
+	 * Logs out the sessions that were not used for as long as a session is kept, so they belong to credentials no
+	 * callback uses anymore. Sessions that are still used are left alone, even when they are old; they are renewed
+	 * the next time they are used.
+	 */
+	@VisibleForTesting
+	void logoutExpired() {
+		for (SessionHolder holder : sessions.values()) {
+			synchronized (holder) {
+				Session session = holder.session;
+				if (session != null && ticker.read() - session.lastUsed >= refreshAfterNanos) {
+					LOG.debug("Logging out unused Topdesk session of {}", session.credentials);
+					logoutQuietly(session);
+					// The holder stays, so callers that are about to use it keep sharing one session
+					holder.session = null;
+				}
+			}
+		}
+	}
+
+	private SessionHolder holder(TopdeskCredentials credentials) {
+		return sessions.computeIfAbsent(credentials, c -> new SessionHolder());
+	}
+
+	private boolean isUsable(Session session, TopdeskCredentials credentials) {
+		return session != null
+				&& session.credentials.getAuthorization().equals(credentials.getAuthorization())
+				&& ticker.read() - session.createdAt < refreshAfterNanos;
+	}
+
+	private String renew(SessionHolder holder, TopdeskCredentials credentials) throws IOException {
+		Session previous = holder.session;
+		holder.session = new Session(credentials, login(credentials), ticker.read());
+		if (previous != null) {
+			logoutQuietly(previous);
+		}
+		return holder.session.token;
+	}
+
+	String login(TopdeskCredentials credentials) throws IOException {
+		OkHttpClient client = clientRegistry.get(credentials.getEndpoint());
+		Request request = new Request.Builder()
+				.url(credentials.getEndpoint() + "/tas/api/login/" + credentials.getLoginMode())
+				.addHeader("Authorization", credentials.getAuthorization())
+				.get()
+				.build();
+		try (Response response = client.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				LOG.error("Login to Topdesk as {} failed with status {}", credentials, response.code());
+				throw new HTTPException(response.code());
+			}
+			LOG.debug("Logged in to Topdesk as {}", credentials);
+			return response.body().string();
+		}
+	}
+
+	String logout(TopdeskCredentials credentials, String token) throws IOException {
+		OkHttpClient client = clientRegistry.get(credentials.getEndpoint());
+		Request request = new Request.Builder()
+				.url(credentials.getEndpoint() + "/tas/api/logout")
+				.addHeader("Authorization", "TOKEN id=\"" + token + "\"")
+				.get()
+				.build();
+		try (Response response = client.newCall(request).execute()) {
+			return response.body().string();
+		}
+	}
+
+	private void logoutQuietly(Session session) {
+		try {
+			logout(session.credentials, session.token);
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Logout from Topdesk as {} failed: {}", session.credentials, e.toString());
+		}
+	}
+
+	private static final class SessionHolder {
+		private volatile Session session;
+	}
+
+	private static final class Session {
+		private final TopdeskCredentials credentials;
+		private final String token;
+		private final long createdAt;
+		private volatile long lastUsed;
+
+		private Session(TopdeskCredentials credentials, String token, long createdAt) {
+			this.credentials = credentials;
+			this.token = token;
+			this.createdAt = createdAt;
+			this.lastUsed = createdAt;
+		}
+
+		private String use(long now) {
+			lastUsed = now;
+			return token;
+		}
+	}
+}
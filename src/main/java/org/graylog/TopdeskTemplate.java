@@ -0,0 +1,191 @@
+package org.graylog;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.html.HtmlEscapers;
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A description or optional fields template, parsed once into literal text and placeholders.
+ * <p>
+ * Placeholders are written as {@code %name%} or {@code %name|default%}. {@code %stream%} is replaced with the stream
+ * title, {@code %triggeredAt%} with the time the alert was triggered and any other name with the field of the first
+ * message, {@code %message%} being its message. Names starting with {@code backlog.} are aggregations over the
+ * backlog, see {@link TopdeskBacklog}. Placeholders without a value and without a default are left as they are.
+ */
+public final class TopdeskTemplate {
+	private static final LoadingCache<String, TopdeskTemplate> COMPILED = CacheBuilder.newBuilder()
+			.maximumSize(1000)
+			.recordStats()
+			.build(CacheLoader.from(TopdeskTemplate::parse));
+
+	private static final class Segment {
+		private final String text;
+		private final String name;
+		private final String defaultValue;
+
+		private Segment(String text, String name, String defaultValue) {
+			this.text = text;
+			this.name = name;
+			this.defaultValue = defaultValue;
+		}
+	}
+
+	private final Segment[] segments;
+	private final int literalLength;
+	private final Set<String> backlogFields;
+	private volatile int lastLength;
+
+	private TopdeskTemplate(Segment[] segments, int literalLength, Set<String> backlogFields) {
+		this.segments = segments;
+		this.literalLength = literalLength;
+		this.backlogFields = backlogFields;
+	}
+
+	/**
+	 * Returns the compiled template, parsing it only the first time it is used.
+	 */
+	public static TopdeskTemplate compile(String template) {
+		return COMPILED.getUnchecked(template == null ? "" : template);
+	}
+
+	static CacheStats stats() {
+		return COMPILED.stats();
+	}
+
+	static TopdeskTemplate parse(String template) {
+		List<Segment> segments = new ArrayList<>();
+		ImmutableSet.Builder<String> backlogFields = ImmutableSet.builder();
+		int literalLength = 0;
+		int start = 0;
+		int position = 0;
+		while (position < template.length()) {
+			int open = template.indexOf('%', position);
+			int close = open < 0 ? -1 : template.indexOf('%', open + 1);
+			if (close < 0) {
+				break;
+			}
+			String placeholder = template.substring(open + 1, close);
+			int pipe = placeholder.indexOf('|');
+			String name = pipe < 0 ? placeholder : placeholder.substring(0, pipe);
+			if (!isName(name)) {
+				// Not a placeholder, the closing % might open the next one
+				position = close;
+				continue;
+			}
+			if (open > start) {
+				segments.add(new Segment(template.substring(start, open), null, null));
+				literalLength += open - start;
+			}
+			segments.add(new Segment(template.substring(open, close + 1), name,
+					pipe < 0 ? null : placeholder.substring(pipe + 1)));
+			String backlogField = backlogField(name);
+			if (backlogField != null) {
+				backlogFields.add(backlogField);
+			}
+			start = close + 1;
+			position = start;
+		}
+		if (start < template.length()) {
+			segments.add(new Segment(template.substring(start), null, null));
+			literalLength += template.length() - start;
+		}
+		return new TopdeskTemplate(segments.toArray(new Segment[segments.size()]), literalLength, backlogFields.build());
+	}
+
+	private static String backlogField(String name) {
+		if (!name.startsWith(TopdeskBacklog.PREFIX)) {
+			return null;
+		}
+		String aggregation = name.substring(TopdeskBacklog.PREFIX.length());
+		if (aggregation.startsWith(TopdeskBacklog.DISTINCT)) {
+			return aggregation.substring(TopdeskBacklog.DISTINCT.length());
+		}
+		if (aggregation.startsWith(TopdeskBacklog.DISTINCT_COUNT)) {
+			return aggregation.substring(TopdeskBacklog.DISTINCT_COUNT.length());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the fields of the distinct backlog values the template uses.
+	 */
+	public Set<String> getBacklogFields() {
+		return backlogFields;
+	}
+
+	private static boolean isName(String name) {
+		if (name.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.' && c != '@') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the template in one pass, only looking up the message fields the template refers to.
+	 *
+	 * @param message    the first message of the alert, or {@code null}
+	 * @param escapeHtml whether to escape HTML in the replaced values
+	 */
+	public String render(String stream, String triggeredAt, Message message, boolean escapeHtml) {
+		return render(stream, triggeredAt, TopdeskBacklog.of(message), escapeHtml);
+	}
+
+	/**
+	 * Renders the template in one pass, only looking at the backlog messages and aggregations the template refers to.
+	 */
+	public String render(String stream, String triggeredAt, TopdeskBacklog backlog, boolean escapeHtml) {
+		int hint = lastLength;
+		StringBuilder builder = new StringBuilder(hint > 0 ? hint + 16 : literalLength + 32 * segments.length);
+		for (Segment segment : segments) {
+			if (segment.name == null) {
+				builder.append(segment.text);
+				continue;
+			}
+			String value = value(segment.name, stream, triggeredAt, backlog);
+			if (value != null) {
+				builder.append(escapeHtml ? HtmlEscapers.htmlEscaper().escape(value) : value);
+			} else if (segment.defaultValue != null) {
+				builder.append(segment.defaultValue);
+			} else {
+				builder.append(segment.text);
+			}
+		}
+		lastLength = builder.length();
+		return builder.toString();
+	}
+
+	private static String value(String name, String stream, String triggeredAt, TopdeskBacklog backlog) {
+		if ("stream".equals(name)) {
+			return stream;
+		}
+		if ("triggeredAt".equals(name)) {
+			return triggeredAt;
+		}
+		if (name.startsWith(TopdeskBacklog.PREFIX)) {
+			return backlog.value(name.substring(TopdeskBacklog.PREFIX.length()));
+		}
+		Message message = backlog.first();
+		if (message == null) {
+			return null;
+		}
+		if ("message".equals(name)) {
+			return message.getMessage();
+		}
+		Object value = message.getField(name);
+		return value == null ? null : value.toString();
+	}
+}
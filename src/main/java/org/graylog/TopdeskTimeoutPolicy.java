@@ -0,0 +1,53 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timeout settings of the requests to Topdesk, and the time all requests for one incident may take together.
+ */
+@Singleton
+public class TopdeskTimeoutPolicy {
+	/** OkHttp's default timeouts, without delivery deadline. */
+	static final TopdeskTimeoutPolicy NONE = new TopdeskTimeoutPolicy(Duration.seconds(10), Duration.seconds(10),
+			Duration.seconds(10), Duration.seconds(0));
+
+	private final Duration connectTimeout;
+	private final Duration readTimeout;
+	private final Duration writeTimeout;
+	private final long deliveryDeadlineMillis;
+
+	@Inject
+	public TopdeskTimeoutPolicy(@Named("topdesk_connect_timeout") Duration connectTimeout,
+								@Named("topdesk_read_timeout") Duration readTimeout,
+								@Named("topdesk_write_timeout") Duration writeTimeout,
+								@Named("topdesk_delivery_deadline") Duration deliveryDeadline) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.writeTimeout = writeTimeout;
+		this.deliveryDeadlineMillis = deliveryDeadline.toMilliseconds();
+	}
+
+	public Duration getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public Duration getReadTimeout() {
+		return readTimeout;
+	}
+
+	public Duration getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Returns a new deadline for the delivery of one incident, or {@code null} if deliveries have no deadline.
+	 */
+	public TopdeskDeadline newDeadline() {
+		return deliveryDeadlineMillis > 0 ? TopdeskDeadline.after(deliveryDeadlineMillis, TimeUnit.MILLISECONDS) : null;
+	}
+}
@@ -0,0 +1,190 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens the connection, logs in and resolves all configured names of a callback in the background, so the first
+ * alert doesn't have to.
+ * <p>
+ * Warm-ups are started once per configuration and remembered as long as lookup IDs are cached. Alerts that come in
+ * while a warm-up runs wait for the login and lookups in flight instead of repeating them, as the session manager and
+ * the lookup cache only load each token and ID once. The result of a warm-up is also used to verify the configuration.
+ */
+@Singleton
+public class TopdeskWarmUp {
+	private static final Logger LOG = LoggerFactory.getLogger(TopdeskWarmUp.class);
+
+	private final TopdeskClientRegistry clientRegistry;
+	private final TopdeskSessionManager sessionManager;
+	private final TopdeskLookupCache lookupCache;
+	private final TopdeskLookupTables lookupTables;
+	private final boolean enabled;
+	private final long timeoutMillis;
+	private final ListeningExecutorService executor;
+	private final Cache<TopdeskConfig, ListenableFuture<Void>> warmUps;
+
+	@Inject
+	public TopdeskWarmUp(TopdeskClientRegistry clientRegistry, TopdeskSessionManager sessionManager,
+						 TopdeskLookupCache lookupCache, TopdeskLookupTables lookupTables,
+						 @Named("topdesk_warm_up_enabled") boolean enabled,
+						 @Named("topdesk_lookup_threads") int threads,
+						 @Named("topdesk_lookup_cache_ttl") Duration ttl,
+						 @Named("topdesk_lookup_timeout") Duration timeout) {
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = sessionManager;
+		this.lookupCache = lookupCache;
+		this.lookupTables = lookupTables;
+		this.enabled = enabled;
+		this.timeoutMillis = timeout.toMilliseconds();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("topdesk-warm-up-%d").setDaemon(true).build());
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = MoreExecutors.listeningDecorator(pool);
+		this.warmUps = CacheBuilder.newBuilder()
+				.maximumSize(1000)
+				.expireAfterWrite(ttl.getQuantity(), ttl.getUnit())
+				.build();
+	}
+
+	/**
+	 * Starts the warm-up of the configuration in the background, unless it ran or is running already.
+	 */
+	public void warmUp(TopdeskConfig config) {
+		if (enabled) {
+			start(config);
+		}
+	}
+
+	/**
+	 * Checks the credentials and all configured names against Topdesk, reusing the result of the warm-up.
+	 */
+	public void verify(TopdeskConfig config) throws ConfigurationException {
+		try {
+			start(config).get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new ConfigurationException("Timed out after " + timeoutMillis + "ms verifying the configuration against Topdesk.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConfigurationException("Interrupted while verifying the configuration against Topdesk.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ConfigurationException) {
+				throw (ConfigurationException) e.getCause();
+			}
+			throw new ConfigurationException("Failed to verify configuration: " + e.getCause().getMessage());
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@VisibleForTesting
+	ListenableFuture<Void> start(final TopdeskConfig config) {
+		try {
+			ListenableFuture<Void> warmUp = warmUps.getIfPresent(config);
+			if (warmUp == null) {
+				return warmUps.get(config, () -> run(config));
+			}
+			if (isUnreachable(warmUp)) {
+				// Topdesk might be reachable now, unknown names are remembered like in the lookup cache
+				warmUps.asMap().remove(config, warmUp);
+				warmUp = warmUps.get(config, () -> run(config));
+			}
+			return warmUp;
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			return Futures.immediateFailedFuture(e.getCause());
+		}
+	}
+
+	private static boolean isUnreachable(ListenableFuture<Void> warmUp) {
+		if (!warmUp.isDone()) {
+			return false;
+		}
+		try {
+			Futures.getDone(warmUp);
+			return false;
+		} catch (ExecutionException e) {
+			return !(e.getCause() instanceof ConfigurationException);
+		} catch (RuntimeException e) {
+			return true;
+		}
+	}
+
+	private ListenableFuture<Void> run(final TopdeskConfig config) {
+		final TopdeskCredentials credentials = config.getCredentials();
+		ListenableFuture<String> login = executor.submit(() -> {
+			clientRegistry.get(config.getEndpoint());
+			return sessionManager.token(credentials);
+		});
+		final ListenableFuture<TopdeskLookupSnapshot> snapshot = Futures.transformAsync(login,
+				token -> executor.submit(() -> lookupTables.load(credentials)), MoreExecutors.directExecutor());
+		ListenableFuture<Void> warmUp = Futures.transformAsync(login, token -> {
+			List<ListenableFuture<String>> ids = new ArrayList<>();
+			for (final TopdeskLookup lookup : config.getWarmUpLookups()) {
+				ids.add(executor.submit(() -> {
+					String id = lookupCache.getId(credentials, lookup.getUri(), lookup.getName(), lookup.getKeyName());
+					if (id == null) {
+						throw new ConfigurationException(lookup.getName() + " is not a valid " + lookup.getLabel());
+					}
+					return id;
+				}));
+			}
+			if (config.getCategory() != null) {
+				// The category is only checked against the snapshot, the other names don't wait for it
+				ids.add(Futures.transformAsync(snapshot, loaded -> {
+					TopdeskCategoryTree categoryTree = loaded == null ? null : loaded.getCategoryTree();
+					if (categoryTree != null) {
+						try {
+							categoryTree.resolve(config.getCategory(), config.getSubcategory());
+						} catch (TopdeskCategoryTree.UnknownCategoryException e) {
+							throw new ConfigurationException(e.getMessage());
+						}
+					}
+					return Futures.immediateFuture(config.getCategory());
+				}, executor));
+			}
+			final int names = ids.size();
+			List<ListenableFuture<?>> tasks = new ArrayList<ListenableFuture<?>>(ids);
+			tasks.add(snapshot);
+			return Futures.transform(Futures.allAsList(tasks), resolved -> {
+				LOG.debug("Warmed up Topdesk callback for {}, resolved {} names", config.getEndpoint(), names);
+				return (Void) null;
+			}, MoreExecutors.directExecutor());
+		}, MoreExecutors.directExecutor());
+		warmUp.addListener(() -> {
+			try {
+				Futures.getDone(warmUp);
+			} catch (ExecutionException e) {
+				LOG.warn("Warm-up of Topdesk callback for {} failed: {}", config.getEndpoint(), e.getCause().toString());
+			} catch (CancellationException e) {
+				LOG.debug("Warm-up of Topdesk callback for {} was cancelled", config.getEndpoint());
+			}
+		}, MoreExecutors.directExecutor());
+		return warmUp;
+	}
+}
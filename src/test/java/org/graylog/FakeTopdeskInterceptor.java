@@ -0,0 +1,116 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers Topdesk requests without a network connection and counts the requests per path.
+ */
+class FakeTopdeskInterceptor implements Interceptor {
+	private final Map<String, String> bodies = new ConcurrentHashMap<>();
+	private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+	private final Map<String, String> requestBodies = new ConcurrentHashMap<>();
+	private final Map<String, String> authorizations = new ConcurrentHashMap<>();
+	private final AtomicInteger logins = new AtomicInteger();
+	private volatile long latencyMillis;
+
+	FakeTopdeskInterceptor respond(String path, String body) {
+		bodies.put(path, body);
+		return this;
+	}
+
+	FakeTopdeskInterceptor respond(String path, int code, String body) {
+		codes.put(path, code);
+		return respond(path, body);
+	}
+
+	FakeTopdeskInterceptor latency(long millis) {
+		this.latencyMillis = millis;
+		return this;
+	}
+
+	int count(String path) {
+		AtomicInteger count = counts.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the body of the last request to the path.
+	 */
+	String lastRequestBody(String path) {
+		return requestBodies.get(path);
+	}
+
+	/**
+	 * Returns the Authorization header of the last request to the path.
+	 */
+	String lastAuthorization(String path) {
+		return authorizations.get(path);
+	}
+
+	OkHttpClient client() {
+		return new OkHttpClient.Builder().addInterceptor(this).build();
+	}
+
+	TopdeskClientRegistry registry() {
+		final OkHttpClient client = client();
+		return new TopdeskClientRegistry(5, Duration.minutes(5)) {
+			@Override
+			public OkHttpClient get(String endpoint) {
+				return client;
+			}
+		};
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		String path = chain.request().url().encodedPath();
+		counts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+		String authorization = chain.request().header("Authorization");
+		if (authorization != null) {
+			authorizations.put(path, authorization);
+		}
+		if (chain.request().body() != null) {
+			Buffer buffer = new Buffer();
+			chain.request().body().writeTo(buffer);
+			requestBodies.put(path, buffer.readUtf8());
+		}
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+
+		String body = bodies.get(path);
+		Integer configuredCode = codes.get(path);
+		int code = configuredCode == null ? 200 : configuredCode;
+		if (path.startsWith("/tas/api/login/")) {
+			body = "token" + logins.incrementAndGet();
+		} else if (body == null) {
+			body = "";
+			code = path.equals("/tas/api/logout") ? 200 : 404;
+		}
+		return new Response.Builder()
+				.request(chain.request())
+				.protocol(Protocol.HTTP_1_1)
+				.code(code)
+				.message("OK")
+				.body(ResponseBody.create(MediaType.parse("application/json"), body))
+				.build();
+	}
+}
@@ -1,5 +1,8 @@
 package org.graylog;
 
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.MessageSummary;
 import org.graylog2.plugin.alarms.AlertCondition;
@@ -94,7 +97,21 @@ public class TopdeskAlarmCallbackTest {
 
 	@Before
 	public void setUp() {
-		alarmCallback = new TopdeskAlarmCallback();
+		TopdeskClientRegistry clientRegistry = new TopdeskClientRegistry(5, Duration.minutes(5));
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		TopdeskLookupCache lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager,
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 1000,
+				new TopdeskMetrics(new MetricRegistry()));
+		TopdeskOutbox outbox = new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1));
+		TopdeskIncidentSender incidentSender = new TopdeskIncidentSender(clientRegistry, sessionManager,
+				new TopdeskLookupResolver(lookupCache, 8, Duration.seconds(10)), outbox,
+				new TopdeskIncidentIndex(Duration.hours(4), 10000, new TopdeskMetrics(new MetricRegistry())));
+		TopdeskIncidentDispatcher incidentDispatcher = new TopdeskIncidentDispatcher(incidentSender, outbox, 1000, 2, "block", new TopdeskMetrics(new MetricRegistry()));
+		TopdeskMetrics metrics = new TopdeskMetrics(new MetricRegistry());
+		alarmCallback = new TopdeskAlarmCallback(incidentSender, incidentDispatcher, outbox,
+				new TopdeskIncidentCoalescer(outbox, incidentDispatcher), metrics,
+				new TopdeskWarmUp(clientRegistry, sessionManager, lookupCache, TopdeskLookupTables.NONE, false, 2, Duration.hours(1), Duration.seconds(10)),
+				new TopdeskConfigRegistry(metrics));
 	}
 
 	@Test
@@ -137,12 +154,12 @@ public class TopdeskAlarmCallbackTest {
 	public void testConfigurationSucceedsWithValidConfiguration()
 			throws AlarmCallbackConfigurationException, ConfigurationException {
 		alarmCallback.initialize(new Configuration(VALID_CONFIG));
-//		try {
-//			alarmCallback.checkConfiguration();
-//		} catch (ConfigurationException e) {
-//			System.out.println(e.getMessage());
-//			fail();
-//		}
+		try {
+			alarmCallback.checkConfiguration();
+		} catch (ConfigurationException e) {
+			System.out.println(e.getMessage());
+			fail();
+		}
 	}
 
 	@Test
@@ -0,0 +1,97 @@
+package org.graylog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+import org.graylog2.plugin.Message;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class TopdeskBacklogAttachmentTest {
+
+	private static Message message(Map<String, Object> fields) {
+		Message message = mock(Message.class);
+		when(message.getFields()).thenReturn(fields);
+		return message;
+	}
+
+	private static final List<Message> BACKLOG = Arrays.asList(
+			message(ImmutableMap.<String, Object>of("message", "Login failed, \"root\"", "source", "web1", "port", 22)),
+			message(ImmutableMap.<String, Object>of("message", "Login failed", "source", "web2", "user", "bob")));
+
+	private static String write(TopdeskBacklogAttachment attachment) throws Exception {
+		Buffer buffer = new Buffer();
+		attachment.writeTo(buffer);
+		return buffer.readUtf8();
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		TopdeskBacklogAttachment attachment = new TopdeskBacklogAttachment(BACKLOG, TopdeskBacklogAttachment.Format.NDJSON, 1024, false);
+		String[] lines = write(attachment).split("\n");
+
+		assertEquals("backlog.ndjson", attachment.getFileName());
+		assertEquals(2, lines.length);
+		JsonNode first = new ObjectMapper().readTree(lines[0]);
+		assertEquals("Login failed, \"root\"", first.path("message").asText());
+		assertEquals(22, first.path("port").asInt());
+		assertEquals("bob", new ObjectMapper().readTree(lines[1]).path("user").asText());
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		TopdeskBacklogAttachment attachment = new TopdeskBacklogAttachment(BACKLOG, TopdeskBacklogAttachment.Format.CSV, 1024, false);
+
+		assertEquals("source,message,port,user\r\n"
+						+ "web1,\"Login failed, \"\"root\"\"\",22,\r\n"
+						+ "web2,Login failed,,bob\r\n",
+				write(attachment));
+	}
+
+	@Test
+	public void testMaximumSize() throws Exception {
+		List<Message> backlog = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			backlog.add(message(ImmutableMap.<String, Object>of("message", "message " + i)));
+		}
+		String ndjson = write(new TopdeskBacklogAttachment(backlog, TopdeskBacklogAttachment.Format.NDJSON, 100, false));
+
+		assertTrue(ndjson.length() <= 100);
+		assertTrue(ndjson.startsWith("{\"message\":\"message 0\"}\n{\"message\":\"message 1\"}\n"));
+		assertTrue(ndjson.endsWith("\n"));
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		TopdeskBacklogAttachment attachment = new TopdeskBacklogAttachment(BACKLOG, TopdeskBacklogAttachment.Format.CSV, 1024, true);
+		Buffer buffer = new Buffer();
+		attachment.writeTo(buffer);
+		// Written again when the request is retried
+		Buffer retry = new Buffer();
+		attachment.writeTo(retry);
+
+		assertEquals("backlog.csv.gz", attachment.getFileName());
+		assertEquals("application/gzip", attachment.contentType().toString());
+		String csv = Okio.buffer(new GzipSource(buffer)).readUtf8();
+		assertTrue(csv.startsWith("source,message,port,user\r\n"));
+		assertEquals(csv, Okio.buffer(new GzipSource(retry)).readUtf8());
+	}
+
+	@Test
+	public void testFormat() {
+		assertNull(TopdeskBacklogAttachment.Format.of("none"));
+		assertNull(TopdeskBacklogAttachment.Format.of(null));
+		assertEquals(TopdeskBacklogAttachment.Format.CSV, TopdeskBacklogAttachment.Format.of("csv"));
+	}
+}
@@ -0,0 +1,69 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class TopdeskBacklogTest {
+
+	private static Message message(String srcIp, int minute) {
+		Message message = mock(Message.class);
+		when(message.getField("src_ip")).thenReturn(srcIp);
+		when(message.getTimestamp()).thenReturn(new DateTime(2018, 1, 1, 12, minute, DateTimeZone.UTC));
+		return message;
+	}
+
+	private static String timestamp(int minute) {
+		return TopdeskBacklog.TIMESTAMP_FORMATTER.format(Instant.ofEpochMilli(
+				new DateTime(2018, 1, 1, 12, minute, DateTimeZone.UTC).getMillis()));
+	}
+
+	@Test
+	public void testAggregations() {
+		TopdeskBacklog backlog = new TopdeskBacklog(Arrays.asList(message("10.0.0.2", 5), message("10.0.0.1", 3),
+				message("10.0.0.2", 9), message(null, 7)), ImmutableSet.of("src_ip"));
+		TopdeskTemplate template = TopdeskTemplate.compile("%backlog.count% alerts between %backlog.first_timestamp% and "
+				+ "%backlog.last_timestamp% from %backlog.distinct_count.src_ip% sources: %backlog.distinct.src_ip%, "
+				+ "users: %backlog.distinct.user|none%");
+
+		assertEquals(ImmutableSet.of("src_ip", "user"), template.getBacklogFields());
+		assertEquals("4 alerts between " + timestamp(3) + " and " + timestamp(9) + " from 2 sources: 10.0.0.2, 10.0.0.1, users: none",
+				template.render("Stream title", "now", backlog, false));
+	}
+
+	@Test
+	public void testMessagesAreOnlyResolvedWhenUsed() {
+		List<MessageSummary> summaries = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			summaries.add(spy(new MessageSummary("index", message("10.0.0." + i, 0))));
+		}
+		AlertCondition condition = mock(AlertCondition.class);
+		when(condition.getBacklog()).thenReturn(50);
+		CheckResult result = mock(CheckResult.class);
+		when(result.getTriggeredCondition()).thenReturn(condition);
+		when(result.getMatchingMessages()).thenReturn(summaries);
+
+		List<Message> messages = new TopdeskAlarmCallback(null, null, null, null, null, null, null).getAlarmBacklog(result);
+		TopdeskBacklog backlog = new TopdeskBacklog(messages, ImmutableSet.<String>of());
+		assertEquals(50, backlog.size());
+		verify(summaries.get(0), never()).getRawMessage();
+
+		assertEquals("10.0.0.0 of 50", TopdeskTemplate.compile("%src_ip% of %backlog.count%")
+				.render("Stream title", "now", backlog, false));
+		verify(summaries.get(1), never()).getRawMessage();
+	}
+}
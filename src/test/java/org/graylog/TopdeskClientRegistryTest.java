@@ -0,0 +1,43 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskClientRegistryTest {
+
+	private TopdeskClientRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new TopdeskClientRegistry(5, Duration.minutes(5));
+	}
+
+	@After
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	@Test
+	public void testSameClientForSameEndpoint() {
+		OkHttpClient client = registry.get("https://topdesk.example.com");
+		assertSame(client, registry.get("https://topdesk.example.com/"));
+		assertSame(client, registry.get("https://topdesk.example.com:443/tas"));
+	}
+
+	@Test
+	public void testDifferentClientForDifferentEndpoint() {
+		assertNotSame(registry.get("https://topdesk.example.com"), registry.get("https://other.example.com"));
+	}
+
+	@Test
+	public void testConnectionPoolIsShared() {
+		assertEquals(0, registry.get("https://topdesk.example.com").connectionPool().connectionCount());
+		assertSame(registry.get("https://topdesk.example.com").connectionPool(), registry.get("https://topdesk.example.com").connectionPool());
+	}
+}
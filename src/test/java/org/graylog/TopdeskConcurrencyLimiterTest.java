@@ -0,0 +1,189 @@
+package org.graylog;
+
+import com.google.common.base.Ticker;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskConcurrencyLimiterTest {
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final Ticker ticker = new Ticker() {
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+	};
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testRejectsAboveLimit() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 2, 10, 10 * MILLIS, ticker);
+
+		TopdeskConcurrencyLimiter.Permit first = limiter.acquire();
+		limiter.acquire();
+		try {
+			limiter.acquire();
+			fail();
+		} catch (TopdeskConcurrencyLimiter.ConcurrencyLimitException e) {
+			assertEquals(2, limiter.getInFlight());
+		}
+
+		nanos.addAndGet(100 * MILLIS);
+		limiter.release(first, false);
+		limiter.acquire();
+		assertEquals(2, limiter.getInFlight());
+	}
+
+	@Test
+	public void testAdditiveIncreaseWhileBusy() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 2, 3, 0, ticker);
+
+		for (int i = 0; i < 4; i++) {
+			TopdeskConcurrencyLimiter.Permit a = limiter.acquire();
+			TopdeskConcurrencyLimiter.Permit b = limiter.acquire();
+			nanos.addAndGet(100 * MILLIS);
+			limiter.release(a, false);
+			limiter.release(b, false);
+		}
+		assertEquals(3, limiter.getLimit());
+
+		for (int i = 0; i < 10; i++) {
+			TopdeskConcurrencyLimiter.Permit a = limiter.acquire();
+			TopdeskConcurrencyLimiter.Permit b = limiter.acquire();
+			TopdeskConcurrencyLimiter.Permit c = limiter.acquire();
+			nanos.addAndGet(100 * MILLIS);
+			limiter.release(a, false);
+			limiter.release(b, false);
+			limiter.release(c, false);
+		}
+		assertEquals(3, limiter.getLimit());
+	}
+
+	@Test
+	public void testIdleRequestsDontRaiseLimit() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 4, 32, 0, ticker);
+
+		for (int i = 0; i < 100; i++) {
+			TopdeskConcurrencyLimiter.Permit permit = limiter.acquire();
+			nanos.addAndGet(100 * MILLIS);
+			limiter.release(permit, false);
+		}
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void testFailuresHalveLimitOnce() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 8, 32, 0, ticker);
+
+		TopdeskConcurrencyLimiter.Permit[] permits = new TopdeskConcurrencyLimiter.Permit[4];
+		for (int i = 0; i < permits.length; i++) {
+			permits[i] = limiter.acquire();
+		}
+		nanos.addAndGet(100 * MILLIS);
+		for (TopdeskConcurrencyLimiter.Permit permit : permits) {
+			limiter.release(permit, true);
+		}
+		assertEquals(4, limiter.getLimit());
+
+		nanos.addAndGet(MILLIS);
+		limiter.release(limiter.acquire(), true);
+		assertEquals(2, limiter.getLimit());
+
+		for (int i = 0; i < 5; i++) {
+			nanos.addAndGet(MILLIS);
+			limiter.release(limiter.acquire(), true);
+		}
+		assertEquals(1, limiter.getLimit());
+	}
+
+	@Test
+	public void testLatencyIncreaseLowersLimit() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 8, 32, 0, ticker);
+
+		for (int i = 0; i < 10; i++) {
+			TopdeskConcurrencyLimiter.Permit permit = limiter.acquire();
+			nanos.addAndGet(100 * MILLIS);
+			limiter.release(permit, false);
+		}
+		assertEquals(8, limiter.getLimit());
+
+		TopdeskConcurrencyLimiter.Permit permit = limiter.acquire();
+		nanos.addAndGet(500 * MILLIS);
+		limiter.release(permit, false);
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void testPermitIsHeldUntilBodyIsClosed() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 2, 10, 0, ticker);
+		OkHttpClient client = new OkHttpClient.Builder()
+				.addInterceptor(limiter)
+				.addInterceptor(new FakeTopdeskInterceptor().respond("/tas/api/incidents/priorities", "[]"))
+				.build();
+
+		Response response = client.newCall(new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build()).execute();
+		assertEquals(1, limiter.getInFlight());
+		assertEquals("[]", response.body().string());
+		assertEquals(0, limiter.getInFlight());
+		response.close();
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testPermitIsReleasedOnUnexpectedException() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 2, 10, 0, ticker);
+		OkHttpClient client = new OkHttpClient.Builder()
+				.addInterceptor(limiter)
+				.addInterceptor(chain -> {
+					throw new IllegalStateException("unexpected");
+				})
+				.build();
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				client.newCall(new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build()).execute();
+				fail();
+			} catch (IllegalStateException e) {
+				assertEquals(0, limiter.getInFlight());
+			}
+		}
+	}
+
+	@Test
+	public void testRequestsNotSentDontLowerLimit() throws Exception {
+		TopdeskConcurrencyLimiter limiter = new TopdeskConcurrencyLimiter("localhost", 8, 32, 0, ticker);
+		OkHttpClient client = new OkHttpClient.Builder()
+				.addInterceptor(limiter)
+				.addInterceptor(new TopdeskDeadlineInterceptor())
+				.addInterceptor(chain -> {
+					throw new ConnectException("Connection refused");
+				})
+				.build();
+
+		try (TopdeskDeadline.Scope ignored = TopdeskDeadline.after(0, TimeUnit.NANOSECONDS).enter()) {
+			client.newCall(new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build()).execute();
+			fail();
+		} catch (TopdeskDeadline.DeadlineExceededException e) {
+			assertEquals(0, limiter.getInFlight());
+			assertEquals(8, limiter.getLimit());
+		}
+
+		try {
+			client.newCall(new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build()).execute();
+			fail();
+		} catch (ConnectException e) {
+			assertEquals(0, limiter.getInFlight());
+			assertEquals(4, limiter.getLimit());
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskConfigRegistryTest {
+
+	private static final Map<String, Object> CONFIG = ImmutableMap.<String, Object>of(
+			"endpoint", "https://topdesk/",
+			"username", "user",
+			"password", "pass",
+			"login_mode", "operator");
+
+	private final MetricRegistry metricRegistry = new MetricRegistry();
+	private final TopdeskConfigRegistry configRegistry = new TopdeskConfigRegistry(new TopdeskMetrics(metricRegistry));
+
+	@Test
+	public void testConfigIsSharedByEqualConfigurations() throws Exception {
+		TopdeskConfig config = configRegistry.get(new Configuration(CONFIG));
+
+		assertSame(config, configRegistry.get(new Configuration(new HashMap<>(CONFIG))));
+		assertNotSame(config, new TopdeskConfigRegistry(new TopdeskMetrics(new MetricRegistry())).get(new Configuration(CONFIG)));
+		assertEquals(1L, metricRegistry.getGauges().get("org.graylog.TopdeskAlarmCallback.cache.configurations.hits").getValue());
+	}
+
+	@Test
+	public void testStoredConfigurationGetsPasswordOfLiveCallback() throws Exception {
+		Map<String, Object> stored = new HashMap<>(CONFIG);
+		stored.remove("password");
+		stored.put("priority", "P1");
+		assertNull(configRegistry.restore(stored));
+
+		configRegistry.get(new Configuration(CONFIG));
+		TopdeskConfig restored = configRegistry.restore(stored);
+		assertEquals("Basic dXNlcjpwYXNz", restored.getCredentials().getAuthorization());
+		assertEquals("P1", restored.getLookups().get(0).getName());
+
+		stored.put("username", "other");
+		assertNull(configRegistry.restore(stored));
+	}
+
+	@Test
+	public void testInvalidConfigurationIsRejected() {
+		Map<String, Object> invalid = new HashMap<>(CONFIG);
+		invalid.remove("password");
+		try {
+			configRegistry.get(new Configuration(invalid));
+			fail();
+		} catch (ConfigurationException e) {
+			assertEquals("password is mandatory and must be not be null or empty.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class TopdeskConfigTest {
+
+	private static final ImmutableMap<String, Object> CONFIG = ImmutableMap.<String, Object>builder()
+			.put("endpoint", "https://topdesk/")
+			.put("username", "user")
+			.put("password", "pass")
+			.put("login_mode", "operator")
+			.put("caller_email", "foo@bar.com")
+			.put("summary", "summary")
+			.put("priority", "P1")
+			.put("operator_group", "operators")
+			.put("optional_fields", "optionalFields1:text1:%src_ip%,optionalFields2:text2:fixed")
+			.put("description", "Alert on %stream%")
+			.put("second_line", true)
+			.put("deduplication_fields", "src_ip, user,")
+			.put("coalesce_window", 30)
+			.build();
+
+	@Test
+	public void testSnapshotValues() throws Exception {
+		TopdeskConfig config = TopdeskConfig.of(CONFIG);
+
+		assertEquals("https://topdesk", config.getEndpoint());
+		assertEquals("https://topdesk/tas/api/incidents/", config.getIncidentsUrl().toString());
+		assertEquals("https://topdesk/tas/api/incidents/id/abc", config.getIncidentUrl("abc").toString());
+		assertEquals("Basic dXNlcjpwYXNz", config.getCredentials().getAuthorization());
+		assertEquals(2, config.getLookups().size());
+		assertTrue(config.isSecondLine());
+		assertNull(config.getCategory());
+		assertEquals(30000L, config.getCoalesceWindowMillis());
+		assertEquals(2, config.getDeduplicationFields().size());
+
+		Message message = mock(Message.class);
+		when(message.getField("src_ip")).thenReturn("10.0.0.1");
+		Map<String, Map<String, String>> optionalFields = config.renderOptionalFields("Stream title", "now", message);
+		assertEquals("10.0.0.1", optionalFields.get("optionalFields1").get("text1"));
+		assertEquals("fixed", optionalFields.get("optionalFields2").get("text2"));
+	}
+
+	@Test
+	public void testInvalidConfigurationIsRejected() {
+		Map<String, Object> invalid = new HashMap<>(CONFIG);
+		invalid.put("optional_fields", "text1:test1");
+		try {
+			TopdeskConfig.of(invalid);
+			fail();
+		} catch (ConfigurationException e) {
+			assertTrue(e.getMessage().startsWith("Optional Fields are of format"));
+		}
+
+		invalid.put("optional_fields", "");
+		invalid.put("endpoint", "topdesk");
+		try {
+			TopdeskConfig.of(invalid);
+			fail();
+		} catch (ConfigurationException e) {
+			assertEquals("endpoint must be a valid http or https URL.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.graylog;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskDeadlineTest {
+
+	private MockWebServer server;
+	private OkHttpClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new MockWebServer();
+		server.start();
+		client = new OkHttpClient.Builder()
+				.addInterceptor(new TopdeskDeadlineInterceptor())
+				.readTimeout(10, TimeUnit.SECONDS)
+				.build();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.shutdown();
+	}
+
+	@Test
+	public void testNoDeadline() throws Exception {
+		assertNull(TopdeskDeadline.current());
+		assertEquals(Long.MAX_VALUE, TopdeskDeadline.remainingNanos());
+		TopdeskDeadline.check(TimeUnit.DAYS.toNanos(1), "test");
+	}
+
+	@Test
+	public void testScopesRestoreThePreviousDeadline() {
+		TopdeskDeadline outer = TopdeskDeadline.after(1, TimeUnit.MINUTES);
+		TopdeskDeadline inner = TopdeskDeadline.after(1, TimeUnit.SECONDS);
+		try (TopdeskDeadline.Scope ignored = outer.enter()) {
+			try (TopdeskDeadline.Scope ignored2 = inner.enter()) {
+				assertSame(inner, TopdeskDeadline.current());
+				assertTrue(TopdeskDeadline.remainingNanos() <= TimeUnit.SECONDS.toNanos(1));
+			}
+			assertSame(outer, TopdeskDeadline.current());
+		}
+		assertNull(TopdeskDeadline.current());
+	}
+
+	@Test
+	public void testWaitLongerThanRemainingTimeFails() throws Exception {
+		try (TopdeskDeadline.Scope ignored = TopdeskDeadline.after(100, TimeUnit.MILLISECONDS).enter()) {
+			TopdeskDeadline.check(TimeUnit.MILLISECONDS.toNanos(10), "short wait");
+			try {
+				TopdeskDeadline.check(TimeUnit.SECONDS.toNanos(1), "long wait");
+				fail();
+			} catch (TopdeskDeadline.DeadlineExceededException e) {
+				assertTrue(e.getMessage().contains("long wait"));
+			}
+		}
+	}
+
+	@Test
+	public void testWrapPropagatesDeadline() throws Exception {
+		final TopdeskDeadline deadline = TopdeskDeadline.after(1, TimeUnit.MINUTES);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Callable<TopdeskDeadline> current = new Callable<TopdeskDeadline>() {
+				@Override
+				public TopdeskDeadline call() {
+					return TopdeskDeadline.current();
+				}
+			};
+			assertSame(deadline, executor.submit(deadline.wrap(current)).get());
+			assertNull(executor.submit(current).get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testExpiredDeadlineSendsNothing() throws Exception {
+		try (TopdeskDeadline.Scope ignored = TopdeskDeadline.after(0, TimeUnit.MILLISECONDS).enter()) {
+			client.newCall(new Request.Builder().url(server.url("/tas/api/incidents/")).build()).execute();
+			fail();
+		} catch (TopdeskDeadline.DeadlineExceededException e) {
+			assertEquals(0, server.getRequestCount());
+		}
+	}
+
+	@Test
+	public void testReadTimeoutIsShortenedToDeadline() throws Exception {
+		server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+		long start = System.nanoTime();
+		try (TopdeskDeadline.Scope ignored = TopdeskDeadline.after(200, TimeUnit.MILLISECONDS).enter();
+			 Response response = client.newCall(new Request.Builder().url(server.url("/tas/api/incidents/")).build()).execute()) {
+			fail();
+		} catch (SocketTimeoutException e) {
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		}
+	}
+
+	@Test
+	public void testPolicyWithoutDeadline() {
+		assertNull(TopdeskTimeoutPolicy.NONE.newDeadline());
+	}
+}
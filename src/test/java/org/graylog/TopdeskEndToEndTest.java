@@ -0,0 +1,48 @@
+package org.graylog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskEndToEndTest {
+
+	private TopdeskStub stub;
+
+	@Before
+	public void setUp() throws Exception {
+		stub = new TopdeskStub().start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stub.close();
+	}
+
+	@Test
+	public void testAlertsCreateIncidents() throws Exception {
+		TopdeskLoadDriver.Result result = TopdeskLoadDriver.run(stub, 20, 1);
+
+		assertEquals(0, result.failed);
+		assertEquals(20, stub.getIncidentCount());
+		assertEquals(20, stub.count("POST", "/tas/api/incidents/"));
+		assertEquals(1, stub.count("GET", "/tas/api/login/operator"));
+		// Once by the warm-up, which doesn't wait for the snapshot, and once by the snapshot
+		assertTrue(stub.count("GET", TopdeskAlarmCallback.PRIORITIES_URI) <= 2);
+		assertTrue(stub.count("GET", TopdeskAlarmCallback.OPERATOR_GROUPS_URI) <= 2);
+		assertEquals(1, stub.count("GET", "/tas/api/logout"));
+	}
+
+	@Test
+	public void testConcurrentAlerts() throws Exception {
+		stub.latency(5);
+		TopdeskLoadDriver.Result result = TopdeskLoadDriver.run(stub, 40, 8);
+
+		assertEquals(0, result.failed);
+		assertEquals(40, stub.getIncidentCount());
+		assertTrue(result.requestsPerIncident() < 1.5);
+		assertTrue(result.p99Millis >= result.p50Millis);
+	}
+}
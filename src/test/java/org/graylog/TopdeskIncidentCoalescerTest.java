@@ -0,0 +1,130 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+
+public class TopdeskIncidentCoalescerTest {
+
+	private final BlockingQueue<TopdeskIncident> submitted = new LinkedBlockingQueue<>();
+	private final TopdeskOutbox outbox = new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1));
+
+	private TopdeskConfig config;
+	private TopdeskConfig otherConfig;
+	private TopdeskIncidentCoalescer coalescer;
+
+	private static TopdeskConfig newConfig(String endpoint) throws ConfigurationException {
+		return TopdeskConfig.of(ImmutableMap.<String, Object>of("endpoint", endpoint, "password", "pass", "login_mode", "operator"));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		config = newConfig("https://localhost");
+		otherConfig = newConfig("https://other");
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(null, outbox, 10, 1, "block", new TopdeskMetrics(new MetricRegistry())) {
+			@Override
+			public void submit(TopdeskIncident incident) {
+				submitted.add(incident);
+			}
+		};
+		coalescer = new TopdeskIncidentCoalescer(outbox, dispatcher);
+		coalescer.start();
+	}
+
+	@After
+	public void tearDown() {
+		coalescer.stop();
+	}
+
+	private static TopdeskIncidentCoalescer.Alert alert(TopdeskConfig config, String stream, String host) {
+		return new TopdeskIncidentCoalescer.Alert(stream, "2018-01-01 12:00:00+0000", ImmutableMap.<String, Object>of("host", host),
+				new TopdeskIncident(config, "Alert on " + stream, ImmutableMap.<String, Map<String, String>>of(), null, null));
+	}
+
+	@Test
+	public void testAlertsAreMergedWhenWindowCloses() throws Exception {
+		coalescer.add(config, alert(config, "web", "web1"), 200, 10);
+		coalescer.add(config, alert(config, "db", "db<1>"), 200, 10);
+		coalescer.add(otherConfig, alert(otherConfig, "mail", "mail1"), 200, 10);
+		assertEquals(3, coalescer.getPendingCount());
+		assertTrue(submitted.isEmpty());
+
+		TopdeskIncident first = submitted.poll(2, TimeUnit.SECONDS);
+		TopdeskIncident second = submitted.poll(2, TimeUnit.SECONDS);
+		assertNotNull(second);
+		TopdeskIncident merged = first.getConfig() == config ? first : second;
+		TopdeskIncident single = merged == first ? second : first;
+
+		assertTrue(merged.getDescription().startsWith("<b>2 alerts</b><br>web at 2018-01-01 12:00:00+0000: host=web1<br>"
+				+ "db at 2018-01-01 12:00:00+0000: host=db&lt;1&gt;<br>"));
+		assertTrue(merged.getDescription().endsWith("<br>Alert on web"));
+		assertEquals("Alert on mail", single.getDescription());
+		assertEquals(0, coalescer.getPendingCount());
+	}
+
+	@Test
+	public void testFullBatchIsReturnedToTheAlert() throws Exception {
+		assertNull(coalescer.add(config, alert(config, "web", "web0"), 60000, 3));
+		assertNull(coalescer.add(config, alert(config, "web", "web1"), 60000, 3));
+		TopdeskIncident merged = coalescer.add(config, alert(config, "web", "web2"), 60000, 3);
+
+		assertNotNull(merged);
+		assertTrue(merged.getDescription().startsWith("<b>3 alerts</b>"));
+		assertEquals(0, coalescer.getPendingCount());
+		assertTrue(submitted.isEmpty());
+	}
+
+	@Test
+	public void testBacklogsAreMerged() {
+		Message first = mock(Message.class);
+		Message second = mock(Message.class);
+		TopdeskIncidentCoalescer.Alert withFirst = new TopdeskIncidentCoalescer.Alert("web", "t1", ImmutableMap.<String, Object>of(),
+				new TopdeskIncident(config, "first", ImmutableMap.<String, Map<String, String>>of(), null, null).withBacklog(ImmutableList.of(first)));
+		TopdeskIncidentCoalescer.Alert withSecond = new TopdeskIncidentCoalescer.Alert("web", "t2", ImmutableMap.<String, Object>of(),
+				new TopdeskIncident(config, "second", ImmutableMap.<String, Map<String, String>>of(), null, null).withBacklog(ImmutableList.of(second)));
+
+		assertEquals(ImmutableList.of(first, second),
+				TopdeskIncidentCoalescer.merge(config, ImmutableList.of(withFirst, withSecond)).getBacklog());
+		assertNull(TopdeskIncidentCoalescer.merge(config, ImmutableList.of(alert(config, "web", "web1"), alert(config, "db", "db1")))
+				.getBacklog());
+	}
+
+	@Test
+	public void testPendingAlertsAreSentOnStop() throws Exception {
+		coalescer.add(config, alert(config, "web", "web1"), 60000, 10);
+		coalescer.stop();
+
+		assertEquals(1, submitted.size());
+	}
+
+	@Test
+	public void testFingerprintIsKeptWhenAllAlertsShareIt() {
+		TopdeskIncidentCoalescer.Alert first = new TopdeskIncidentCoalescer.Alert("web", "t1", ImmutableMap.<String, Object>of(),
+				new TopdeskIncident(config, "first", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+		TopdeskIncidentCoalescer.Alert second = new TopdeskIncidentCoalescer.Alert("web", "t2", ImmutableMap.<String, Object>of(),
+				new TopdeskIncident(config, "second", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+		TopdeskIncidentCoalescer.Alert other = new TopdeskIncidentCoalescer.Alert("db", "t3", ImmutableMap.<String, Object>of(),
+				new TopdeskIncident(config, "third", ImmutableMap.<String, Map<String, String>>of(), "other", "again"));
+
+		List<TopdeskIncidentCoalescer.Alert> same = ImmutableList.of(first, second);
+		assertEquals("fp", TopdeskIncidentCoalescer.merge(config, same).getFingerprint());
+		assertNull(TopdeskIncidentCoalescer.merge(config, ImmutableList.of(first, other)).getFingerprint());
+	}
+}
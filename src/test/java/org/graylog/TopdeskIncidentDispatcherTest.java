@@ -0,0 +1,86 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskIncidentDispatcherTest {
+
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+	private final CountDownLatch latch = new CountDownLatch(3);
+
+	private final TopdeskOutbox outbox = new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1));
+
+	private final TopdeskIncidentSender incidentSender = new TopdeskIncidentSender(null, null, null, outbox, null) {
+		@Override
+		public void send(TopdeskIncident incident) {
+			sent.add(incident.getDescription());
+			latch.countDown();
+		}
+	};
+
+	private final MetricRegistry metricRegistry = new MetricRegistry();
+
+	private static TopdeskIncident incident(String description) {
+		return new TopdeskIncident(ImmutableMap.<String, Object>of("endpoint", "https://topdesk/"), description,
+				ImmutableMap.<String, Map<String, String>>of());
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(incidentSender, outbox, 2, 1, "drop_newest", new TopdeskMetrics(metricRegistry));
+		dispatcher.submit(incident("1"));
+		dispatcher.submit(incident("2"));
+		dispatcher.submit(incident("3"));
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(1, dispatcher.getDroppedCount());
+		assertEquals(1, metricRegistry.meter("org.graylog.TopdeskAlarmCallback.topdesk_443.dispatch.dropped").getCount());
+		assertEquals(2, metricRegistry.getGauges().get("org.graylog.TopdeskAlarmCallback.topdesk_443.dispatch.queue-depth").getValue());
+
+		dispatcher.start();
+		assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+		dispatcher.stop();
+		assertEquals(2, sent.size());
+		assertEquals("1", sent.get(0));
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(incidentSender, outbox, 2, 1, "drop_oldest", new TopdeskMetrics(new MetricRegistry()));
+		dispatcher.submit(incident("1"));
+		dispatcher.submit(incident("2"));
+		dispatcher.submit(incident("3"));
+		assertEquals(1, dispatcher.getDroppedCount());
+
+		dispatcher.start();
+		assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+		dispatcher.stop();
+		assertEquals("2", sent.get(0));
+		assertEquals("3", sent.get(1));
+	}
+
+	@Test
+	public void testWorkersDeliverQueuedIncidents() throws Exception {
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(incidentSender, outbox, 10, 2, "block", new TopdeskMetrics(metricRegistry));
+		dispatcher.start();
+		dispatcher.submit(incident("1"));
+		dispatcher.submit(incident("2"));
+		dispatcher.submit(incident("3"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.stop();
+		assertEquals(3, sent.size());
+		assertEquals(3, dispatcher.getDeliveredCount());
+		assertEquals(0, metricRegistry.getGauges().get("org.graylog.TopdeskAlarmCallback.topdesk_443.dispatch.queue-depth").getValue());
+	}
+}
@@ -0,0 +1,62 @@
+package org.graylog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskIncidentRequestTest {
+
+	private static final ImmutableMap<String, Object> CONFIG = ImmutableMap.<String, Object>builder()
+			.put("endpoint", "https://localhost")
+			.put("username", "user")
+			.put("password", "pass")
+			.put("login_mode", "operator")
+			.put("caller_email", "foo@bar.com")
+			.put("summary", "summary")
+			.put("object", "server")
+			.put("category", "Monitoring")
+			.put("second_line", true)
+			.build();
+
+	private static JsonNode write(RequestBody body) throws Exception {
+		Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		return new ObjectMapper().readTree(buffer.inputStream());
+	}
+
+	@Test
+	public void testIncidentIsSerialized() throws Exception {
+		String description = "<b>\"quoted\"</b> \u00e9\n" + Strings.repeat("x", 100000);
+		RequestBody body = TopdeskJson.requestBody(new TopdeskIncidentRequest(TopdeskConfig.of(CONFIG), description,
+				ImmutableMap.<String, Map<String, String>>of(
+						"optionalFields1", ImmutableMap.of("text1", "value"),
+						"optionalFields2", ImmutableMap.<String, String>of()),
+				ImmutableMap.of("priority", "p1", "operatorGroup", "g1")));
+
+		assertEquals(TopdeskJson.JSON, body.contentType());
+		JsonNode json = write(body);
+		assertEquals("foo@bar.com", json.path("callerLookup").path("email").asText());
+		assertEquals("summary", json.path("briefDescription").asText());
+		assertEquals(description, json.path("request").asText());
+		assertEquals("value", json.path("optionalFields1").path("text1").asText());
+		assertFalse(json.has("optionalFields2"));
+		assertEquals("p1", json.path("priority").path("id").asText());
+		assertEquals("g1", json.path("operatorGroup").path("id").asText());
+		assertEquals("Monitoring", json.path("category").path("name").asText());
+		assertFalse(json.has("subcategory"));
+		assertEquals("secondLine", json.path("status").asText());
+		assertEquals("server", json.path("object").path("name").asText());
+
+		// The body is written again when a request is retried
+		assertEquals(json, write(body));
+	}
+}
@@ -0,0 +1,199 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class TopdeskIncidentSenderTest {
+
+	private static final Map<String, Object> CONFIG = ImmutableMap.<String, Object>builder()
+			.put(TopdeskAlarmCallback.ENDPOINT, "https://localhost")
+			.put(TopdeskAlarmCallback.USERNAME, "user")
+			.put(TopdeskAlarmCallback.PASSWORD, "pass")
+			.put(TopdeskAlarmCallback.LOGIN_MODE, "operator")
+			.put(TopdeskAlarmCallback.CALLER_EMAIL, "graylog@example.com")
+			.put(TopdeskAlarmCallback.SUMMARY, "Alert")
+			.put(TopdeskAlarmCallback.OBJECT, "server")
+			.put(TopdeskAlarmCallback.SECOND_LINE, false)
+			.build();
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskLookupCache lookupCache;
+	private TopdeskLookupResolver lookupResolver;
+	private TopdeskIncidentSender incidentSender;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor()
+				.respond("/tas/api/incidents/", 201, "{\"id\":\"abc\",\"number\":\"I 1\"}")
+				.respond("/tas/api/incidents/id/abc", "{\"id\":\"abc\"}");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager,
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 100,
+				new TopdeskMetrics(new MetricRegistry()));
+		lookupResolver = new TopdeskLookupResolver(lookupCache, 4, Duration.seconds(5));
+		incidentSender = new TopdeskIncidentSender(clientRegistry, sessionManager, lookupResolver,
+				new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1)),
+				new TopdeskIncidentIndex(Duration.hours(1), 100, new TopdeskMetrics(new MetricRegistry())));
+	}
+
+	@After
+	public void tearDown() {
+		lookupResolver.shutdown();
+		lookupCache.shutdown();
+	}
+
+	@Test
+	public void testRepeatedAlertIsAddedToOpenIncident() throws Exception {
+		incidentSender.send(new TopdeskIncident(CONFIG, "first", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+		incidentSender.send(new TopdeskIncident(CONFIG, "second", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+		incidentSender.send(new TopdeskIncident(CONFIG, "third", ImmutableMap.<String, Map<String, String>>of(), "other", "again"));
+
+		assertEquals(2, topdesk.count("/tas/api/incidents/"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/id/abc"));
+	}
+
+	@Test
+	public void testClosedIncidentIsReplaced() throws Exception {
+		topdesk.respond("/tas/api/incidents/id/abc", 403, "{\"message\":\"closed\"}");
+
+		incidentSender.send(new TopdeskIncident(CONFIG, "first", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+		incidentSender.send(new TopdeskIncident(CONFIG, "second", ImmutableMap.<String, Map<String, String>>of(), "fp", "again"));
+
+		assertEquals(2, topdesk.count("/tas/api/incidents/"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/id/abc"));
+	}
+
+	@Test
+	public void testAlertsWithoutFingerprintAreNotDeduplicated() throws Exception {
+		incidentSender.send(new TopdeskIncident(CONFIG, "first", ImmutableMap.<String, Map<String, String>>of()));
+		incidentSender.send(new TopdeskIncident(CONFIG, "second", ImmutableMap.<String, Map<String, String>>of()));
+
+		assertEquals(2, topdesk.count("/tas/api/incidents/"));
+		assertEquals(0, topdesk.count("/tas/api/incidents/id/abc"));
+	}
+
+	@Test
+	public void testBacklogIsAttachedToNewIncident() throws Exception {
+		Map<String, Object> config = ImmutableMap.<String, Object>builder()
+				.putAll(CONFIG)
+				.put(TopdeskAlarmCallback.ATTACHMENT, "ndjson")
+				.build();
+		Message message = mock(Message.class);
+		when(message.getFields()).thenReturn(ImmutableMap.<String, Object>of("message", "Login failed"));
+		TopdeskIncident incident = new TopdeskIncident(config, "first", ImmutableMap.<String, Map<String, String>>of(), "fp", "again")
+				.withBacklog(ImmutableList.of(message));
+
+		incidentSender.send(incident);
+		incidentSender.send(incident);
+		incidentSender.send(new TopdeskIncident(config, "other", ImmutableMap.<String, Map<String, String>>of()));
+
+		assertEquals(2, topdesk.count("/tas/api/incidents/"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/id/abc/attachments"));
+	}
+
+	@Test
+	public void testCategoryIsSentById() throws Exception {
+		topdesk.respond("/tas/api/incidents/categories", "[{\"id\":\"c1\",\"name\":\"Network\"},{\"id\":\"c2\",\"name\":\"Hardware\"}]")
+				.respond("/tas/api/incidents/subcategories", "[{\"id\":\"s1\",\"name\":\"Firewall\",\"category\":{\"id\":\"c1\"}},"
+						+ "{\"id\":\"s2\",\"name\":\"Disk\",\"category\":{\"id\":\"c2\"}}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		TopdeskLookupTables lookupTables = new TopdeskLookupTables(clientRegistry, sessionManager, true, Duration.minutes(10));
+		TopdeskIncidentSender sender = new TopdeskIncidentSender(clientRegistry, sessionManager, lookupResolver,
+				new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1)),
+				new TopdeskIncidentIndex(Duration.hours(1), 100, new TopdeskMetrics(new MetricRegistry())),
+				TopdeskTimeoutPolicy.NONE, lookupTables);
+		Map<String, Object> config = ImmutableMap.<String, Object>builder()
+				.putAll(CONFIG)
+				.put(TopdeskAlarmCallback.CATEGORY, "Network")
+				.put(TopdeskAlarmCallback.SUBCATEGORY, "Firewall")
+				.build();
+		try {
+			// Loaded by the warm-up, alerts before that send the category by name
+			lookupTables.load(TopdeskConfig.of(config).getCredentials());
+			sender.send(new TopdeskIncident(config, "first", ImmutableMap.<String, Map<String, String>>of()));
+
+			JsonNode json = new ObjectMapper().readTree(topdesk.lastRequestBody("/tas/api/incidents/"));
+			assertEquals("c1", json.path("category").path("id").asText());
+			assertFalse(json.path("category").has("name"));
+			assertEquals("s1", json.path("subcategory").path("id").asText());
+
+			Map<String, Object> mismatch = ImmutableMap.<String, Object>builder()
+					.putAll(CONFIG)
+					.put(TopdeskAlarmCallback.CATEGORY, "Network")
+					.put(TopdeskAlarmCallback.SUBCATEGORY, "Disk")
+					.build();
+			sender.send(new TopdeskIncident(mismatch, "second", ImmutableMap.<String, Map<String, String>>of()));
+			json = new ObjectMapper().readTree(topdesk.lastRequestBody("/tas/api/incidents/"));
+			assertEquals("Network", json.path("category").path("name").asText());
+			assertEquals("Disk", json.path("subcategory").path("name").asText());
+		} finally {
+			lookupTables.shutdown();
+		}
+	}
+
+	@Test
+	public void testCategoryMissingFromTreeIsSentByName() throws Exception {
+		topdesk.respond("/tas/api/incidents/categories", "[{\"id\":\"c1\",\"name\":\"Network\"}]")
+				.respond("/tas/api/incidents/subcategories", "[{\"id\":\"s1\",\"name\":\"Firewall\",\"category\":{\"id\":\"c1\"}}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		TopdeskLookupTables lookupTables = new TopdeskLookupTables(clientRegistry, sessionManager, true, Duration.minutes(10));
+		TopdeskIncidentSender sender = new TopdeskIncidentSender(clientRegistry, sessionManager, lookupResolver,
+				new TopdeskOutbox(false, "data/topdesk-outbox", Size.megabytes(16), Duration.seconds(1)),
+				new TopdeskIncidentIndex(Duration.hours(1), 100, new TopdeskMetrics(new MetricRegistry())),
+				TopdeskTimeoutPolicy.NONE, lookupTables);
+		Map<String, Object> config = ImmutableMap.<String, Object>builder()
+				.putAll(CONFIG)
+				.put(TopdeskAlarmCallback.CATEGORY, "Storage")
+				.put(TopdeskAlarmCallback.SUBCATEGORY, "Disk")
+				.build();
+		try {
+			// Added in Topdesk after the tree was loaded
+			lookupTables.load(TopdeskConfig.of(config).getCredentials());
+			sender.send(new TopdeskIncident(config, "first", ImmutableMap.<String, Map<String, String>>of()));
+
+			assertEquals(1, topdesk.count("/tas/api/incidents/"));
+			JsonNode json = new ObjectMapper().readTree(topdesk.lastRequestBody("/tas/api/incidents/"));
+			assertEquals("Storage", json.path("category").path("name").asText());
+			assertFalse(json.path("category").has("id"));
+			assertEquals("Disk", json.path("subcategory").path("name").asText());
+		} finally {
+			lookupTables.shutdown();
+		}
+	}
+
+	@Test
+	public void testFingerprintUsesConfiguredFields() {
+		Message first = mock(Message.class);
+		when(first.getField("host")).thenReturn("web1");
+		when(first.getField("user")).thenReturn("alice");
+		Message second = mock(Message.class);
+		when(second.getField("host")).thenReturn("web1");
+		when(second.getField("user")).thenReturn("bob");
+
+		assertEquals(TopdeskIncidentIndex.fingerprint("stream", "condition", first, ImmutableList.of("host")),
+				TopdeskIncidentIndex.fingerprint("stream", "condition", second, ImmutableList.of("host")));
+		assertNotEquals(TopdeskIncidentIndex.fingerprint("stream", "condition", first, ImmutableList.of("host", "user")),
+				TopdeskIncidentIndex.fingerprint("stream", "condition", second, ImmutableList.of("host", "user")));
+		assertNotEquals(TopdeskIncidentIndex.fingerprint("stream", "condition", first, ImmutableList.of("host")),
+				TopdeskIncidentIndex.fingerprint("stream", "other", first, ImmutableList.of("host")));
+	}
+}
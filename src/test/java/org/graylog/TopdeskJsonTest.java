@@ -0,0 +1,60 @@
+package org.graylog;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.common.io.CountingInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskJsonTest {
+
+	private static InputStream json(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testFindId() throws Exception {
+		String groups = "[{\"id\":\"g1\",\"groupName\":\"First\",\"contact\":{\"name\":\"Second\"}},"
+				+ "{\"groupName\":\"Second\",\"tags\":[\"a\",{\"id\":\"x\"}],\"id\":\"g2\"}]";
+
+		assertEquals("g1", TopdeskJson.findId(json(groups), "groupName", "First"));
+		assertEquals("g2", TopdeskJson.findId(json(groups), "groupName", "Second"));
+		assertNull(TopdeskJson.findId(json(groups), "groupName", "Third"));
+		assertNull(TopdeskJson.findId(json("[]"), "name", "P1"));
+	}
+
+	@Test
+	public void testFindIdStopsAtMatch() throws Exception {
+		StringBuilder priorities = new StringBuilder("[");
+		for (int i = 0; i < 20000; i++) {
+			priorities.append("{\"id\":\"").append(i).append("\",\"name\":\"P").append(i).append("\"},");
+		}
+		priorities.append("not json");
+		byte[] bytes = priorities.toString().getBytes(StandardCharsets.UTF_8);
+
+		CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(bytes));
+		assertEquals("10", TopdeskJson.findId(in, "name", "P10"));
+		assertTrue("read " + in.getCount() + " bytes", in.getCount() < bytes.length / 10);
+	}
+
+	@Test(expected = JsonParseException.class)
+	public void testFindIdRejectsNonArray() throws Exception {
+		TopdeskJson.findId(json("{\"message\":\"error\"}"), "name", "P1");
+	}
+
+	@Test
+	public void testReadId() throws Exception {
+		assertEquals("abc", TopdeskJson.readId(json("{\"number\":\"I 1801 001\",\"caller\":{\"id\":\"c1\"},\"id\":\"abc\"}")));
+		assertNull(TopdeskJson.readId(json("{\"number\":\"I 1801 001\"}")));
+	}
+
+	@Test(expected = JsonParseException.class)
+	public void testReadIdRejectsNonObject() throws Exception {
+		TopdeskJson.readId(json("[]"));
+	}
+}
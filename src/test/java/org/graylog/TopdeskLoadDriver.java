@@ -0,0 +1,214 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.streams.Stream;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Sends synthetic alerts through {@link TopdeskAlarmCallback#call} against a {@link TopdeskStub}, with the default
+ * server settings, and reports the throughput, latency percentiles and Topdesk requests per incident.
+ * <p>
+ * Run the main method with for example {@code alerts=5000 concurrency=16 latency=20 errorRate=0.01 throttle=50}.
+ */
+public class TopdeskLoadDriver {
+	private static final String[] LOOKUPS = {
+			TopdeskAlarmCallback.PRIORITIES_URI, TopdeskAlarmCallback.ENTRY_TYPES_URI, TopdeskAlarmCallback.CALL_TYPES_URI,
+			TopdeskAlarmCallback.IMPACTS_URI, TopdeskAlarmCallback.URGENCIES_URI};
+
+	static final class Result {
+		final int alerts;
+		final int failed;
+		final double seconds;
+		final double p50Millis;
+		final double p99Millis;
+		final int requests;
+		final int incidents;
+
+		private Result(int alerts, int failed, double seconds, long[] latencies, int requests, int incidents) {
+			this.alerts = alerts;
+			this.failed = failed;
+			this.seconds = seconds;
+			Arrays.sort(latencies);
+			this.p50Millis = percentile(latencies, 0.50);
+			this.p99Millis = percentile(latencies, 0.99);
+			this.requests = requests;
+			this.incidents = incidents;
+		}
+
+		private static double percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.max(0, index)] / 1e6;
+		}
+
+		double requestsPerIncident() {
+			return incidents == 0 ? 0 : (double) requests / incidents;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d alerts (%d failed) in %.2f s: %.1f alerts/s, p50 %.2f ms, p99 %.2f ms, "
+							+ "%d requests for %d incidents, %.2f requests per incident",
+					alerts, failed, seconds, alerts / seconds, p50Millis, p99Millis, requests, incidents, requestsPerIncident());
+		}
+	}
+
+	static Result run(final TopdeskStub stub, final int alerts, int concurrency) throws Exception {
+		TopdeskPluginConfiguration settings = new TopdeskPluginConfiguration();
+		MetricRegistry metricRegistry = new MetricRegistry();
+		TopdeskMetrics metrics = new TopdeskMetrics(metricRegistry);
+		TopdeskTimeoutPolicy timeoutPolicy = new TopdeskTimeoutPolicy(settings.getConnectTimeout(), settings.getReadTimeout(),
+				settings.getWriteTimeout(), settings.getDeliveryDeadline());
+		TopdeskClientRegistry clientRegistry = new TopdeskClientRegistry(settings.getConnectionPoolMaxIdle(), settings.getConnectionKeepAlive(),
+				new TopdeskRetryPolicy(settings.getRetryMaxAttempts(), settings.getRetryInitialBackoff(), settings.getRetryMaxBackoff(),
+						settings.getCircuitBreakerFailureThreshold(), settings.getCircuitBreakerOpenDuration(), settings.getCircuitBreakerHalfOpenProbes()),
+				new TopdeskRateLimitPolicy(settings.getRateLimit(), settings.getRateLimitBurst(), settings.getRateLimitMaxWait()),
+				new TopdeskConcurrencyPolicy(settings.getConcurrencyInitialLimit(), settings.getConcurrencyMaxLimit(), settings.getConcurrencyMaxWait()),
+				timeoutPolicy, metrics);
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, settings.getSessionMaxAge());
+		TopdeskLookupTables lookupTables = new TopdeskLookupTables(clientRegistry, sessionManager, settings.isLookupTablesEnabled(),
+				settings.getLookupTablesRefreshInterval());
+		TopdeskLookupCache lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager, settings.getLookupCacheTtl(),
+				settings.getLookupCacheRefreshInterval(), settings.getLookupCacheNegativeTtl(), settings.getLookupCacheMaxSize(),
+				lookupTables, metrics);
+		TopdeskLookupResolver lookupResolver = new TopdeskLookupResolver(lookupCache, settings.getLookupThreads(), settings.getLookupTimeout());
+		TopdeskOutbox outbox = new TopdeskOutbox(false, settings.getOutboxDir(), settings.getOutboxSegmentSize(), settings.getOutboxFlushInterval());
+		TopdeskIncidentSender sender = new TopdeskIncidentSender(clientRegistry, sessionManager, lookupResolver, outbox,
+				new TopdeskIncidentIndex(settings.getDedupTtl(), settings.getDedupMaxSize(), metrics), timeoutPolicy, lookupTables);
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(sender, outbox, settings.getDispatchQueueSize(),
+				settings.getDispatchWorkers(), settings.getDispatchOverflowPolicy(), metrics);
+		TopdeskWarmUp warmUp = new TopdeskWarmUp(clientRegistry, sessionManager, lookupCache, lookupTables, settings.isWarmUpEnabled(),
+				settings.getLookupThreads(), settings.getLookupCacheTtl(), settings.getLookupTimeout());
+		TopdeskConfigRegistry configRegistry = new TopdeskConfigRegistry(metrics);
+		final TopdeskAlarmCallback callback = new TopdeskAlarmCallback(sender, dispatcher, outbox,
+				new TopdeskIncidentCoalescer(outbox, dispatcher), metrics, warmUp, configRegistry);
+
+		for (String uri : LOOKUPS) {
+			stub.lookup(uri, "name", "Name");
+		}
+		stub.lookup(TopdeskAlarmCallback.OPERATOR_GROUPS_URI, "groupName", "Operators");
+		Configuration configuration = new Configuration(ImmutableMap.<String, Object>builder()
+				.put("endpoint", stub.endpoint())
+				.put("username", "user")
+				.put("password", "pass")
+				.put("login_mode", "operator")
+				.put("caller_email", "foo@bar.com")
+				.put("summary", "Load test")
+				.put("priority", "Name")
+				.put("entry_type", "Name")
+				.put("call_type", "Name")
+				.put("impact", "Name")
+				.put("urgency", "Name")
+				.put("operator_group", "Operators")
+				.put("object", "server")
+				.put("optional_fields", "optionalFields1:text1:%src_ip%")
+				.put("description", "Alert raised on stream <b>%stream%</b> at <b>%triggeredAt%</b>.<br/>Source ip: %src_ip%")
+				.build());
+		callback.initialize(configuration);
+		if (settings.isWarmUpEnabled()) {
+			// Measure the steady state, after the warm-up logged in and loaded the lookup lists
+			try {
+				warmUp.start(configRegistry.get(configuration)).get(1, TimeUnit.MINUTES);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Warm-up failed", e.getCause());
+			}
+		}
+
+		final Stream stream = mock(Stream.class);
+		when(stream.getId()).thenReturn("stream");
+		when(stream.getTitle()).thenReturn("Load test");
+		final AlertCondition condition = mock(AlertCondition.class);
+		when(condition.getId()).thenReturn("condition");
+		when(condition.getBacklog()).thenReturn(1);
+
+		final long[] latencies = new long[alerts];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		long start = System.nanoTime();
+		for (int i = 0; i < concurrency; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int alert = next.getAndIncrement(); alert < alerts; alert = next.getAndIncrement()) {
+						CheckResult result = checkResult(condition, alert);
+						long started = System.nanoTime();
+						try {
+							callback.call(stream, result);
+						} catch (Exception e) {
+							failed.incrementAndGet();
+						}
+						latencies[alert] = System.nanoTime() - started;
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		sessionManager.shutdown();
+		warmUp.shutdown();
+		lookupResolver.shutdown();
+		lookupCache.shutdown();
+		lookupTables.shutdown();
+		clientRegistry.shutdown();
+		return new Result(alerts, failed.get(), seconds, latencies, stub.getRequestCount(), stub.getIncidentCount());
+	}
+
+	private static CheckResult checkResult(AlertCondition condition, int alert) {
+		Map<String, Object> fields = new HashMap<>();
+		fields.put("src_ip", "10.0." + (alert / 256 % 256) + "." + (alert % 256));
+		Message message = mock(Message.class);
+		when(message.getMessage()).thenReturn("Failed password for root");
+		when(message.getFields()).thenReturn(fields);
+		when(message.getField("src_ip")).thenReturn(fields.get("src_ip"));
+
+		CheckResult result = mock(CheckResult.class);
+		when(result.getTriggeredCondition()).thenReturn(condition);
+		when(result.getMatchingMessages()).thenReturn(Collections.singletonList(new MessageSummary("index", message)));
+		when(result.getResultDescription()).thenReturn("Stream had 1 message");
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			String[] option = arg.split("=", 2);
+			options.put(option[0], option.length > 1 ? option[1] : "");
+		}
+		try (TopdeskStub stub = new TopdeskStub()
+				.latency(Long.parseLong(option(options, "latency", "10")))
+				.errorRate(Double.parseDouble(option(options, "errorRate", "0")))
+				.throttle(Integer.parseInt(option(options, "throttle", "0")))
+				.start()) {
+			System.out.println(run(stub, Integer.parseInt(option(options, "alerts", "1000")),
+					Integer.parseInt(option(options, "concurrency", "8"))));
+		}
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+}
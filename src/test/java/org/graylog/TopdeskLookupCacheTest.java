@@ -0,0 +1,56 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskLookupCacheTest {
+
+	private static final TopdeskCredentials CREDENTIALS = new TopdeskCredentials("https://localhost", "user", "pass", "operator");
+	private static final String PRIORITIES_URI = "/tas/api/incidents/priorities";
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskLookupCache lookupCache;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor()
+				.respond(PRIORITIES_URI, "[{\"id\":\"p1\",\"name\":\"P1\"},{\"id\":\"p2\",\"name\":\"P2\"}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		lookupCache = new TopdeskLookupCache(clientRegistry, new TopdeskSessionManager(clientRegistry, Duration.minutes(15)),
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 100,
+				new TopdeskMetrics(new MetricRegistry()));
+	}
+
+	@After
+	public void tearDown() {
+		lookupCache.shutdown();
+	}
+
+	@Test
+	public void testIdIsCached() throws Exception {
+		assertEquals("p2", lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P2", "name"));
+		assertEquals("p2", lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P2", "name"));
+		assertEquals(1, topdesk.count(PRIORITIES_URI));
+	}
+
+	@Test
+	public void testUnknownNameIsCached() throws Exception {
+		assertNull(lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P9", "name"));
+		assertNull(lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P9", "name"));
+		assertEquals(1, topdesk.count(PRIORITIES_URI));
+	}
+
+	@Test
+	public void testInvalidateAll() throws Exception {
+		lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P1", "name");
+		lookupCache.invalidateAll();
+		lookupCache.getId(CREDENTIALS, PRIORITIES_URI, "P1", "name");
+		assertEquals(2, topdesk.count(PRIORITIES_URI));
+	}
+}
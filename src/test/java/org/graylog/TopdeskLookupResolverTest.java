@@ -0,0 +1,65 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskLookupResolverTest {
+
+	private static final TopdeskCredentials CREDENTIALS = new TopdeskCredentials("https://localhost", "user", "pass", "operator");
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskLookupCache lookupCache;
+	private TopdeskLookupResolver lookupResolver;
+
+	@Before
+	public void setUp() throws Exception {
+		topdesk = new FakeTopdeskInterceptor()
+				.respond("/tas/api/incidents/priorities", "[{\"id\":\"p1\",\"name\":\"P1\"}]")
+				.respond("/tas/api/incidents/impacts", "[{\"id\":\"i1\",\"name\":\"Site\"}]")
+				.respond("/tas/api/incidents/urgencies", "[{\"id\":\"u1\",\"name\":\"High\"}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		sessionManager.token(CREDENTIALS);
+		lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager,
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 100,
+				new TopdeskMetrics(new MetricRegistry()));
+		lookupResolver = new TopdeskLookupResolver(lookupCache, 4, Duration.seconds(5));
+		topdesk.latency(200);
+	}
+
+	@After
+	public void tearDown() {
+		lookupResolver.shutdown();
+		lookupCache.shutdown();
+	}
+
+	@Test
+	public void testLookupsAreResolvedInParallel() throws Exception {
+		long start = System.nanoTime();
+		Map<String, String> ids = lookupResolver.resolve(CREDENTIALS, ImmutableList.of(
+				new TopdeskLookup("priority", "priority", "/tas/api/incidents/priorities", "P1", "name"),
+				new TopdeskLookup("impact", "impact", "/tas/api/incidents/impacts", "Site", "name"),
+				new TopdeskLookup("urgency", "urgency", "/tas/api/incidents/urgencies", "High", "name")));
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(ImmutableList.of("priority", "impact", "urgency"), ImmutableList.copyOf(ids.keySet()));
+		assertEquals("i1", ids.get("impact"));
+		assertTrue("took " + millis + "ms", millis < 550);
+	}
+
+	@Test
+	public void testUnknownNameFailsResolution() throws Exception {
+		assertNull(lookupResolver.resolve(CREDENTIALS, ImmutableList.of(
+				new TopdeskLookup("priority", "priority", "/tas/api/incidents/priorities", "P1", "name"),
+				new TopdeskLookup("impact", "impact", "/tas/api/incidents/impacts", "Nowhere", "name"))));
+	}
+}
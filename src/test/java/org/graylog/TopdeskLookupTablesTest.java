@@ -0,0 +1,110 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskLookupTablesTest {
+
+	private static final TopdeskCredentials CREDENTIALS = new TopdeskCredentials("https://localhost", "user", "pass", "operator");
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskLookupTables lookupTables;
+	private TopdeskLookupCache lookupCache;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor()
+				.respond("/tas/api/incidents/priorities", "[{\"id\":\"p1\",\"name\":\"P1\"},{\"id\":\"p2\",\"name\":\"P2\"}]")
+				.respond("/tas/api/operatorgroups", "[{\"id\":\"g1\",\"groupName\":\"DBA\",\"contact\":{\"email\":\"dba@example.com\"}}]")
+				.respond("/tas/api/incidents/categories", "[{\"id\":\"c1\",\"name\":\"Network\"}]")
+				.respond("/tas/api/incidents/subcategories", "[{\"id\":\"s1\",\"name\":\"Firewall\",\"category\":{\"id\":\"c1\",\"name\":\"Network\"}}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		lookupTables = new TopdeskLookupTables(clientRegistry, sessionManager, true, Duration.minutes(10));
+		lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager,
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 100, lookupTables,
+				new TopdeskMetrics(new MetricRegistry()));
+	}
+
+	@After
+	public void tearDown() {
+		lookupTables.shutdown();
+		lookupCache.shutdown();
+	}
+
+	@Test
+	public void testSnapshotIsLoadedOnceAndShared() {
+		TopdeskLookupSnapshot snapshot = lookupTables.load(CREDENTIALS);
+
+		assertSame(snapshot, lookupTables.get(new TopdeskCredentials("https://localhost", "user", "new password", "operator")));
+		assertEquals(1, snapshot.getVersion());
+		assertEquals(2, snapshot.table(TopdeskAlarmCallback.PRIORITIES_URI).size());
+		assertEquals(1, topdesk.count("/tas/api/incidents/priorities"));
+		assertEquals(1, topdesk.count("/tas/api/login/operator"));
+	}
+
+	@Test
+	public void testNamesAreIndexed() {
+		TopdeskLookupSnapshot snapshot = lookupTables.load(CREDENTIALS);
+
+		TopdeskLookupTable priorities = snapshot.table(TopdeskAlarmCallback.PRIORITIES_URI);
+		assertEquals("p2", priorities.getId("P2"));
+		assertNull(priorities.getId("p2"));
+		assertNull(priorities.getId("P3"));
+		assertEquals("P1", priorities.byId("p1").getName());
+
+		TopdeskLookupTable subcategories = snapshot.table(TopdeskAlarmCallback.SUBCATEGORIES_URI);
+		assertEquals("c1", subcategories.byName("Firewall").getParentId());
+		assertEquals("g1", lookupTables.findId(CREDENTIALS, TopdeskAlarmCallback.OPERATOR_GROUPS_URI + "?name=DBA", "groupName", "DBA"));
+	}
+
+	@Test
+	public void testRefreshReplacesSnapshotAndKeepsFailedLists() {
+		TopdeskLookupSnapshot first = lookupTables.load(CREDENTIALS);
+		topdesk.respond("/tas/api/incidents/priorities", "[{\"id\":\"p3\",\"name\":\"P3\"}]");
+		topdesk.respond("/tas/api/incidents/categories", 500, "");
+
+		TopdeskLookupSnapshot second = lookupTables.refresh(CREDENTIALS);
+
+		assertEquals(2, second.getVersion());
+		assertSame(second, lookupTables.get(CREDENTIALS));
+		assertEquals("p3", second.table(TopdeskAlarmCallback.PRIORITIES_URI).getId("P3"));
+		assertEquals("p1", first.table(TopdeskAlarmCallback.PRIORITIES_URI).getId("P1"));
+		assertSame(first.table(TopdeskAlarmCallback.CATEGORIES_URI), second.table(TopdeskAlarmCallback.CATEGORIES_URI));
+	}
+
+	@Test
+	public void testLookupCacheUsesSnapshot() throws Exception {
+		lookupTables.load(CREDENTIALS);
+		assertEquals("p1", lookupCache.getId(CREDENTIALS, TopdeskAlarmCallback.PRIORITIES_URI, "P1", "name"));
+		assertEquals("p2", lookupCache.getId(CREDENTIALS, TopdeskAlarmCallback.PRIORITIES_URI, "P2", "name"));
+
+		assertEquals(1, topdesk.count("/tas/api/incidents/priorities"));
+	}
+
+	@Test
+	public void testFirstAlertDoesNotWaitForSnapshot() throws Exception {
+		topdesk.latency(200);
+
+		assertNull(lookupTables.get(CREDENTIALS));
+		assertEquals("p1", lookupCache.getId(CREDENTIALS, TopdeskAlarmCallback.PRIORITIES_URI, "P1", "name"));
+
+		TopdeskLookupSnapshot snapshot = lookupTables.load(CREDENTIALS);
+		assertEquals(1, snapshot.getVersion());
+		assertSame(snapshot, lookupTables.get(CREDENTIALS));
+		assertEquals(1, topdesk.count("/tas/api/incidents/categories"));
+	}
+
+	@Test
+	public void testDisabled() {
+		assertNull(TopdeskLookupTables.NONE.get(CREDENTIALS));
+		assertNull(TopdeskLookupTables.NONE.load(CREDENTIALS));
+		assertNull(TopdeskLookupTables.NONE.findId(CREDENTIALS, TopdeskAlarmCallback.PRIORITIES_URI, "name", "P1"));
+	}
+}
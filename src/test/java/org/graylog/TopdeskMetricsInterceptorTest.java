@@ -0,0 +1,85 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskMetricsInterceptorTest {
+
+	private static final String ENDPOINT = "https://topdesk.example.com";
+	private static final String PREFIX = "org.graylog.TopdeskAlarmCallback.topdesk_example_com_443.";
+
+	private MetricRegistry metricRegistry;
+	private OkHttpClient client;
+
+	@Before
+	public void setUp() {
+		metricRegistry = new MetricRegistry();
+		FakeTopdeskInterceptor fake = new FakeTopdeskInterceptor()
+				.respond(TopdeskAlarmCallback.PRIORITIES_URI, "[]")
+				.respond("/tas/api/incidents/", 201, "{\"id\":\"abc\"}");
+		client = new OkHttpClient.Builder()
+				.addInterceptor(new TopdeskMetrics(metricRegistry).newInterceptor(ENDPOINT))
+				.addInterceptor(chain -> {
+					// Write the body like the network would
+					if (chain.request().body() != null) {
+						chain.request().body().writeTo(new Buffer());
+					}
+					return chain.proceed(chain.request());
+				})
+				.addInterceptor(fake)
+				.build();
+	}
+
+	@Test
+	public void testEndpointName() {
+		assertEquals("topdesk_example_com_443", TopdeskMetrics.endpointName("https://topdesk.example.com/"));
+		assertEquals("localhost_8080", TopdeskMetrics.endpointName("http://localhost:8080"));
+	}
+
+	@Test
+	public void testStages() throws IOException {
+		execute(new Request.Builder().url(ENDPOINT + "/tas/api/login/operator").get().build());
+		execute(new Request.Builder().url(ENDPOINT + TopdeskAlarmCallback.PRIORITIES_URI).get().build());
+		execute(new Request.Builder().url(ENDPOINT + TopdeskAlarmCallback.PRIORITIES_URI).get().build());
+		execute(new Request.Builder().url(ENDPOINT + "/tas/api/incidents/")
+				.post(RequestBody.create(TopdeskJson.JSON, "{\"request\":\"test\"}")).build());
+		execute(new Request.Builder().url(ENDPOINT + "/tas/api/incidents/id/abc")
+				.put(RequestBody.create(TopdeskJson.JSON, "{}")).build());
+
+		assertEquals(1, metricRegistry.timer(PREFIX + "requests.login").getCount());
+		assertEquals(2, metricRegistry.timer(PREFIX + "requests.lookup.priorities").getCount());
+		assertEquals(1, metricRegistry.timer(PREFIX + "requests.incident-create").getCount());
+		assertEquals(1, metricRegistry.timer(PREFIX + "requests.incident-update").getCount());
+		assertEquals(18, metricRegistry.histogram(PREFIX + "payload-size.incident-create").getSnapshot().getMax());
+		assertEquals(3, metricRegistry.meter(PREFIX + "responses.200").getCount());
+		assertEquals(1, metricRegistry.meter(PREFIX + "responses.201").getCount());
+		assertEquals(1, metricRegistry.meter(PREFIX + "responses.404").getCount());
+	}
+
+	@Test
+	public void testCacheGauges() {
+		new TopdeskMetrics(metricRegistry);
+		TopdeskTemplate.compile("%stream%");
+		TopdeskTemplate.compile("%stream%");
+
+		assertTrue(metricRegistry.getGauges().containsKey("org.graylog.TopdeskAlarmCallback.cache.templates.hit-rate"));
+		assertTrue((Long) metricRegistry.getGauges().get("org.graylog.TopdeskAlarmCallback.cache.templates.hits").getValue() > 0);
+	}
+
+	private void execute(Request request) throws IOException {
+		try (Response response = client.newCall(request).execute()) {
+			response.body().string();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.configuration.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskOutboxReplayerTest {
+
+	private static final Map<String, Object> CONFIG = ImmutableMap.<String, Object>of(
+			"endpoint", "https://localhost",
+			"username", "user",
+			"password", "pass",
+			"login_mode", "operator");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<TopdeskIncident> submitted = new CopyOnWriteArrayList<>();
+
+	private TopdeskOutbox outbox;
+	private TopdeskConfigRegistry configRegistry;
+	private TopdeskOutboxReplayer replayer;
+
+	@Before
+	public void setUp() throws Exception {
+		outbox = new TopdeskOutbox(true, folder.newFolder("outbox").getPath(), Size.megabytes(1), Duration.seconds(1));
+		outbox.open();
+		configRegistry = new TopdeskConfigRegistry(new TopdeskMetrics(new MetricRegistry()));
+		TopdeskIncidentDispatcher dispatcher = new TopdeskIncidentDispatcher(null, outbox, 10, 1, "block", new TopdeskMetrics(new MetricRegistry())) {
+			@Override
+			public void submit(TopdeskIncident incident) {
+				submitted.add(incident);
+			}
+		};
+		replayer = new TopdeskOutboxReplayer(outbox, dispatcher, configRegistry, Duration.minutes(1));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		outbox.close();
+	}
+
+	@Test
+	public void testIncidentsWaitForTheirCallback() throws Exception {
+		TopdeskIncident incident = outbox.append(new TopdeskIncident(CONFIG, "first", ImmutableMap.<String, Map<String, String>>of()));
+		outbox.release(incident);
+
+		replayer.replay();
+		assertTrue(submitted.isEmpty());
+		assertEquals(1, outbox.getPendingCount());
+
+		configRegistry.get(new Configuration(CONFIG));
+		replayer.replay();
+		assertEquals(1, submitted.size());
+		assertEquals("first", submitted.get(0).getDescription());
+		assertEquals("Basic dXNlcjpwYXNz", submitted.get(0).getConfig().getCredentials().getAuthorization());
+		assertEquals(incident.getOutboxId(), submitted.get(0).getOutboxId());
+	}
+
+	@Test
+	public void testWaitingIncidentsDontUseTheRoom() throws Exception {
+		Map<String, Object> other = ImmutableMap.<String, Object>of("endpoint", "https://localhost", "username", "other",
+				"password", "pass", "login_mode", "operator");
+		for (int i = 0; i < 25; i++) {
+			outbox.release(outbox.append(new TopdeskIncident(other, "waiting", ImmutableMap.<String, Map<String, String>>of())));
+		}
+		outbox.release(outbox.append(new TopdeskIncident(CONFIG, "ready", ImmutableMap.<String, Map<String, String>>of())));
+		outbox.close();
+		outbox.open();
+
+		configRegistry.get(new Configuration(CONFIG));
+		replayer.replay();
+		assertEquals(1, submitted.size());
+		assertEquals("ready", submitted.get(0).getDescription());
+		assertEquals(26, outbox.getPendingCount());
+		assertEquals(0, outbox.claim(100, account -> !account.contains("other")).size());
+		assertEquals(25, outbox.claim(100).size());
+	}
+
+	@Test
+	public void testInvalidIncidentsAreDropped() throws Exception {
+		Map<String, Object> invalid = ImmutableMap.<String, Object>of("endpoint", "https://localhost", "username", "user",
+				"password", "pass", "login_mode", "operator", "attachment", "xml");
+		configRegistry.get(new Configuration(CONFIG));
+		outbox.release(outbox.append(new TopdeskIncident(invalid, "invalid", ImmutableMap.<String, Map<String, String>>of())));
+
+		replayer.replay();
+		assertTrue(submitted.isEmpty());
+		assertEquals(0, outbox.getPendingCount());
+	}
+}
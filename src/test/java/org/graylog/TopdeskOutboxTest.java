@@ -0,0 +1,146 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.github.joschi.jadconfig.util.Size;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskOutboxTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private TopdeskOutbox outbox;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = folder.newFolder("outbox");
+		outbox = open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		outbox.close();
+	}
+
+	private TopdeskOutbox open() throws Exception {
+		TopdeskOutbox outbox = new TopdeskOutbox(true, directory.getPath(), Size.kilobytes(1), Duration.seconds(1));
+		outbox.open();
+		return outbox;
+	}
+
+	private static TopdeskIncident incident(String description) {
+		return new TopdeskIncident(ImmutableMap.<String, Object>of("endpoint", "https://localhost", "password", "secret", "second_line", true),
+				description, ImmutableMap.<String, Map<String, String>>of("optionalFields1", ImmutableMap.of("text1", "value")));
+	}
+
+	private File[] segments() {
+		return directory.listFiles((dir, name) -> name.startsWith("segment-"));
+	}
+
+	@Test
+	public void testUnacknowledgedIncidentsAreRecovered() throws Exception {
+		TopdeskIncident first = outbox.append(incident("first"));
+		outbox.append(incident("second"));
+		outbox.acknowledge(first);
+		outbox.close();
+
+		outbox = open();
+		assertEquals(1, outbox.getPendingCount());
+		List<TopdeskIncident> incidents = outbox.claim(10);
+		assertEquals(1, incidents.size());
+		assertEquals("second", incidents.get(0).getDescription());
+		assertEquals("value", incidents.get(0).getOptionalFields().get("optionalFields1").get("text1"));
+		assertEquals(true, incidents.get(0).getConfiguration().get("second_line"));
+	}
+
+	@Test
+	public void testInFlightIncidentsAreNotClaimed() throws Exception {
+		TopdeskIncident incident = outbox.append(incident("first"));
+		assertTrue(outbox.claim(10).isEmpty());
+
+		outbox.release(incident);
+		assertEquals(1, outbox.claim(10).size());
+		assertTrue(outbox.claim(10).isEmpty());
+	}
+
+	@Test
+	public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+		StringBuilder description = new StringBuilder();
+		for (int i = 0; i < 1100; i++) {
+			description.append('x');
+		}
+		TopdeskIncident first = outbox.append(incident(description.toString()));
+		TopdeskIncident second = outbox.append(incident(description.toString()));
+		outbox.append(incident(description.toString()));
+		assertEquals(3, segments().length);
+
+		outbox.acknowledge(first);
+		outbox.acknowledge(second);
+		assertEquals(1, segments().length);
+	}
+
+	@Test
+	public void testIncompleteRecordIsDiscarded() throws Exception {
+		outbox.append(incident("first"));
+		outbox.append(incident("second"));
+		outbox.close();
+
+		File segment = segments()[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.setLength(file.length() - 5);
+		}
+
+		outbox = open();
+		assertEquals(1, outbox.getPendingCount());
+		TopdeskIncident third = outbox.append(incident("third"));
+		assertEquals(1, third.getOutboxId());
+	}
+
+	@Test
+	public void testPasswordIsNotStored() throws Exception {
+		TopdeskIncident incident = outbox.append(incident("first"));
+		assertEquals("secret", incident.getConfiguration().get("password"));
+		outbox.release(incident);
+
+		assertFalse(new String(Files.readAllBytes(segments()[0].toPath()), StandardCharsets.UTF_8).contains("secret"));
+		TopdeskIncident stored = outbox.claim(10).get(0);
+		assertFalse(stored.getConfiguration().containsKey("password"));
+		assertEquals("https://localhost", stored.getConfiguration().get("endpoint"));
+	}
+
+	@Test
+	public void testDefaultDirectoryIsNextToJournal() {
+		assertEquals(Paths.get("/var/lib/graylog-server/topdesk-outbox"),
+				TopdeskOutbox.directory("", new File("/var/lib/graylog-server/journal")));
+		assertEquals(Paths.get("/srv/outbox"), TopdeskOutbox.directory("/srv/outbox", new File("/var/lib/graylog-server/journal")));
+	}
+
+	@Test
+	public void testRecoverySignalAfterFailure() throws Exception {
+		TopdeskIncident first = outbox.append(incident("first"));
+		TopdeskIncident second = outbox.append(incident("second"));
+		outbox.release(first);
+		assertFalse(outbox.hasRecovered());
+
+		outbox.acknowledge(second);
+		assertTrue(outbox.hasRecovered());
+		assertFalse(outbox.hasRecovered());
+	}
+}
@@ -0,0 +1,139 @@
+package org.graylog;
+
+import com.google.common.base.Ticker;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskRateLimiterTest {
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final Ticker ticker = new Ticker() {
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+	};
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void testBurstThenRate() {
+		TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", 10, 3, 10 * SECOND, ticker);
+
+		assertEquals(0, limiter.reserve());
+		assertEquals(0, limiter.reserve());
+		assertEquals(0, limiter.reserve());
+		assertEquals(SECOND / 10, limiter.reserve());
+		assertEquals(2 * SECOND / 10, limiter.reserve());
+
+		nanos.addAndGet(10 * SECOND);
+		assertEquals(0, limiter.reserve());
+	}
+
+	@Test
+	public void testMaximumWait() {
+		TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", 1, 1, SECOND, ticker);
+
+		assertEquals(0, limiter.reserve());
+		assertEquals(SECOND, limiter.reserve());
+		assertEquals(-1, limiter.reserve());
+
+		nanos.addAndGet(SECOND);
+		assertEquals(SECOND, limiter.reserve());
+	}
+
+	@Test
+	public void testUnlimitedRateIgnoresClockRace() {
+		TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", Integer.MAX_VALUE, Integer.MAX_VALUE, 0, ticker);
+
+		nanos.set(100);
+		assertEquals(0, limiter.reserve());
+		nanos.set(99);
+		assertEquals(0, limiter.reserve());
+	}
+
+	@Test
+	public void testThrottlingLowersRateUntilRecovered() {
+		TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", 10, 1, 60 * SECOND, ticker);
+
+		limiter.onThrottled(5 * SECOND);
+		assertEquals(5.0, limiter.getRate(), 0.01);
+		assertEquals(5 * SECOND, limiter.reserve());
+
+		for (int i = 0; i < 10; i++) {
+			limiter.onAccepted();
+		}
+		assertEquals(10.0, limiter.getRate(), 0.01);
+	}
+
+	@Test
+	public void testConcurrentRequestsShareTheBucket() throws Exception {
+		final TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", 1, 100, 3600 * SECOND, ticker);
+		final AtomicInteger immediate = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			executor.submit(() -> {
+				for (int i = 0; i < 50; i++) {
+					if (limiter.reserve() == 0) {
+						immediate.incrementAndGet();
+					}
+				}
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		assertEquals(100, immediate.get());
+	}
+
+	@Test
+	public void testTooManyRequestsIsHonored() throws Exception {
+		FakeTopdeskInterceptor topdesk = new FakeTopdeskInterceptor().respond("/tas/api/incidents/priorities", 429, "");
+		TopdeskRateLimiter limiter = new TopdeskRateLimiter("localhost", 10, 1, 60 * SECOND, ticker);
+		OkHttpClient client = new OkHttpClient.Builder().addInterceptor(limiter).addInterceptor(topdesk).build();
+
+		try (Response response = client.newCall(new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build()).execute()) {
+			assertEquals(429, response.code());
+		}
+		assertEquals(5.0, limiter.getRate(), 0.01);
+	}
+
+	@Test
+	public void testSaturatedBucketDoesNotOpenCircuit() throws Exception {
+		FakeTopdeskInterceptor topdesk = new FakeTopdeskInterceptor().respond("/tas/api/incidents/priorities", "[]");
+		TopdeskCircuitBreaker circuitBreaker = new TopdeskCircuitBreaker("localhost", 3, 30 * SECOND, 1, ticker);
+		OkHttpClient client = new OkHttpClient.Builder()
+				.addInterceptor(new TopdeskRetryInterceptor(circuitBreaker, 3, 1, 5))
+				.addInterceptor(new TopdeskRateLimiter("localhost", 1, 1, 0, ticker))
+				.addInterceptor(topdesk)
+				.build();
+		Request request = new Request.Builder().url("https://localhost/tas/api/incidents/priorities").build();
+
+		try (Response response = client.newCall(request).execute()) {
+			assertEquals(200, response.code());
+		}
+		for (int i = 0; i < 10; i++) {
+			try {
+				client.newCall(request).execute().close();
+				fail();
+			} catch (TopdeskRateLimiter.RateLimitedException e) {
+				assertEquals(TopdeskCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+			}
+		}
+		assertEquals(1, topdesk.count("/tas/api/incidents/priorities"));
+	}
+}
@@ -0,0 +1,152 @@
+package org.graylog;
+
+import com.google.common.base.Ticker;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskRetryInterceptorTest {
+
+	private static final String PRIORITIES = "/tas/api/incidents/priorities";
+	private static final String INCIDENTS = "/tas/api/incidents/";
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final Ticker ticker = new Ticker() {
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+	};
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskCircuitBreaker circuitBreaker;
+	private OkHttpClient client;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor();
+		circuitBreaker = new TopdeskCircuitBreaker("localhost", 3, TimeUnit.SECONDS.toNanos(30), 1, ticker);
+		client = new OkHttpClient.Builder()
+				.addInterceptor(new TopdeskRetryInterceptor(circuitBreaker, 3, 1, 5))
+				.addInterceptor(topdesk)
+				.build();
+	}
+
+	private int get(String path) throws IOException {
+		try (Response response = client.newCall(new Request.Builder().url("https://localhost" + path).build()).execute()) {
+			return response.code();
+		}
+	}
+
+	private int post(String path) throws IOException {
+		Request request = new Request.Builder()
+				.url("https://localhost" + path)
+				.post(RequestBody.create(TopdeskJson.JSON, "{}"))
+				.build();
+		try (Response response = client.newCall(request).execute()) {
+			return response.code();
+		}
+	}
+
+	@Test
+	public void testIdempotentRequestsAreRetried() throws Exception {
+		topdesk.respond(PRIORITIES, 502, "");
+
+		assertEquals(502, get(PRIORITIES));
+		assertEquals(3, topdesk.count(PRIORITIES));
+	}
+
+	@Test
+	public void testPostIsOnlyRetriedWhenNotProcessed() throws Exception {
+		topdesk.respond(INCIDENTS, 502, "");
+		assertEquals(502, post(INCIDENTS));
+		assertEquals(1, topdesk.count(INCIDENTS));
+
+		// A successful request resets the failure count of the circuit breaker
+		topdesk.respond(PRIORITIES, "[]");
+		assertEquals(200, get(PRIORITIES));
+
+		topdesk.respond(INCIDENTS, 503, "");
+		assertEquals(503, post(INCIDENTS));
+		assertEquals(4, topdesk.count(INCIDENTS));
+	}
+
+	@Test
+	public void testClientErrorsAreNotRetried() throws Exception {
+		topdesk.respond(PRIORITIES, 404, "");
+
+		assertEquals(404, get(PRIORITIES));
+		assertEquals(1, topdesk.count(PRIORITIES));
+		assertEquals(TopdeskCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void testCircuitOpensAndRecovers() throws Exception {
+		topdesk.respond(PRIORITIES, 500, "");
+		assertEquals(500, get(PRIORITIES));
+		assertEquals(TopdeskCircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+		try {
+			get(PRIORITIES);
+			fail();
+		} catch (TopdeskRetryInterceptor.CircuitOpenException e) {
+			assertEquals(3, topdesk.count(PRIORITIES));
+		}
+
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+		topdesk.respond(PRIORITIES, 200, "[]");
+		assertEquals(200, get(PRIORITIES));
+		assertEquals(TopdeskCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void testFailedProbeOpensCircuitAgain() {
+		for (int i = 0; i < 3; i++) {
+			assertTrue(circuitBreaker.tryAcquire());
+			circuitBreaker.onFailure();
+		}
+		assertFalse(circuitBreaker.tryAcquire());
+
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+		assertTrue(circuitBreaker.tryAcquire());
+		assertFalse("only one probe at a time", circuitBreaker.tryAcquire());
+		circuitBreaker.onFailure();
+		assertEquals(TopdeskCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.tryAcquire());
+	}
+
+	@Test
+	public void testProbeFailingUnexpectedlyIsReleased() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertTrue(circuitBreaker.tryAcquire());
+			circuitBreaker.onFailure();
+		}
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+		OkHttpClient failing = new OkHttpClient.Builder()
+				.addInterceptor(new TopdeskRetryInterceptor(circuitBreaker, 3, 1, 5))
+				.addInterceptor(chain -> {
+					throw new IllegalStateException("unexpected");
+				})
+				.build();
+		try {
+			failing.newCall(new Request.Builder().url("https://localhost" + PRIORITIES).build()).execute();
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals(TopdeskCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		}
+
+		topdesk.respond(PRIORITIES, 200, "[]");
+		assertEquals(200, get(PRIORITIES));
+		assertEquals(TopdeskCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+}
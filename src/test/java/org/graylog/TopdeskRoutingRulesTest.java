@@ -0,0 +1,105 @@
+package org.graylog;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class TopdeskRoutingRulesTest {
+
+	private static final String RULES = "# Databases\n"
+			+ "source=db-* and level<=3 -> operator_group=DBA, priority=P1\n"
+			+ "source=db-* -> operator_group=DBA\n"
+			+ "\n"
+			+ "facility=sshd and message~/Failed password for (invalid user )?root/ -> category=Security, priority=P1\n"
+			+ "facility=sshd -> category=Security, subcategory=Access\n"
+			+ "source=*-fw-* -> category=Network, subcategory=Firewall\n"
+			+ "response_time>2.5 -> impact=Site\n";
+
+	private static Message message(Map<String, Object> fields) {
+		Message message = mock(Message.class);
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			when(message.getField(field.getKey())).thenReturn(field.getValue());
+		}
+		return message;
+	}
+
+	@Test
+	public void testFirstMatchingRuleWins() throws Exception {
+		TopdeskRoutingRules rules = TopdeskRoutingRules.parse(RULES);
+
+		assertEquals(6, rules.size());
+		assertEquals(ImmutableMap.of("operator_group", "DBA", "priority", "P1"),
+				rules.route(message(ImmutableMap.of("source", "db-01", "level", 2))));
+		assertEquals(ImmutableMap.of("operator_group", "DBA"),
+				rules.route(message(ImmutableMap.of("source", "db-01", "level", "6"))));
+		assertEquals(ImmutableMap.of("category", "Security", "priority", "P1"),
+				rules.route(message(ImmutableMap.of("facility", "sshd", "message", "Failed password for root from 10.0.0.1"))));
+		assertEquals(ImmutableMap.of("category", "Security", "subcategory", "Access"),
+				rules.route(message(ImmutableMap.of("facility", "sshd", "message", "Accepted password for bob"))));
+		assertEquals(ImmutableMap.of("category", "Network", "subcategory", "Firewall"),
+				rules.route(message(ImmutableMap.of("source", "ams-fw-01"))));
+		assertEquals(ImmutableMap.of("impact", "Site"),
+				rules.route(message(ImmutableMap.of("source", "web-01", "response_time", 3.1))));
+		assertTrue(rules.route(message(ImmutableMap.of("source", "web-01", "response_time", "slow"))).isEmpty());
+		assertTrue(rules.route(null).isEmpty());
+	}
+
+	@Test
+	public void testEmptyRules() throws Exception {
+		assertSame(TopdeskRoutingRules.EMPTY, TopdeskRoutingRules.parse(null));
+		assertSame(TopdeskRoutingRules.EMPTY, TopdeskRoutingRules.parse(" \n"));
+		assertEquals(0, TopdeskRoutingRules.parse("# no rules yet").size());
+	}
+
+	@Test
+	public void testInvalidRulesAreRejected() {
+		assertInvalid("source=db-01", "Invalid routing rule [source=db-01]: expected conditions -> settings.");
+		assertInvalid("source -> priority=P1", "Invalid routing rule [source -> priority=P1]: invalid condition source.");
+		assertInvalid("level<high -> priority=P1", "Invalid routing rule [level<high -> priority=P1]: high is not a number.");
+		assertInvalid("message~/(/ -> priority=P1", "Invalid routing rule [message~/(/ -> priority=P1]: invalid regular expression (.");
+		assertInvalid("source=db-01 -> owner=me", "Invalid routing rule [source=db-01 -> owner=me]: invalid setting owner=me, "
+				+ "rules can set operator_group, category, subcategory, priority, impact, urgency, entry_type, call_type.");
+	}
+
+	@Test
+	public void testRoutedSource() throws Exception {
+		TopdeskConfig config = TopdeskConfig.of(ImmutableMap.<String, Object>builder()
+				.put(TopdeskAlarmCallback.ENDPOINT, "https://topdesk/")
+				.put(TopdeskAlarmCallback.PASSWORD, "pass")
+				.put(TopdeskAlarmCallback.LOGIN_MODE, "operator")
+				.put(TopdeskAlarmCallback.CATEGORY, "Servers")
+				.put(TopdeskAlarmCallback.SUBCATEGORY, "Linux")
+				.put(TopdeskAlarmCallback.ROUTING_RULES, RULES)
+				.build());
+
+		TopdeskConfig routed = config.route(message(ImmutableMap.of("source", "ams-fw-01")));
+		assertEquals("Network", routed.getCategory());
+		assertEquals("Firewall", routed.getSubcategory());
+		assertEquals("Network", routed.getSource().get(TopdeskAlarmCallback.CATEGORY));
+		assertSame(routed, config.route(message(ImmutableMap.of("source", "ams-fw-02"))));
+
+		routed = config.route(message(ImmutableMap.of("facility", "sshd", "message", "Failed password for root")));
+		assertEquals("Security", routed.getCategory());
+		assertNull(routed.getSubcategory());
+		assertFalse(routed.getSource().containsKey(TopdeskAlarmCallback.SUBCATEGORY));
+		assertEquals("P1", routed.getLookups().get(0).getName());
+
+		assertSame(config, config.route(message(ImmutableMap.of("source", "web-01"))));
+	}
+
+	private static void assertInvalid(String rules, String error) {
+		try {
+			TopdeskRoutingRules.parse(rules);
+			fail();
+		} catch (ConfigurationException e) {
+			assertEquals(error, e.getMessage());
+		}
+	}
+}
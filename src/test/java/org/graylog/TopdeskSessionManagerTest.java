@@ -0,0 +1,145 @@
+package org.graylog;
+
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskSessionManagerTest {
+
+	private static final TopdeskCredentials CREDENTIALS = new TopdeskCredentials("https://localhost", "user", "pass", "operator");
+
+	private final AtomicLong now = new AtomicLong();
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskSessionManager sessionManager;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor().latency(50);
+		sessionManager = new TopdeskSessionManager(topdesk.registry(), Duration.minutes(10), new Ticker() {
+			@Override
+			public long read() {
+				return now.get();
+			}
+		});
+	}
+
+	private int logins() {
+		return topdesk.count("/tas/api/login/operator");
+	}
+
+	private int logouts() {
+		return topdesk.count("/tas/api/logout");
+	}
+
+	@Test
+	public void testTokenIsReused() throws Exception {
+		assertEquals("token1", sessionManager.token(CREDENTIALS));
+		assertEquals("token1", sessionManager.token(CREDENTIALS));
+		assertEquals(1, logins());
+		assertEquals(0, logouts());
+	}
+
+	@Test
+	public void testTokenIsRenewedBeforeExpiry() throws Exception {
+		sessionManager.token(CREDENTIALS);
+		now.addAndGet(TimeUnit.MINUTES.toNanos(9) + 1);
+		assertEquals("token2", sessionManager.token(CREDENTIALS));
+		assertEquals(1, logouts());
+	}
+
+	@Test
+	public void testReauthenticateOnlyOnceForRejectedToken() throws Exception {
+		String rejected = sessionManager.token(CREDENTIALS);
+		assertEquals("token2", sessionManager.reauthenticate(CREDENTIALS, rejected));
+		assertEquals("token2", sessionManager.reauthenticate(CREDENTIALS, rejected));
+		assertEquals(2, logins());
+	}
+
+	@Test
+	public void testChangedPasswordReplacesSession() throws Exception {
+		sessionManager.token(CREDENTIALS);
+		assertEquals("token2", sessionManager.token(new TopdeskCredentials("https://localhost", "user", "other", "operator")));
+		assertEquals(1, logouts());
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneLogin() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<String>> tokens = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			tokens.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					start.await();
+					return sessionManager.token(CREDENTIALS);
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<String> token : tokens) {
+			assertEquals("token1", token.get(5, TimeUnit.SECONDS));
+		}
+		executor.shutdown();
+		assertEquals(1, logins());
+	}
+
+	@Test
+	public void testLogoutAll() throws Exception {
+		sessionManager.token(CREDENTIALS);
+		sessionManager.logoutAll();
+		assertEquals(1, logouts());
+		assertEquals("token2", sessionManager.token(CREDENTIALS));
+	}
+
+	@Test
+	public void testChangedUsernameLogsOutUnusedSession() throws Exception {
+		assertEquals("token1", sessionManager.token(CREDENTIALS));
+		TopdeskCredentials renamed = new TopdeskCredentials("https://localhost", "other user", "pass", "operator");
+		assertEquals("token2", sessionManager.token(renamed));
+		now.addAndGet(TimeUnit.MINUTES.toNanos(5));
+		sessionManager.logoutExpired();
+		assertEquals(0, logouts());
+
+		now.addAndGet(TimeUnit.MINUTES.toNanos(4) + 1);
+		sessionManager.token(renamed);
+		sessionManager.logoutExpired();
+		assertEquals(2, logouts());
+		assertEquals("TOKEN id=\"token1\"", topdesk.lastAuthorization("/tas/api/logout"));
+
+		sessionManager.logoutExpired();
+		assertEquals(2, logouts());
+		assertEquals("token4", sessionManager.token(CREDENTIALS));
+	}
+
+	@Test
+	public void testOldSessionInUseIsNotLoggedOut() throws Exception {
+		assertEquals("token1", sessionManager.token(CREDENTIALS));
+		now.addAndGet(TimeUnit.MINUTES.toNanos(8));
+		assertEquals("token1", sessionManager.token(CREDENTIALS));
+
+		now.addAndGet(TimeUnit.MINUTES.toNanos(1) + 1);
+		sessionManager.logoutExpired();
+		assertEquals(0, logouts());
+
+		now.addAndGet(TimeUnit.MINUTES.toNanos(8));
+		sessionManager.logoutExpired();
+		assertEquals(1, logouts());
+		assertEquals("token2", sessionManager.token(CREDENTIALS));
+	}
+}
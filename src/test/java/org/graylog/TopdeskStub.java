@@ -0,0 +1,170 @@
+package org.graylog;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-process Topdesk API on a {@link MockWebServer}, answering logins, logouts, lookups, incidents and attachments with a
+ * configurable latency, error rate and rate limit. Counts the requests per method and path.
+ */
+class TopdeskStub implements Closeable {
+	static {
+		// MockWebServer logs every request
+		Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+	}
+
+	private final MockWebServer server = new MockWebServer();
+	private final Map<String, String> lookups = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger incidents = new AtomicInteger();
+	private final AtomicInteger tokens = new AtomicInteger();
+	private volatile long latencyMillis;
+	private volatile double errorRate;
+	private volatile int requestsPerSecond;
+	private long second;
+	private int requestsInSecond;
+
+	/**
+	 * Answers the lookup list with one entry per name, with the name as ID.
+	 */
+	TopdeskStub lookup(String uri, String keyName, String... names) {
+		StringBuilder json = new StringBuilder("[");
+		for (String name : names) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"id\":\"").append(name).append("\",\"").append(keyName).append("\":\"").append(name).append("\"}");
+		}
+		lookups.put(uri, json.append(']').toString());
+		return this;
+	}
+
+	TopdeskStub latency(long millis) {
+		this.latencyMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Fails the given fraction of requests with a 500 response.
+	 */
+	TopdeskStub errorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * Answers requests above the given number per second with a 429 response.
+	 */
+	TopdeskStub throttle(int requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+		return this;
+	}
+
+	TopdeskStub start() throws IOException {
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				requests.incrementAndGet();
+				counts.computeIfAbsent(request.getMethod() + " " + request.getRequestUrl().encodedPath(),
+						p -> new AtomicInteger()).incrementAndGet();
+				MockResponse response = answer(request);
+				if (latencyMillis > 0) {
+					response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+				}
+				return response;
+			}
+		});
+		server.start();
+		return this;
+	}
+
+	String endpoint() {
+		String url = server.url("/").toString();
+		return url.substring(0, url.length() - 1);
+	}
+
+	int count(String method, String path) {
+		AtomicInteger count = counts.get(method + " " + path);
+		return count == null ? 0 : count.get();
+	}
+
+	int getRequestCount() {
+		return requests.get();
+	}
+
+	int getIncidentCount() {
+		return incidents.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.shutdown();
+	}
+
+	private MockResponse answer(RecordedRequest request) {
+		String path = request.getRequestUrl().encodedPath();
+		if (throttled()) {
+			return json(429, "{\"message\":\"Too many requests\"}").setHeader("Retry-After", "1");
+		}
+		if (path.equals("/tas/api/logout")) {
+			return new MockResponse().setResponseCode(204);
+		}
+		if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+			return json(500, "{\"message\":\"Internal server error\"}");
+		}
+		if (path.startsWith("/tas/api/login/")) {
+			if (request.getHeader("Authorization") == null) {
+				return new MockResponse().setResponseCode(401);
+			}
+			return new MockResponse().setBody("token" + tokens.incrementAndGet());
+		}
+		String authorization = request.getHeader("Authorization");
+		if (authorization == null || !authorization.startsWith("TOKEN id=")) {
+			return new MockResponse().setResponseCode(401);
+		}
+		if (path.equals("/tas/api/incidents/") && request.getMethod().equals("POST")) {
+			int number = incidents.incrementAndGet();
+			return json(201, "{\"id\":\"incident" + number + "\",\"number\":\"I " + number + "\"}");
+		}
+		if (path.startsWith("/tas/api/incidents/id/") && path.endsWith("/attachments") && request.getMethod().equals("POST")) {
+			return json(200, "{\"id\":\"attachment\"}");
+		}
+		if (path.startsWith("/tas/api/incidents/id/") && request.getMethod().equals("PUT")) {
+			return json(200, "{\"id\":\"" + path.substring("/tas/api/incidents/id/".length()) + "\"}");
+		}
+		String lookup = lookups.get(path);
+		if (lookup != null && request.getMethod().equals("GET")) {
+			return json(200, lookup);
+		}
+		return json(404, "{\"message\":\"Not found\"}");
+	}
+
+	private synchronized boolean throttled() {
+		if (requestsPerSecond <= 0) {
+			return false;
+		}
+		long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+		if (now != second) {
+			second = now;
+			requestsInSecond = 0;
+		}
+		return ++requestsInSecond > requestsPerSecond;
+	}
+
+	private static MockResponse json(int code, String body) {
+		return new MockResponse().setResponseCode(code).setHeader("Content-Type", "application/json").setBody(body);
+	}
+}
@@ -0,0 +1,58 @@
+package org.graylog;
+
+import org.graylog2.plugin.Message;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class TopdeskTemplateTest {
+
+	private static Message message() {
+		Message message = mock(Message.class);
+		when(message.getMessage()).thenReturn("Login failed");
+		when(message.getField("src_ip")).thenReturn("123.123.321.321");
+		when(message.getField("user")).thenReturn("<script>");
+		return message;
+	}
+
+	@Test
+	public void testPlaceholdersAreReplaced() {
+		TopdeskTemplate template = TopdeskTemplate.compile("Alert on <b>%stream%</b> at %triggeredAt%: %message% from %src_ip%.");
+		assertEquals("Alert on <b>Stream title</b> at 2018-01-01: Login failed from 123.123.321.321.",
+				template.render("Stream title", "2018-01-01", message(), false));
+	}
+
+	@Test
+	public void testDefaultsAndUnknownPlaceholders() {
+		TopdeskTemplate template = TopdeskTemplate.compile("%host|unknown host% %src_ip|none% %missing% 100% sure %");
+		assertEquals("unknown host 123.123.321.321 %missing% 100% sure %",
+				template.render("Stream title", "2018-01-01", message(), false));
+		assertEquals("unknown host none %missing% 100% sure %",
+				template.render("Stream title", "2018-01-01", (Message) null, false));
+	}
+
+	@Test
+	public void testHtmlEscaping() {
+		TopdeskTemplate template = TopdeskTemplate.compile("<b>%user%</b>");
+		assertEquals("<b>&lt;script&gt;</b>", template.render("Stream title", "2018-01-01", message(), true));
+		assertEquals("<b><script></b>", template.render("Stream title", "2018-01-01", message(), false));
+	}
+
+	@Test
+	public void testOnlyReferencedFieldsAreLookedUp() {
+		Message message = message();
+		TopdeskTemplate.compile("optionalFields1:text1:%src_ip%").render("Stream title", "2018-01-01", message, false);
+
+		verify(message).getField("src_ip");
+		verify(message, never()).getFields();
+		verifyNoMoreInteractions(message);
+	}
+
+	@Test
+	public void testCompiledTemplatesAreReused() {
+		assertSame(TopdeskTemplate.compile("%stream%"), TopdeskTemplate.compile("%stream%"));
+		assertEquals("", TopdeskTemplate.compile(null).render("Stream title", "2018-01-01", (Message) null, false));
+	}
+}
@@ -0,0 +1,129 @@
+package org.graylog;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.joschi.jadconfig.util.Duration;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.configuration.ConfigurationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class TopdeskWarmUpTest {
+
+	private static final Map<String, Object> CONFIG = ImmutableMap.<String, Object>builder()
+			.put(TopdeskAlarmCallback.ENDPOINT, "https://localhost")
+			.put(TopdeskAlarmCallback.USERNAME, "user")
+			.put(TopdeskAlarmCallback.PASSWORD, "pass")
+			.put(TopdeskAlarmCallback.LOGIN_MODE, "operator")
+			.put(TopdeskAlarmCallback.PRIORITY, "P1")
+			.put(TopdeskAlarmCallback.IMPACT, "Site")
+			.put(TopdeskAlarmCallback.CATEGORY, "Network")
+			.put(TopdeskAlarmCallback.SUBCATEGORY, "Firewall")
+			.build();
+
+	private FakeTopdeskInterceptor topdesk;
+	private TopdeskLookupCache lookupCache;
+	private TopdeskWarmUp warmUp;
+
+	@Before
+	public void setUp() {
+		topdesk = new FakeTopdeskInterceptor()
+				.respond("/tas/api/incidents/priorities", "[{\"id\":\"p1\",\"name\":\"P1\"}]")
+				.respond("/tas/api/incidents/impacts", "[{\"id\":\"i1\",\"name\":\"Site\"}]")
+				.respond("/tas/api/incidents/categories", "[{\"id\":\"c1\",\"name\":\"Network\"}]")
+				.respond("/tas/api/incidents/subcategories", "[{\"id\":\"s1\",\"name\":\"Firewall\",\"category\":{\"id\":\"c1\"}},"
+						+ "{\"id\":\"s2\",\"name\":\"Disk\",\"category\":{\"id\":\"c2\"}}]");
+		TopdeskClientRegistry clientRegistry = topdesk.registry();
+		TopdeskSessionManager sessionManager = new TopdeskSessionManager(clientRegistry, Duration.minutes(15));
+		lookupCache = new TopdeskLookupCache(clientRegistry, sessionManager,
+				Duration.hours(1), Duration.minutes(10), Duration.minutes(1), 100,
+				new TopdeskMetrics(new MetricRegistry()));
+		warmUp = new TopdeskWarmUp(clientRegistry, sessionManager, lookupCache, TopdeskLookupTables.NONE, true, 4, Duration.hours(1), Duration.seconds(5));
+	}
+
+	@After
+	public void tearDown() {
+		warmUp.shutdown();
+		lookupCache.shutdown();
+	}
+
+	@Test
+	public void testWarmUpLogsInAndResolvesAllNamesOnce() throws Exception {
+		TopdeskConfig config = TopdeskConfig.of(CONFIG);
+		warmUp.warmUp(config);
+		warmUp.start(config).get(5, TimeUnit.SECONDS);
+		warmUp.warmUp(config);
+
+		assertEquals(1, topdesk.count("/tas/api/login/operator"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/priorities"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/impacts"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/categories"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/subcategories"));
+	}
+
+	@Test
+	public void testAlertsJoinTheWarmUp() throws Exception {
+		topdesk.latency(200);
+		TopdeskConfig config = TopdeskConfig.of(CONFIG);
+		warmUp.warmUp(config);
+
+		assertEquals("p1", lookupCache.getId(config.getCredentials(), "/tas/api/incidents/priorities", "P1", "name"));
+		warmUp.start(config).get(5, TimeUnit.SECONDS);
+
+		assertEquals(1, topdesk.count("/tas/api/login/operator"));
+		assertEquals(1, topdesk.count("/tas/api/incidents/priorities"));
+	}
+
+	@Test
+	public void testVerifyReportsUnknownName() throws Exception {
+		Map<String, Object> source = new HashMap<>(CONFIG);
+		source.put(TopdeskAlarmCallback.IMPACT, "Nowhere");
+		try {
+			warmUp.verify(TopdeskConfig.of(source));
+			fail();
+		} catch (ConfigurationException e) {
+			assertEquals("Nowhere is not a valid impact", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testVerifyReportsSubcategoryOfOtherCategory() throws Exception {
+		TopdeskLookupTables lookupTables = new TopdeskLookupTables(topdesk.registry(),
+				new TopdeskSessionManager(topdesk.registry(), Duration.minutes(15)), true, Duration.minutes(10));
+		TopdeskWarmUp warmUp = new TopdeskWarmUp(topdesk.registry(), new TopdeskSessionManager(topdesk.registry(), Duration.minutes(15)),
+				lookupCache, lookupTables, true, 4, Duration.hours(1), Duration.seconds(5));
+		Map<String, Object> source = new HashMap<>(CONFIG);
+		source.put(TopdeskAlarmCallback.SUBCATEGORY, "Disk");
+		try {
+			warmUp.verify(TopdeskConfig.of(source));
+			fail();
+		} catch (ConfigurationException e) {
+			assertEquals("Disk is not a valid subcategory of Network", e.getMessage());
+		} finally {
+			warmUp.shutdown();
+			lookupTables.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailedWarmUpIsRetried() throws Exception {
+		topdesk.respond("/tas/api/login/operator", 503, "");
+		TopdeskConfig config = TopdeskConfig.of(CONFIG);
+		for (int attempt = 1; attempt <= 2; attempt++) {
+			try {
+				warmUp.verify(config);
+				fail();
+			} catch (ConfigurationException e) {
+				assertTrue(e.getMessage().startsWith("Failed to verify configuration"));
+			}
+			assertEquals(attempt, topdesk.count("/tas/api/login/operator"));
+		}
+	}
+}